@@ -0,0 +1,48 @@
+package de.dirkdittmar.offheapCache;
+
+/**
+ * How the free space of the off-heap memory is managed.
+ */
+public enum AllocationStrategy {
+
+	/**
+	 * Take the first free chunk big enough. Searching is linear in the number
+	 * of free chunks.
+	 */
+	FIRST_FIT,
+
+	/**
+	 * Keep the free chunks in size classes: each power of two range split into
+	 * 8 classes, as with TLSF. Finds a free chunk in constant time, regardless
+	 * of the fragmentation.
+	 */
+	SIZE_CLASS,
+
+	/**
+	 * Like {@link #SIZE_CLASS}, but the bookkeeping is kept in the off-heap
+	 * memory itself, next to the values. The heap footprint of the allocator
+	 * doesn't grow with the number of entries. Costs 8 bytes per entry and
+	 * entries take at least 16 bytes.
+	 */
+	BOUNDARY_TAG,
+
+	/**
+	 * Cut the memory into pages of 1 MiB (a 64th of the size for caches below
+	 * 64 MiB, but at least 4 KiB) and the pages into chunks of one size class
+	 * each, starting at 64 bytes and growing by 25%. A page goes back to the
+	 * other classes only once it is empty, so if the value sizes shift the
+	 * cache evicts more than needed. There is no fragmentation as long as the
+	 * values are of similar size, at the cost of up to 25% unused space per
+	 * value. Values bigger than a page can't be stored.
+	 */
+	SLAB,
+
+	/**
+	 * Binary buddy system: blocks of power of two sizes, split on demand and
+	 * joined with their buddy when freed. Allocating and freeing is O(log n)
+	 * and the fragmentation stays bounded without compaction, at the cost of
+	 * up to 50% unused space per value. Compaction does nothing.
+	 */
+	BUDDY
+
+}
@@ -0,0 +1,49 @@
+package de.dirkdittmar.offheapCache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A converter that writes to and reads from the off-heap memory directly.
+ * {@link OffheapMap} uses it for get and put, so there is no byte[] in
+ * between. The byte[] methods are only needed for the other operations; by
+ * default they go through a heap buffer.
+ */
+public interface BufferConverter<V> extends ByteConverter<V> {
+
+	/**
+	 * @return the number of bytes {@link #write(Object, ByteBuffer)} will
+	 *         write, at least 1
+	 */
+	int size(V value);
+
+	/**
+	 * Writes exactly {@link #size(Object)} bytes, starting at the position of
+	 * the target.
+	 */
+	void write(V value, ByteBuffer target);
+
+	/**
+	 * Reads the value from the position to the limit of the source. The
+	 * source is valid during the call only.
+	 */
+	V read(ByteBuffer source);
+
+	@Override
+	default byte[] toBytes(final V value) {
+		if (value == null) {
+			return null;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(size(value));
+		write(value, buffer);
+		return buffer.array();
+	}
+
+	@Override
+	default V toValue(final byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		return read(ByteBuffer.wrap(bytes));
+	}
+
+}
@@ -1,9 +1,145 @@
 package de.dirkdittmar.offheapCache;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-public interface CompactableConcurrentMap<K, V> extends ConcurrentMap<K, V> {
+public interface CompactableConcurrentMap<K, V> extends ConcurrentMap<K, V>,
+		AutoCloseable {
 
 	void compact();
 
+	/**
+	 * Compact a little: move values to free space further to the front,
+	 * starting with the values at the end, until about <code>maxBytes</code>
+	 * are moved. Unlike {@link #compact()} the map is usable between two
+	 * steps.
+	 * 
+	 * @return <code>true</code> if there is more to do
+	 */
+	boolean compactStep(int maxBytes);
+
+	/**
+	 * With a file, see {@link OffheapMapConfig#file(java.nio.file.Path)},
+	 * writes the values to the file and saves the index, so a new map with
+	 * the same file starts with these entries. The map must not be used
+	 * afterwards. Without a file it does nothing.
+	 * 
+	 * @throws java.io.UncheckedIOException
+	 *             if the file or the index can't be written
+	 */
+	@Override
+	void close();
+
+	/**
+	 * @return a snapshot of the off-heap memory, e.g. to decide when to
+	 *         compact
+	 */
+	MemStats memStats();
+
+	/**
+	 * Reads a value without copying it to the heap: the reader gets a
+	 * read-only view of the off-heap bytes, from position 0 to the limit. The
+	 * view is valid during the call only and must not be kept.
+	 * 
+	 * @return the result of the reader or null if there is no value for the
+	 *         key
+	 */
+	<R> R read(Object key, Function<? super ByteBuffer, ? extends R> reader);
+
+	/**
+	 * Writes a value without copying it from the heap: the writer gets a
+	 * view of the allocated off-heap chunk of <code>size</code> bytes, from
+	 * position 0 to the limit, and has to fill it. The view is valid during
+	 * the call only and must not be kept.
+	 * 
+	 * @param previous
+	 *            reads the old value before it is overwritten; may be null
+	 * @return the result of previous or null if there was no old value
+	 */
+	<R> R write(K key, int size, Consumer<? super ByteBuffer> writer,
+			Function<? super ByteBuffer, ? extends R> previous);
+
+	/**
+	 * Changes a value in place: the updater gets a view of the off-heap bytes
+	 * of the value, from position 0 to the limit, and may overwrite any of
+	 * them. The size of the value stays the same. The view is valid during
+	 * the call only and must not be kept.
+	 * 
+	 * @return <code>true</code> if there was a value for the key
+	 * @see RecordLayout
+	 */
+	boolean update(Object key, Consumer<? super ByteBuffer> updater);
+
+	/**
+	 * Puts a value that expires after the ttl: from then on the map behaves
+	 * as if there were no value for the key. The expired entries are
+	 * reclaimed by the following writes, in batches; until then they still
+	 * count for {@link #size()} and appear in {@link #keySet()}.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the map was not configured with
+	 *             {@link OffheapMapConfig#expiry(boolean)}
+	 */
+	V put(K key, V value, long ttl, TimeUnit unit);
+
+	/**
+	 * Gets the values of the keys in one batch, like {@link #putAll(Map)}
+	 * and {@link #removeAll(Collection)}: the map is locked once for all of
+	 * them.
+	 * 
+	 * @return the keys with a value
+	 */
+	Map<K, V> getAll(Collection<? extends K> keys);
+
+	/**
+	 * Removes the keys in one batch.
+	 * 
+	 * @return the number of keys that had a value
+	 */
+	int removeAll(Collection<?> keys);
+
+	/**
+	 * @param batchSize
+	 *            about the number of entries per batch
+	 * @return a cursor over the entries, in no particular order
+	 * @see #entrySet()
+	 * @see #values()
+	 */
+	Cursor<K> cursor(int batchSize);
+
+	/**
+	 * Visits all entries with a {@link #cursor(int)}: the action gets each key
+	 * with a read-only view of its value, valid during the call only. The
+	 * action must not use the map.
+	 */
+	void scan(BiConsumer<? super K, ? super ByteBuffer> action);
+
+	/**
+	 * Removes the entries the filter accepts. The filter gets the views of
+	 * the values as in {@link #scan(BiConsumer)}; the accepted entries of a
+	 * batch are removed with {@link #remove(Object, Object)} and the value
+	 * the filter saw, so an entry changed in between stays.
+	 * 
+	 * @return the number of removed entries
+	 */
+	int removeIf(BiPredicate<? super K, ? super ByteBuffer> filter);
+
+	/**
+	 * A spliterator over the entries for parallel scans, e.g. with
+	 * {@link java.util.stream.StreamSupport#stream(Spliterator, boolean)}. It
+	 * splits like {@link Cursor#trySplit()}, and the reader turns the view of
+	 * each value into an element while the map is locked.
+	 */
+	<R> Spliterator<R> spliterator(
+			BiFunction<? super K, ? super ByteBuffer, ? extends R> reader);
+
 }
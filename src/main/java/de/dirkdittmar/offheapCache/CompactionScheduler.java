@@ -0,0 +1,247 @@
+package de.dirkdittmar.offheapCache;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts a map in the background, so a put rarely has to compact in the
+ * foreground. A daemon thread checks the {@link MemStats} of the map
+ * periodically and, if the free memory is too fragmented, runs
+ * {@link CompactableConcurrentMap#compactStep(int) compactStep} until the
+ * cycle is done.
+ * <p>
+ * While the map is busy the steps are throttled to the
+ * {@link #maxDutyCycle(double) max duty cycle}; if nothing was modified
+ * since the last check, the map is idle and the steps run back to back.
+ * <p>
+ * Configure before {@link #start()}:
+ *
+ * <pre>
+ * CompactionScheduler scheduler = new CompactionScheduler(map)
+ * 		.maxFragmentation(0.3).maxDutyCycle(0.05);
+ * scheduler.start();
+ * ...
+ * scheduler.stop();
+ * </pre>
+ */
+public class CompactionScheduler {
+
+	private final CompactableConcurrentMap<?, ?> map;
+
+	private double maxFragmentation = 0.5;
+
+	private int maxFreeChunks = 1000;
+
+	private int stepBytes = 64 * 1024;
+
+	private double maxDutyCycle = 0.1;
+
+	private long checkIntervalMillis = 1000;
+
+	private final AtomicLong cycles = new AtomicLong();
+
+	private final AtomicLong steps = new AtomicLong();
+
+	private volatile Thread thread;
+
+	private volatile boolean stopped;
+
+	private volatile MemStats startStats;
+
+	private long lastModifications = -1;
+
+	public CompactionScheduler(final CompactableConcurrentMap<?, ?> map) {
+		checkArgument(map != null, "map != null");
+		this.map = map;
+	}
+
+	/**
+	 * Compact if {@link MemStats#fragmentation()} is above this. Default is
+	 * 0.5.
+	 */
+	public CompactionScheduler maxFragmentation(final double maxFragmentation) {
+		checkArgument(maxFragmentation >= 0.0 && maxFragmentation < 1.0,
+				"maxFragmentation >= 0.0 && maxFragmentation < 1.0");
+		checkNotStarted();
+		this.maxFragmentation = maxFragmentation;
+		return this;
+	}
+
+	/**
+	 * Compact if there are more free chunks than this. Default is 1000.
+	 */
+	public CompactionScheduler maxFreeChunks(final int maxFreeChunks) {
+		checkArgument(maxFreeChunks > 0, "maxFreeChunks > 0");
+		checkNotStarted();
+		this.maxFreeChunks = maxFreeChunks;
+		return this;
+	}
+
+	/**
+	 * The bytes to move per step, i.e. while holding the lock of the map.
+	 * Default is 64 KiB.
+	 */
+	public CompactionScheduler stepBytes(final int stepBytes) {
+		checkArgument(stepBytes > 0, "stepBytes > 0");
+		checkNotStarted();
+		this.stepBytes = stepBytes;
+		return this;
+	}
+
+	/**
+	 * The share of time spent compacting while the map is busy; the thread
+	 * pauses after each step accordingly. Default is 0.1.
+	 */
+	public CompactionScheduler maxDutyCycle(final double maxDutyCycle) {
+		checkArgument(maxDutyCycle > 0.0 && maxDutyCycle <= 1.0,
+				"maxDutyCycle > 0.0 && maxDutyCycle <= 1.0");
+		checkNotStarted();
+		this.maxDutyCycle = maxDutyCycle;
+		return this;
+	}
+
+	/**
+	 * Default is one second.
+	 */
+	public CompactionScheduler checkInterval(final long interval,
+			final TimeUnit unit) {
+		checkArgument(interval > 0, "interval > 0");
+		checkArgument(unit != null, "unit != null");
+		checkNotStarted();
+		this.checkIntervalMillis = Math.max(1, unit.toMillis(interval));
+		return this;
+	}
+
+	private void checkNotStarted() {
+		if (thread != null || stopped) {
+			throw new IllegalStateException("already started");
+		}
+	}
+
+	public synchronized void start() {
+		checkNotStarted();
+		startStats = map.memStats();
+		final Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					while (!stopped) {
+						check();
+						TimeUnit.MILLISECONDS.sleep(checkIntervalMillis);
+					}
+				} catch (final InterruptedException e) {
+					// stopped
+				}
+			}
+		}, "offheap-compaction");
+		t.setDaemon(true);
+		thread = t;
+		t.start();
+	}
+
+	/**
+	 * Stops the thread and waits for it. The current step is finished, the
+	 * cycle is not. The scheduler can't be started again.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		final Thread t = thread;
+		stopped = true;
+		if (t != null) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	public boolean isRunning() {
+		final Thread t = thread;
+		return t != null && t.isAlive() && !stopped;
+	}
+
+	/**
+	 * Checks the map and runs a compaction cycle if the free memory is too
+	 * fragmented.
+	 *
+	 * @return <code>true</code> if it compacted
+	 */
+	boolean check() throws InterruptedException {
+		final MemStats stats = map.memStats();
+		final boolean idle = stats.modifications() == lastModifications;
+		lastModifications = stats.modifications();
+		if (!isFragmented(stats)) {
+			return false;
+		}
+
+		cycles.incrementAndGet();
+		boolean more = true;
+		while (more) {
+			final long start = System.nanoTime();
+			more = map.compactStep(stepBytes);
+			steps.incrementAndGet();
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (more && !idle && maxDutyCycle < 1.0) {
+				final long elapsed = System.nanoTime() - start;
+				TimeUnit.NANOSECONDS
+						.sleep((long) (elapsed * (1.0 - maxDutyCycle) / maxDutyCycle));
+			}
+		}
+		return true;
+	}
+
+	private boolean isFragmented(final MemStats stats) {
+		return stats.freeChunkCount() > 1
+				&& (stats.fragmentation() > maxFragmentation || stats
+						.freeChunkCount() > maxFreeChunks);
+	}
+
+	/**
+	 * @return the compaction cycles run so far
+	 */
+	public long cycles() {
+		return cycles.get();
+	}
+
+	/**
+	 * @return the steps run so far
+	 */
+	public long steps() {
+		return steps.get();
+	}
+
+	/**
+	 * @return the puts that still had to compact since the start
+	 */
+	public long foregroundCompactions() {
+		return map.memStats().foregroundCompactions()
+				- startStats().foregroundCompactions();
+	}
+
+	/**
+	 * @return the puts that found space only thanks to the compaction since
+	 *         the start; each of them would have compacted in the foreground
+	 *         otherwise
+	 * @see MemStats#avoidedForegroundCompactions()
+	 */
+	public long avoidedForegroundCompactions() {
+		return map.memStats().avoidedForegroundCompactions()
+				- startStats().avoidedForegroundCompactions();
+	}
+
+	private MemStats startStats() {
+		final MemStats result = startStats;
+		if (result == null) {
+			throw new IllegalStateException("not started");
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%,d cycles, %,d steps", cycles(), steps());
+	}
+
+}
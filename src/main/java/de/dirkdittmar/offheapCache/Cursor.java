@@ -0,0 +1,41 @@
+package de.dirkdittmar.offheapCache;
+
+import java.nio.ByteBuffer;
+import java.util.function.BiConsumer;
+
+/**
+ * Walks the entries of a {@link CompactableConcurrentMap} in batches, see
+ * {@link CompactableConcurrentMap#cursor(int)}. Only the current batch is on
+ * the heap, and the map is locked for one batch at a time only.
+ * <p>
+ * The walk is weakly consistent: an entry that is in the map for the whole
+ * walk is visited exactly once, an entry put or removed in between may or
+ * may not be. A cursor is not thread-safe.
+ */
+public interface Cursor<K> {
+
+	/**
+	 * Visits the next batch: the visitor gets each key with a read-only view
+	 * of its value, from position 0 to the limit, as with
+	 * {@link CompactableConcurrentMap#read(Object, java.util.function.Function)}.
+	 * The view is valid during the call only and must not be kept, and the
+	 * visitor must not use the map.
+	 *
+	 * @return <code>false</code> if there were no more entries to visit
+	 */
+	boolean next(BiConsumer<? super K, ? super ByteBuffer> visitor);
+
+	/**
+	 * Hands a part of the remaining entries to a new cursor, so the parts can
+	 * be walked in parallel. Each part locks the map for its own batches.
+	 * 
+	 * @return the new cursor or null if this one can't be split
+	 */
+	Cursor<K> trySplit();
+
+	/**
+	 * @return about the number of entries still to visit
+	 */
+	long estimateSize();
+
+}
@@ -0,0 +1,46 @@
+package de.dirkdittmar.offheapCache;
+
+/**
+ * What a put does if there is no space left, even after compacting.
+ */
+public enum Eviction {
+
+	/**
+	 * Fail with a {@link NotEnoughMemException}.
+	 */
+	NONE,
+
+	/**
+	 * Remove the least recently used entries until the value fits. A lookup
+	 * makes the entry the most recently used one, so it changes the map:
+	 * {@link OffheapByteMap} takes the write lock for get and read. Costs 4
+	 * bytes per entry in the off-heap memory and about 20 bytes per entry in
+	 * primitive arrays on the heap.
+	 */
+	LRU,
+
+	/**
+	 * W-TinyLFU: like {@link #LRU}, but a new entry only replaces an older one
+	 * if its key was used more often, estimated with a count-min sketch. Keeps
+	 * the hot keys during scans and gets better hit rates for most workloads.
+	 * {@link OffheapByteMap} takes the write lock for get and read too. Costs
+	 * 4 bytes per entry in the off-heap memory and about 28 bytes per entry on
+	 * the heap, plus the sketch: a long per entry, with the number of entries
+	 * rounded up to a power of two, so 8 to 16 bytes per entry, at most 8 MiB.
+	 */
+	TINY_LFU,
+
+	/**
+	 * CLOCK, an approximation of {@link #LRU}: a lookup only sets a reference
+	 * bit next to the value in the off-heap memory. To make space, a hand
+	 * sweeps over the entries, clears the bits it finds set and evicts the
+	 * first entry without one. Lookups don't change the map, so
+	 * {@link OffheapByteMap} takes the read lock for them and concurrent
+	 * lookups don't block each other. They don't read optimistically though,
+	 * as the bit must not be set in a chunk a writer is just freeing. Costs 5
+	 * bytes per entry in the off-heap memory and about 28 bytes per entry on
+	 * the heap.
+	 */
+	CLOCK
+
+}
@@ -0,0 +1,144 @@
+package de.dirkdittmar.offheapCache;
+
+/**
+ * A snapshot of the off-heap memory of a map.
+ */
+public class MemStats {
+
+	private final long capacity;
+
+	private final long freeBytes;
+
+	private final int largestFreeChunk;
+
+	private final int freeChunkCount;
+
+	private final long modifications;
+
+	private final long foregroundCompactions;
+
+	private final long avoidedForegroundCompactions;
+
+	private final long evictions;
+
+	private final long expirations;
+
+	private final long heapFootprint;
+
+	public MemStats(final long capacity, final long freeBytes,
+			final int largestFreeChunk, final int freeChunkCount,
+			final long modifications, final long foregroundCompactions,
+			final long avoidedForegroundCompactions, final long evictions,
+			final long expirations, final long heapFootprint) {
+		this.capacity = capacity;
+		this.freeBytes = freeBytes;
+		this.largestFreeChunk = largestFreeChunk;
+		this.freeChunkCount = freeChunkCount;
+		this.modifications = modifications;
+		this.foregroundCompactions = foregroundCompactions;
+		this.avoidedForegroundCompactions = avoidedForegroundCompactions;
+		this.evictions = evictions;
+		this.expirations = expirations;
+		this.heapFootprint = heapFootprint;
+	}
+
+	public long capacity() {
+		return capacity;
+	}
+
+	public long freeBytes() {
+		return freeBytes;
+	}
+
+	public int largestFreeChunk() {
+		return largestFreeChunk;
+	}
+
+	public int freeChunkCount() {
+		return freeChunkCount;
+	}
+
+	/**
+	 * 0 if all free bytes are in one chunk, close to 1 if the largest free
+	 * chunk is only a small part of the free bytes.
+	 */
+	public double fragmentation() {
+		return freeBytes == 0 ? 0.0 : 1.0 - (double) largestFreeChunk
+				/ freeBytes;
+	}
+
+	/**
+	 * Puts, removes and clears so far.
+	 */
+	public long modifications() {
+		return modifications;
+	}
+
+	/**
+	 * Puts that ran out of space and had to compact.
+	 */
+	public long foregroundCompactions() {
+		return foregroundCompactions;
+	}
+
+	/**
+	 * Puts that found space only thanks to a
+	 * {@link CompactableConcurrentMap#compactStep(int) compactStep} cycle:
+	 * the value was bigger than the largest free chunk at the start of the
+	 * cycle. Each of them would have compacted in the foreground otherwise.
+	 * Counted once per cycle.
+	 */
+	public long avoidedForegroundCompactions() {
+		return avoidedForegroundCompactions;
+	}
+
+	/**
+	 * Entries removed to make space, see {@link Eviction}.
+	 */
+	public long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * Expired entries reclaimed so far.
+	 */
+	public long expirations() {
+		return expirations;
+	}
+
+	/**
+	 * Rough estimate of the heap bytes the allocators need for their
+	 * bookkeeping, see {@link AllocationStrategy}. It depends on the capacity,
+	 * not on the entries.
+	 */
+	public long heapFootprint() {
+		return heapFootprint;
+	}
+
+	/**
+	 * @return the stats of both maps together
+	 */
+	public MemStats add(final MemStats other) {
+		return new MemStats(capacity + other.capacity, freeBytes
+				+ other.freeBytes, Math.max(largestFreeChunk,
+				other.largestFreeChunk), freeChunkCount + other.freeChunkCount,
+				modifications + other.modifications, foregroundCompactions
+						+ other.foregroundCompactions,
+				avoidedForegroundCompactions
+						+ other.avoidedForegroundCompactions, evictions
+						+ other.evictions, expirations + other.expirations,
+				heapFootprint + other.heapFootprint);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%,d of %,d bytes free in %,d chunks, "
+				+ "largest free chunk %,d, fragmentation %.2f, "
+				+ "%,d foreground compactions, %,d avoided, %,d evictions, "
+				+ "%,d expirations, %,d heap bytes", freeBytes, capacity,
+				freeChunkCount, largestFreeChunk, fragmentation(),
+				foregroundCompactions, avoidedForegroundCompactions, evictions,
+				expirations, heapFootprint);
+	}
+
+}
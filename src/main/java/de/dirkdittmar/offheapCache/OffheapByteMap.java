@@ -1,35 +1,115 @@
 package de.dirkdittmar.offheapCache;
 
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.dirkdittmar.offheapCache.internal.CursorCollections;
 import de.dirkdittmar.offheapCache.internal.InternalOffheapMap;
 import de.dirkdittmar.offheapCache.internal.Procedure;
-
+import de.dirkdittmar.offheapCache.internal.Snapshot;
+
+/**
+ * Guards a map with a {@link StampedLock}. The lookups read optimistically:
+ * without locking, and validating the stamp afterwards. Only if a writer got
+ * in between they retry with the read lock. As a writer may change the map
+ * during an optimistic read, any exception of such a read is ignored if the
+ * stamp is invalid.
+ * <p>
+ * With {@link Eviction#LRU} or {@link Eviction#TINY_LFU} a lookup changes the
+ * map, so get and read take the write lock instead; with
+ * {@link Eviction#CLOCK} they take the read lock.
+ */
 public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 
-	private final ReadWriteLock rwLock = new ReentrantReadWriteLock(true);
+	private final StampedLock lock = new StampedLock();
 
 	private final CompactableConcurrentMap<K, byte[]> map;
 
+	private final LookupLock lookupLock;
+
 	public OffheapByteMap(final int size) {
 		this(new InternalOffheapMap<K>(size));
 	}
+
+	public OffheapByteMap(final int size, final AllocationStrategy strategy) {
+		this(new InternalOffheapMap<K>(size, strategy));
+	}
+
+	public OffheapByteMap(final OffheapMapConfig config) {
+		this(new InternalOffheapMap<K>(config), lookupLock(config));
+	}
+
+	/**
+	 * Keeps the keys and the index off-heap too; the keys are converted with
+	 * the keyConverter.
+	 */
+	public OffheapByteMap(final OffheapMapConfig config,
+			final ByteConverter<K> keyConverter) {
+		this(new InternalOffheapMap<K>(config, keyConverter),
+				lookupLock(config));
+		checkArgument(keyConverter != null, "keyConverter != null");
+	}
 	
 	/**
 	 * For internal use or testing only!
 	 */
 	OffheapByteMap(final CompactableConcurrentMap<K, byte[]> map) {
+		this(map, LookupLock.OPTIMISTIC);
+	}
+
+	/**
+	 * For internal use or testing only!
+	 */
+	OffheapByteMap(final CompactableConcurrentMap<K, byte[]> map,
+			final LookupLock lookupLock) {
 		this.map = map;
+		this.lookupLock = lookupLock;
+	}
+
+	/**
+	 * How get and read lock the map.
+	 */
+	enum LookupLock {
+		OPTIMISTIC, READ, WRITE
+	}
+
+	private static LookupLock lookupLock(final OffheapMapConfig config) {
+		if (config == null) {
+			return LookupLock.OPTIMISTIC;
+		}
+		switch (config.eviction()) {
+		case LRU:
+		case TINY_LFU:
+			return LookupLock.WRITE;
+		case CLOCK:
+			return LookupLock.READ;
+		default:
+			return LookupLock.OPTIMISTIC;
+		}
 	}
 
 	@Override
 	public int size() {
-		return doWithReadLock(new Procedure<Integer>() {
+		return doWithOptimisticRead(new Procedure<Integer>() {
 
 			@Override
 			public Integer call() {
@@ -40,7 +120,7 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 
 	@Override
 	public boolean isEmpty() {
-		return doWithReadLock(new Procedure<Boolean>() {
+		return doWithOptimisticRead(new Procedure<Boolean>() {
 
 			@Override
 			public Boolean call() {
@@ -51,7 +131,7 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 
 	@Override
 	public boolean containsKey(final Object key) {
-		return doWithReadLock(new Procedure<Boolean>() {
+		return doWithOptimisticRead(new Procedure<Boolean>() {
 
 			@Override
 			public Boolean call() {
@@ -73,22 +153,62 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 
 	@Override
 	public byte[] get(final Object key) {
-		return doWithReadLock(new Procedure<byte[]>() {
+		if (lookupLock != LookupLock.OPTIMISTIC) {
+			return doWithLookupLock(new Procedure<byte[]>() {
+
+				@Override
+				public byte[] call() {
+					return map.get(key);
+				}
+			});
+		}
+		// the hot path, so no Procedure here
+		final long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				// validate before the array is allocated, a torn length could
+				// be anything
+				final ByteBuffer view = map.read(key, Function.identity());
+				if (lock.validate(stamp)) {
+					final byte[] result = view == null ? null
+							: CursorCollections.toBytes(view);
+					if (lock.validate(stamp)) {
+						return result;
+					}
+				}
+			} catch (final RuntimeException e) {
+				if (lock.validate(stamp)) {
+					throw e;
+				}
+			}
+		}
+		final long readStamp = lock.readLock();
+		try {
+			return map.get(key);
+		} finally {
+			lock.unlockRead(readStamp);
+		}
+	}
+
+	@Override
+	public byte[] put(final K key, final byte[] value) {
+		return doWithWriteLock(new Procedure<byte[]>() {
 
 			@Override
 			public byte[] call() {
-				return map.get(key);
+				return map.put(key, value);
 			}
 		});
 	}
 
 	@Override
-	public byte[] put(final K key, final byte[] value) {
+	public byte[] put(final K key, final byte[] value, final long ttl,
+			final TimeUnit unit) {
 		return doWithWriteLock(new Procedure<byte[]>() {
 
 			@Override
 			public byte[] call() {
-				return map.put(key, value);
+				return map.put(key, value, ttl, unit);
 			}
 		});
 	}
@@ -104,6 +224,20 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 		});
 	}
 
+	/**
+	 * Holds the lock of a lookup for all the keys, at least the read lock.
+	 */
+	@Override
+	public Map<K, byte[]> getAll(final Collection<? extends K> keys) {
+		return doWithLookupLock(new Procedure<Map<K, byte[]>>() {
+
+			@Override
+			public Map<K, byte[]> call() {
+				return map.getAll(keys);
+			}
+		});
+	}
+
 	@Override
 	public void putAll(final Map<? extends K, ? extends byte[]> m) {
 		doWithWriteLock(new Procedure<Void>() {
@@ -115,6 +249,17 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 		});
 	}
 
+	@Override
+	public int removeAll(final Collection<?> keys) {
+		return doWithWriteLock(new Procedure<Integer>() {
+
+			@Override
+			public Integer call() {
+				return map.removeAll(keys);
+			}
+		});
+	}
+
 	@Override
 	public void clear() {
 		doWithWriteLock(new Procedure<Void>() {
@@ -139,25 +284,80 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
 	public Collection<byte[]> values() {
-		throw new UnsupportedOperationException();
+		return CursorCollections.values(this, CursorCollections::toBytes);
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
 	public Set<java.util.Map.Entry<K, byte[]>> entrySet() {
-		throw new UnsupportedOperationException();
+		return CursorCollections.entrySet(this, CursorCollections::toBytes);
+	}
+
+	/**
+	 * Holds the read lock for one batch at a time; the parts of a split lock
+	 * on their own, so they can walk in parallel.
+	 */
+	@Override
+	public Cursor<K> cursor(final int batchSize) {
+		return lockedCursor(map.cursor(batchSize));
+	}
+
+	private Cursor<K> lockedCursor(final Cursor<K> cursor) {
+		return new Cursor<K>() {
+
+			@Override
+			public boolean next(
+					final BiConsumer<? super K, ? super ByteBuffer> visitor) {
+				return doWithReadLock(new Procedure<Boolean>() {
+
+					@Override
+					public Boolean call() {
+						return cursor.next(visitor);
+					}
+				});
+			}
+
+			@Override
+			public Cursor<K> trySplit() {
+				return doWithReadLock(new Procedure<Cursor<K>>() {
+
+					@Override
+					public Cursor<K> call() {
+						final Cursor<K> split = cursor.trySplit();
+						return split == null ? null : lockedCursor(split);
+					}
+				});
+			}
+
+			@Override
+			public long estimateSize() {
+				return cursor.estimateSize();
+			}
+		};
+	}
+
+	@Override
+	public void scan(final BiConsumer<? super K, ? super ByteBuffer> action) {
+		CursorCollections.scan(this, action);
+	}
+
+	@Override
+	public int removeIf(final BiPredicate<? super K, ? super ByteBuffer> filter) {
+		return CursorCollections.removeIf(this, filter);
+	}
+
+	@Override
+	public <R> Spliterator<R> spliterator(
+			final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+		return CursorCollections.spliterator(this, reader);
 	}
 
 	@Override
@@ -205,6 +405,66 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 		});
 	}
 
+	/**
+	 * Runs the function under the write lock, so it must not use this map.
+	 */
+	@Override
+	public byte[] compute(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		return doWithWriteLock(new Procedure<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return map.compute(key, remappingFunction);
+			}
+		});
+	}
+
+	/**
+	 * Runs the function under the write lock, so it must not use this map.
+	 */
+	@Override
+	public byte[] computeIfPresent(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		return doWithWriteLock(new Procedure<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return map.computeIfPresent(key, remappingFunction);
+			}
+		});
+	}
+
+	/**
+	 * Runs the function under the write lock, so it must not use this map.
+	 */
+	@Override
+	public byte[] computeIfAbsent(final K key,
+			final Function<? super K, ? extends byte[]> mappingFunction) {
+		return doWithWriteLock(new Procedure<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return map.computeIfAbsent(key, mappingFunction);
+			}
+		});
+	}
+
+	/**
+	 * Runs the function under the write lock, so it must not use this map.
+	 */
+	@Override
+	public byte[] merge(final K key, final byte[] value,
+			final BiFunction<? super byte[], ? super byte[], ? extends byte[]> remappingFunction) {
+		return doWithWriteLock(new Procedure<byte[]>() {
+
+			@Override
+			public byte[] call() {
+				return map.merge(key, value, remappingFunction);
+			}
+		});
+	}
+
 	@Override
 	public void compact() {
 		doWithWriteLock(new Procedure<Void>() {
@@ -217,23 +477,216 @@ public class OffheapByteMap<K> implements CompactableConcurrentMap<K, byte[]> {
 		});
 	}
 
+	@Override
+	public void close() {
+		doWithWriteLock(new Procedure<Void>() {
+
+			@Override
+			public Void call() {
+				map.close();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Writes the entries to the file, replacing it once the snapshot is
+	 * complete. The write lock is held for the cut only; the chunks of the
+	 * entries go from the off-heap memory to the file while the map is in
+	 * use, see {@link InternalOffheapMap#beginSnapshot()} for what that
+	 * means for the writers.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             without a keyConverter
+	 * @throws UncheckedIOException
+	 *             if the file can't be written
+	 */
+	public void snapshot(final Path file) {
+		checkArgument(file != null, "file != null");
+		final InternalOffheapMap<K> internalMap = internalMap();
+		final Snapshot snapshot = doWithWriteLock(new Procedure<Snapshot>() {
+
+			@Override
+			public Snapshot call() {
+				return internalMap.beginSnapshot();
+			}
+		});
+		try {
+			final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try (FileChannel channel = FileChannel.open(tmp,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				snapshot.write(channel);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			doWithWriteLock(new Procedure<Void>() {
+
+				@Override
+				public Void call() {
+					internalMap.endSnapshot();
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Replaces the entries with the ones of a {@link #snapshot(Path)}, under
+	 * the write lock. The file is read straight into the off-heap memory.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             without a keyConverter
+	 * @throws UncheckedIOException
+	 *             if the file can't be read
+	 * @see InternalOffheapMap#restore(java.nio.channels.ReadableByteChannel)
+	 */
+	public void restore(final Path file) {
+		checkArgument(file != null, "file != null");
+		final InternalOffheapMap<K> internalMap = internalMap();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			doWithWriteLock(new Procedure<Void>() {
+
+				@Override
+				public Void call() {
+					try {
+						internalMap.restore(channel);
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return null;
+				}
+			});
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private InternalOffheapMap<K> internalMap() {
+		if (!(map instanceof InternalOffheapMap)) {
+			throw new UnsupportedOperationException("no snapshot of a "
+					+ map.getClass().getName());
+		}
+		return (InternalOffheapMap<K>) map;
+	}
+
+	/**
+	 * Holds the write lock for this step only; readers and writers get their
+	 * turn between two steps.
+	 */
+	@Override
+	public boolean compactStep(final int maxBytes) {
+		return doWithWriteLock(new Procedure<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return map.compactStep(maxBytes);
+			}
+		});
+	}
+
+	@Override
+	public MemStats memStats() {
+		return doWithReadLock(new Procedure<MemStats>() {
+
+			@Override
+			public MemStats call() {
+				return map.memStats();
+			}
+		});
+	}
+
+	/**
+	 * Holds the read lock during the call, so writers wait for the reader; the
+	 * write lock if the lookups change the map.
+	 */
+	@Override
+	public <R> R read(final Object key,
+			final Function<? super ByteBuffer, ? extends R> reader) {
+		final Procedure<R> proc = new Procedure<R>() {
+
+			@Override
+			public R call() {
+				return map.read(key, reader);
+			}
+		};
+		return doWithLookupLock(proc);
+	}
+
+	@Override
+	public <R> R write(final K key, final int size,
+			final Consumer<? super ByteBuffer> writer,
+			final Function<? super ByteBuffer, ? extends R> previous) {
+		return doWithWriteLock(new Procedure<R>() {
+
+			@Override
+			public R call() {
+				return map.write(key, size, writer, previous);
+			}
+		});
+	}
+
+	/**
+	 * Holds the write lock during the call, so the optimistic readers see the
+	 * change as a whole or retry.
+	 */
+	@Override
+	public boolean update(final Object key,
+			final Consumer<? super ByteBuffer> updater) {
+		return doWithWriteLock(new Procedure<Boolean>() {
+
+			@Override
+			public Boolean call() {
+				return map.update(key, updater);
+			}
+		});
+	}
+
+	private <T> T doWithOptimisticRead(final Procedure<T> proc) {
+		final long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				final T result = proc.call();
+				if (lock.validate(stamp)) {
+					return result;
+				}
+			} catch (final RuntimeException e) {
+				if (lock.validate(stamp)) {
+					throw e;
+				}
+			}
+		}
+		return doWithReadLock(proc);
+	}
+
+	/**
+	 * With the write lock if the lookups change the map, else the read lock.
+	 */
+	private <T> T doWithLookupLock(final Procedure<T> proc) {
+		return lookupLock == LookupLock.WRITE ? doWithWriteLock(proc)
+				: doWithReadLock(proc);
+	}
+
 	private <T> T doWithReadLock(final Procedure<T> proc) {
-		final Lock readLock = rwLock.readLock();
-		readLock.lock();
+		final long stamp = lock.readLock();
 		try {
 			return proc.call();
 		} finally {
-			readLock.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
 	private <T> T doWithWriteLock(final Procedure<T> proc) {
-		final Lock writeLock = rwLock.writeLock();
-		writeLock.lock();
+		final long stamp = lock.writeLock();
 		try {
 			return proc.call();
 		} finally {
-			writeLock.unlock();
+			lock.unlockWrite(stamp);
 		}
 	}
 
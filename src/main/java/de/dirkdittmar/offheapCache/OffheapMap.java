@@ -1,25 +1,80 @@
 package de.dirkdittmar.offheapCache;
 
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.dirkdittmar.offheapCache.internal.CursorCollections;
 
+/**
+ * Converts the values with a {@link ByteConverter}. If it is a
+ * {@link BufferConverter}, get and put read and write the off-heap memory
+ * directly.
+ * <p>
+ * {@link #get(Object, Function)} and {@link #getAll(Collection, Function)}
+ * load missing values; concurrent misses of a key share one load.
+ */
 public class OffheapMap<K, V> implements CompactableConcurrentMap<K, V> {
 
 	private final ByteConverter<V> converter;
+
+	/**
+	 * The converter, if it is a BufferConverter; null otherwise.
+	 */
+	private final BufferConverter<V> bufferConverter;
 	
 	private final CompactableConcurrentMap<K, byte[]> map;
+
+	/**
+	 * The loads in flight by key.
+	 */
+	private final ConcurrentHashMap<K, Load<V>> loads = new ConcurrentHashMap<>();
 	
 	public OffheapMap(final ByteConverter<V> converter, final int size) {
 		this(converter, new OffheapByteMap<K>(size));
 	}
 
+	public OffheapMap(final ByteConverter<V> converter, final int size,
+			final AllocationStrategy strategy) {
+		this(converter, new OffheapByteMap<K>(size, strategy));
+	}
+
+	public OffheapMap(final ByteConverter<V> converter,
+			final OffheapMapConfig config) {
+		this(converter, new OffheapByteMap<K>(config));
+	}
+
+	/**
+	 * Keeps the keys and the index off-heap too; the keys are converted with
+	 * the keyConverter.
+	 */
+	public OffheapMap(final ByteConverter<V> converter,
+			final OffheapMapConfig config, final ByteConverter<K> keyConverter) {
+		this(converter, new OffheapByteMap<K>(config, keyConverter));
+	}
+
 	/**
 	 * For internal use or testing only!
 	 */
 	OffheapMap(final ByteConverter<V> converter, final CompactableConcurrentMap<K, byte[]> map) {
 		this.converter = converter;
+		this.bufferConverter = converter instanceof BufferConverter
+				? (BufferConverter<V>) converter : null;
 		this.map = map;
 	}
 
@@ -50,6 +105,43 @@ public class OffheapMap<K, V> implements CompactableConcurrentMap<K, V> {
 		return converter.toValue(result);
 	}
 
+	@Override
+	public V compute(final K key,
+			final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final byte[] result = map.compute(key, (k, bytes) -> converter
+				.toBytes(remappingFunction.apply(k, converter.toValue(bytes))));
+		return converter.toValue(result);
+	}
+
+	@Override
+	public V computeIfPresent(final K key,
+			final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final byte[] result = map.computeIfPresent(key, (k, bytes) -> converter
+				.toBytes(remappingFunction.apply(k, converter.toValue(bytes))));
+		return converter.toValue(result);
+	}
+
+	@Override
+	public V computeIfAbsent(final K key,
+			final Function<? super K, ? extends V> mappingFunction) {
+		checkArgument(mappingFunction != null, "mappingFunction != null");
+		final byte[] result = map.computeIfAbsent(key,
+				k -> converter.toBytes(mappingFunction.apply(k)));
+		return converter.toValue(result);
+	}
+
+	@Override
+	public V merge(final K key, final V value,
+			final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final byte[] result = map.merge(key, converter.toBytes(value),
+				(oldBytes, bytes) -> converter.toBytes(remappingFunction.apply(
+						converter.toValue(oldBytes), converter.toValue(bytes))));
+		return converter.toValue(result);
+	}
+
 	@Override
 	public int size() {
 		return map.size();
@@ -72,17 +164,205 @@ public class OffheapMap<K, V> implements CompactableConcurrentMap<K, V> {
 
 	@Override
 	public V get(final Object key) {
+		if (bufferConverter != null) {
+			return map.read(key, bufferConverter::read);
+		}
 		final byte[] result = map.get(key);
 		return converter.toValue(result);
 	}
 
+	/**
+	 * Returns the value of the key, loading and storing it on a miss. If other
+	 * threads miss the key at the same time, only one of them calls the
+	 * loader; the others wait for it and get the same value. The loader runs
+	 * without holding a lock of this map.
+	 * 
+	 * @param loader
+	 *            returns the value of the key or null if it has none
+	 * @return the value or null if the loader returned null
+	 * @throws IllegalStateException
+	 *             if the loader gets the key it is loading, which would wait
+	 *             for itself
+	 */
+	public V get(final K key, final Function<? super K, ? extends V> loader) {
+		checkArgument(key != null, "key != null");
+		checkArgument(loader != null, "loader != null");
+		final V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		final Load<V> load = new Load<>();
+		final Load<V> other = loads.putIfAbsent(key, load);
+		if (other != null) {
+			return join(other);
+		}
+		try {
+			final V result = load(key, loader);
+			load.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loads.remove(key, load);
+		}
+	}
+
+	/**
+	 * Returns the values of the keys, loading the missing ones with one call
+	 * of the bulkLoader. Keys another thread is already loading are not
+	 * passed to it; their loads are waited for instead, as in
+	 * {@link #get(Object, Function)}.
+	 * 
+	 * @param bulkLoader
+	 *            returns the values of the keys it gets; keys without a value
+	 *            may be left out
+	 * @return the keys with a value
+	 */
+	public Map<K, V> getAll(final Collection<? extends K> keys,
+			final Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader) {
+		checkArgument(keys != null, "keys != null");
+		checkArgument(bulkLoader != null, "bulkLoader != null");
+		final Map<K, V> result = new HashMap<>();
+		final Map<K, Load<V>> ownLoads = new HashMap<>();
+		final Map<K, Load<V>> otherLoads = new HashMap<>();
+		for (final K key : keys) {
+			checkArgument(key != null, "key != null");
+			final V value = get(key);
+			if (value != null) {
+				result.put(key, value);
+			} else if (!ownLoads.containsKey(key)
+					&& !otherLoads.containsKey(key)) {
+				final Load<V> load = new Load<>();
+				final Load<V> other = loads.putIfAbsent(key, load);
+				if (other != null) {
+					otherLoads.put(key, other);
+				} else {
+					ownLoads.put(key, load);
+				}
+			}
+		}
+		if (!ownLoads.isEmpty()) {
+			try {
+				loadAll(ownLoads.keySet(), bulkLoader, result);
+				for (final Map.Entry<K, Load<V>> entry : ownLoads.entrySet()) {
+					entry.getValue().complete(result.get(entry.getKey()));
+				}
+			} catch (RuntimeException | Error e) {
+				for (final Load<V> load : ownLoads.values()) {
+					load.completeExceptionally(e);
+				}
+				throw e;
+			} finally {
+				for (final Map.Entry<K, Load<V>> entry : ownLoads.entrySet()) {
+					loads.remove(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for (final Map.Entry<K, Load<V>> entry : otherLoads.entrySet()) {
+			final V value = join(entry.getValue());
+			if (value != null) {
+				result.put(entry.getKey(), value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Another load may have stored the value between the miss and the start
+	 * of this load, so this looks again first.
+	 */
+	private V load(final K key, final Function<? super K, ? extends V> loader) {
+		final V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		return store(key, loader.apply(key));
+	}
+
+	private void loadAll(final Set<K> keys,
+			final Function<? super Set<K>, ? extends Map<? extends K, ? extends V>> bulkLoader,
+			final Map<K, V> result) {
+		final Set<K> missing = new HashSet<>();
+		for (final K key : keys) {
+			final V value = get(key);
+			if (value != null) {
+				result.put(key, value);
+			} else {
+				missing.add(key);
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+		final Map<? extends K, ? extends V> loaded = bulkLoader.apply(missing);
+		if (loaded == null) {
+			return;
+		}
+		for (final K key : missing) {
+			final V value = store(key, loaded.get(key));
+			if (value != null) {
+				result.put(key, value);
+			}
+		}
+	}
+
+	/**
+	 * Stores a loaded value unless a put got in first.
+	 * 
+	 * @return the value in the map
+	 */
+	private V store(final K key, final V value) {
+		if (value == null) {
+			return null;
+		}
+		final V existing = putIfAbsent(key, value);
+		return existing != null ? existing : value;
+	}
+
+	/**
+	 * Waits for a load of another thread and rethrows its exception. A load
+	 * of the current thread would never complete, as with
+	 * {@link ConcurrentHashMap#computeIfAbsent(Object, Function)}.
+	 */
+	private static <V> V join(final Load<V> load) {
+		if (load.thread == Thread.currentThread()) {
+			throw new IllegalStateException("Recursive load");
+		}
+		try {
+			return load.join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
 	@Override
 	public V put(final K key, final V value) {
+		if (bufferConverter != null) {
+			checkArgument(value != null, "value != null");
+			return map.write(key, bufferConverter.size(value),
+					target -> bufferConverter.write(value, target),
+					bufferConverter::read);
+		}
 		final byte[] valueBytes = converter.toBytes(value);
 		final byte[] result = map.put(key, valueBytes);
 		return converter.toValue(result);
 	}
 
+	@Override
+	public V put(final K key, final V value, final long ttl,
+			final TimeUnit unit) {
+		final byte[] valueBytes = converter.toBytes(value);
+		final byte[] result = map.put(key, valueBytes, ttl, unit);
+		return converter.toValue(result);
+	}
+
 	@Override
 	public V remove(final Object key) {
 		final byte[] result = map.remove(key);
@@ -98,6 +378,21 @@ public class OffheapMap<K, V> implements CompactableConcurrentMap<K, V> {
 		map.putAll(tmp);
 	}
 
+	@Override
+	public Map<K, V> getAll(final Collection<? extends K> keys) {
+		final Map<K, byte[]> values = map.getAll(keys);
+		final Map<K, V> result = new HashMap<>(values.size() * 4 / 3 + 1);
+		for (final Map.Entry<K, byte[]> entry : values.entrySet()) {
+			result.put(entry.getKey(), converter.toValue(entry.getValue()));
+		}
+		return result;
+	}
+
+	@Override
+	public int removeAll(final Collection<?> keys) {
+		return map.removeAll(keys);
+	}
+
 	@Override
 	public void clear() {
 		map.clear();
@@ -109,30 +404,101 @@ public class OffheapMap<K, V> implements CompactableConcurrentMap<K, V> {
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that converts the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
 	public Collection<V> values() {
-		throw new UnsupportedOperationException();
+		return CursorCollections.values(map, this::toValue);
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that converts the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
 	public Set<java.util.Map.Entry<K, V>> entrySet() {
-		throw new UnsupportedOperationException();
+		return CursorCollections.entrySet(map, this::toValue);
+	}
+
+	/**
+	 * The visitor gets the bytes of the values; {@link BufferConverter#read}
+	 * converts them without a copy.
+	 */
+	@Override
+	public Cursor<K> cursor(final int batchSize) {
+		return map.cursor(batchSize);
+	}
+
+	@Override
+	public void scan(final BiConsumer<? super K, ? super ByteBuffer> action) {
+		map.scan(action);
+	}
+
+	@Override
+	public int removeIf(final BiPredicate<? super K, ? super ByteBuffer> filter) {
+		return map.removeIf(filter);
+	}
+
+	@Override
+	public <R> Spliterator<R> spliterator(
+			final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+		return map.spliterator(reader);
+	}
+
+	private V toValue(final ByteBuffer buffer) {
+		if (bufferConverter != null) {
+			return bufferConverter.read(buffer);
+		}
+		return converter.toValue(CursorCollections.toBytes(buffer));
 	}
 
 	@Override
 	public void compact() {
 		map.compact();
 	}
+
+	@Override
+	public boolean compactStep(final int maxBytes) {
+		return map.compactStep(maxBytes);
+	}
+
+	@Override
+	public void close() {
+		map.close();
+	}
+
+	@Override
+	public MemStats memStats() {
+		return map.memStats();
+	}
+
+	@Override
+	public <R> R read(final Object key,
+			final Function<? super ByteBuffer, ? extends R> reader) {
+		return map.read(key, reader);
+	}
+
+	@Override
+	public <R> R write(final K key, final int size,
+			final Consumer<? super ByteBuffer> writer,
+			final Function<? super ByteBuffer, ? extends R> previous) {
+		return map.write(key, size, writer, previous);
+	}
+
+	@Override
+	public boolean update(final Object key,
+			final Consumer<? super ByteBuffer> updater) {
+		return map.update(key, updater);
+	}
+
+	/**
+	 * A load in flight and the thread running it.
+	 */
+	private static final class Load<V> extends CompletableFuture<V> {
+
+		final Thread thread = Thread.currentThread();
+
+	}
 	
 }
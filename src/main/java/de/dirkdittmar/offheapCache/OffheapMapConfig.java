@@ -0,0 +1,143 @@
+package de.dirkdittmar.offheapCache;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.file.Path;
+
+/**
+ * The settings of an off-heap map. The setters return the config itself, so
+ * they can be chained:
+ * 
+ * <pre>
+ * new OffheapMapConfig(size).allocationStrategy(AllocationStrategy.SLAB)
+ * </pre>
+ */
+public class OffheapMapConfig {
+
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+	private final long size;
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private AllocationStrategy allocationStrategy = AllocationStrategy.FIRST_FIT;
+
+	private int compactionPauseBytes = UNLIMITED;
+
+	private Eviction eviction = Eviction.NONE;
+
+	private boolean expiry;
+
+	private Path file;
+
+	/**
+	 * @param size
+	 *            bytes of off-heap memory, may be more than 2 GiB
+	 */
+	public OffheapMapConfig(final long size) {
+		checkArgument(size > 0, "size > 0");
+		this.size = size;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public int segmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * The memory is split into segments of this size, each a direct
+	 * {@link java.nio.ByteBuffer}; a value must fit into one segment. Default
+	 * is {@link #DEFAULT_SEGMENT_SIZE}, 1 GiB.
+	 */
+	public OffheapMapConfig segmentSize(final int segmentSize) {
+		checkArgument(segmentSize > 0, "segmentSize > 0");
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	public AllocationStrategy allocationStrategy() {
+		return allocationStrategy;
+	}
+
+	public OffheapMapConfig allocationStrategy(
+			final AllocationStrategy allocationStrategy) {
+		checkArgument(allocationStrategy != null, "allocationStrategy != null");
+		this.allocationStrategy = allocationStrategy;
+		return this;
+	}
+
+	public int compactionPauseBytes() {
+		return compactionPauseBytes;
+	}
+
+	/**
+	 * How many bytes a compaction step of a put may move, if it runs out of
+	 * space. With {@link #UNLIMITED}, the default, the put compacts the whole
+	 * map. Otherwise it calls {@link CompactableConcurrentMap#compactStep(int)}
+	 * once and, if the value still doesn't fit, evicts or fails, although the
+	 * free bytes might suffice after more steps. So the pause of a put stays
+	 * bounded; the rest of the compaction is left to
+	 * {@link CompactionScheduler} or to the next puts.
+	 */
+	public OffheapMapConfig compactionPauseBytes(final int compactionPauseBytes) {
+		checkArgument(compactionPauseBytes > 0, "compactionPauseBytes > 0");
+		this.compactionPauseBytes = compactionPauseBytes;
+		return this;
+	}
+
+	public Eviction eviction() {
+		return eviction;
+	}
+
+	/**
+	 * What a put does if there is no space left, even after compacting.
+	 * Default is {@link Eviction#NONE}.
+	 */
+	public OffheapMapConfig eviction(final Eviction eviction) {
+		checkArgument(eviction != null, "eviction != null");
+		this.eviction = eviction;
+		return this;
+	}
+
+	public boolean expiry() {
+		return expiry;
+	}
+
+	/**
+	 * Lets the entries expire, see
+	 * {@link CompactableConcurrentMap#put(Object, Object, long, java.util.concurrent.TimeUnit)
+	 * put with ttl}. Costs 12 bytes per entry in the off-heap memory and about
+	 * 28 bytes per expiring entry on the heap. Default is false.
+	 */
+	public OffheapMapConfig expiry(final boolean expiry) {
+		this.expiry = expiry;
+		return this;
+	}
+
+	public Path file() {
+		return file;
+	}
+
+	/**
+	 * Keeps the values in this file, mapped with a
+	 * {@link java.nio.MappedByteBuffer} per segment, instead of the process
+	 * memory. {@link CompactableConcurrentMap#close()} writes the index next
+	 * to it, to <code>file.index</code>, and a map opened later with the same
+	 * file and settings starts with the entries of the old one. If the
+	 * process ends without a close, the next map starts empty.
+	 * <p>
+	 * Needs the keys in the off-heap memory, i.e. a keyConverter, and an
+	 * allocation strategy that compacts, not {@link AllocationStrategy#BUDDY}.
+	 * Default is null, no file.
+	 */
+	public OffheapMapConfig file(final Path file) {
+		this.file = file;
+		return this;
+	}
+
+}
@@ -0,0 +1,226 @@
+package de.dirkdittmar.offheapCache;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * A fixed layout of fields in a value, so single fields can be read and
+ * written in place without converting the whole value. Declare the fields
+ * once, then use them with the views of
+ * {@link CompactableConcurrentMap#read(Object, java.util.function.Function)
+ * read}, {@link CompactableConcurrentMap#update(Object, Consumer)
+ * update} and
+ * {@link CompactableConcurrentMap#write(Object, int, Consumer, java.util.function.Function)
+ * write}:
+ *
+ * <pre>
+ * RecordLayout layout = new RecordLayout();
+ * LongField timestamp = layout.addLong();
+ * ByteField status = layout.addByte();
+ *
+ * map.write(key, layout.size(), layout.writer(record -&gt; {
+ * 	timestamp.set(record, now);
+ * 	status.set(record, ACTIVE);
+ * }), null);
+ * long ts = map.read(key, timestamp::get);
+ * map.update(key, record -&gt; status.set(record, DELETED));
+ * </pre>
+ *
+ * The fields use absolute positions relative to the start of the view and
+ * keep no state, so they can be shared between threads.
+ */
+public class RecordLayout {
+
+	private int size;
+
+	/**
+	 * @return the bytes of a record
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The fields don't move the position, but
+	 * {@link CompactableConcurrentMap#write(Object, int, Consumer, java.util.function.Function)
+	 * write} expects a filled buffer. So this marks the record as written
+	 * after the fields are set.
+	 */
+	public Consumer<ByteBuffer> writer(final Consumer<? super ByteBuffer> fields) {
+		checkArgument(fields != null, "fields != null");
+		return record -> {
+			fields.accept(record);
+			record.position(record.position() + size);
+		};
+	}
+
+	private int add(final int fieldSize) {
+		final int offset = size;
+		size += fieldSize;
+		return offset;
+	}
+
+	public ByteField addByte() {
+		return new ByteField(add(1));
+	}
+
+	public ShortField addShort() {
+		return new ShortField(add(2));
+	}
+
+	public IntField addInt() {
+		return new IntField(add(4));
+	}
+
+	public LongField addLong() {
+		return new LongField(add(8));
+	}
+
+	public DoubleField addDouble() {
+		return new DoubleField(add(8));
+	}
+
+	public BytesField addBytes(final int length) {
+		checkArgument(length > 0, "length > 0");
+		return new BytesField(add(length), length);
+	}
+
+	public abstract static class Field {
+
+		protected final int offset;
+
+		Field(final int offset) {
+			this.offset = offset;
+		}
+
+		public int offset() {
+			return offset;
+		}
+
+	}
+
+	public static class ByteField extends Field {
+
+		ByteField(final int offset) {
+			super(offset);
+		}
+
+		public byte get(final ByteBuffer record) {
+			return record.get(offset);
+		}
+
+		public void set(final ByteBuffer record, final byte value) {
+			record.put(offset, value);
+		}
+
+	}
+
+	public static class ShortField extends Field {
+
+		ShortField(final int offset) {
+			super(offset);
+		}
+
+		public short get(final ByteBuffer record) {
+			return record.getShort(offset);
+		}
+
+		public void set(final ByteBuffer record, final short value) {
+			record.putShort(offset, value);
+		}
+
+	}
+
+	public static class IntField extends Field {
+
+		IntField(final int offset) {
+			super(offset);
+		}
+
+		public int get(final ByteBuffer record) {
+			return record.getInt(offset);
+		}
+
+		public void set(final ByteBuffer record, final int value) {
+			record.putInt(offset, value);
+		}
+
+	}
+
+	public static class LongField extends Field {
+
+		LongField(final int offset) {
+			super(offset);
+		}
+
+		public long get(final ByteBuffer record) {
+			return record.getLong(offset);
+		}
+
+		public void set(final ByteBuffer record, final long value) {
+			record.putLong(offset, value);
+		}
+
+	}
+
+	public static class DoubleField extends Field {
+
+		DoubleField(final int offset) {
+			super(offset);
+		}
+
+		public double get(final ByteBuffer record) {
+			return record.getDouble(offset);
+		}
+
+		public void set(final ByteBuffer record, final double value) {
+			record.putDouble(offset, value);
+		}
+
+	}
+
+	public static class BytesField extends Field {
+
+		private final int length;
+
+		BytesField(final int offset, final int length) {
+			super(offset);
+			this.length = length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public byte[] get(final ByteBuffer record) {
+			final byte[] result = new byte[length];
+			get(record, result);
+			return result;
+		}
+
+		/**
+		 * Reads the field into dst, which must have the length of the field.
+		 */
+		public void get(final ByteBuffer record, final byte[] dst) {
+			checkArgument(dst.length == length, "dst.length == length");
+			final ByteBuffer view = record.duplicate();
+			view.position(offset);
+			view.get(dst);
+		}
+
+		/**
+		 * Writes value to the field, which must have the length of the
+		 * field.
+		 */
+		public void set(final ByteBuffer record, final byte[] value) {
+			checkArgument(value.length == length, "value.length == length");
+			final ByteBuffer view = record.duplicate();
+			view.position(offset);
+			view.put(value);
+		}
+
+	}
+
+}
@@ -0,0 +1,439 @@
+package de.dirkdittmar.offheapCache;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.dirkdittmar.offheapCache.internal.CursorCollections;
+
+/**
+ * Splits the keys by hash over several {@link OffheapByteMap}s, the stripes.
+ * Each stripe has its own lock and its own off-heap memory, so threads
+ * working on different stripes don't contend.
+ * <p>
+ * The memory is divided equally: a stripe gets <code>size / stripes</code>
+ * bytes, and a value must fit into one stripe. The whole-map operations like
+ * {@link #size()} or {@link #clear()} visit the stripes one after the other;
+ * they are not atomic across the stripes.
+ */
+public class StripedOffheapByteMap<K> implements
+		CompactableConcurrentMap<K, byte[]> {
+
+	private final List<CompactableConcurrentMap<K, byte[]>> stripes;
+
+	public StripedOffheapByteMap(final int size, final int stripes) {
+		this(new OffheapMapConfig(size), stripes);
+	}
+
+	public StripedOffheapByteMap(final OffheapMapConfig config,
+			final int stripes) {
+		this(config, stripes, null);
+	}
+
+	/**
+	 * Keeps the keys and the index off-heap too; the keys are converted with
+	 * the keyConverter.
+	 */
+	public StripedOffheapByteMap(final OffheapMapConfig config,
+			final int stripes, final ByteConverter<K> keyConverter) {
+		checkArgument(config != null, "config != null");
+		checkArgument(stripes > 0, "stripes > 0");
+		checkArgument(config.size() / stripes > 0, "size / stripes > 0");
+
+		this.stripes = new ArrayList<>(stripes);
+		for (int i = 0; i < stripes; i++) {
+			final OffheapMapConfig stripeConfig = new OffheapMapConfig(
+					config.size() / stripes)
+					.allocationStrategy(config.allocationStrategy())
+					.compactionPauseBytes(config.compactionPauseBytes())
+					.segmentSize(config.segmentSize())
+					.eviction(config.eviction())
+					.expiry(config.expiry());
+			if (config.file() != null) {
+				stripeConfig.file(config.file().resolveSibling(
+						config.file().getFileName() + "." + i));
+			}
+			if (keyConverter == null) {
+				this.stripes.add(new OffheapByteMap<K>(stripeConfig));
+			} else {
+				this.stripes.add(new OffheapByteMap<K>(stripeConfig,
+						keyConverter));
+			}
+		}
+	}
+
+	/**
+	 * For internal use or testing only!
+	 */
+	StripedOffheapByteMap(final List<CompactableConcurrentMap<K, byte[]>> stripes) {
+		this.stripes = stripes;
+	}
+
+	private CompactableConcurrentMap<K, byte[]> stripe(final Object key) {
+		checkArgument(key != null, "key != null");
+		int h = key.hashCode();
+		// spread the bits, HashMap keys often differ in the higher ones only
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return stripes.get((h & Integer.MAX_VALUE) % stripes.size());
+	}
+
+	@Override
+	public int size() {
+		int result = 0;
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			result += stripe.size();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			if (!stripe.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean containsKey(final Object key) {
+		return stripe(key).containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(final Object value) {
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			if (stripe.containsValue(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public byte[] get(final Object key) {
+		return stripe(key).get(key);
+	}
+
+	@Override
+	public byte[] put(final K key, final byte[] value) {
+		return stripe(key).put(key, value);
+	}
+
+	@Override
+	public byte[] put(final K key, final byte[] value, final long ttl,
+			final TimeUnit unit) {
+		return stripe(key).put(key, value, ttl, unit);
+	}
+
+	@Override
+	public byte[] remove(final Object key) {
+		return stripe(key).remove(key);
+	}
+
+	/**
+	 * Takes the lock of each stripe only once.
+	 */
+	@Override
+	public void putAll(final Map<? extends K, ? extends byte[]> m) {
+		final Map<CompactableConcurrentMap<K, byte[]>, Map<K, byte[]>> byStripe = new HashMap<>();
+		for (final Map.Entry<? extends K, ? extends byte[]> entry : m
+				.entrySet()) {
+			final CompactableConcurrentMap<K, byte[]> stripe = stripe(entry
+					.getKey());
+			Map<K, byte[]> entries = byStripe.get(stripe);
+			if (entries == null) {
+				entries = new HashMap<>();
+				byStripe.put(stripe, entries);
+			}
+			entries.put(entry.getKey(), entry.getValue());
+		}
+		for (final Map.Entry<CompactableConcurrentMap<K, byte[]>, Map<K, byte[]>> entry : byStripe
+				.entrySet()) {
+			entry.getKey().putAll(entry.getValue());
+		}
+	}
+
+	/**
+	 * Takes the lock of each stripe only once.
+	 */
+	@Override
+	public Map<K, byte[]> getAll(final Collection<? extends K> keys) {
+		final Map<K, byte[]> result = new HashMap<>();
+		for (final Map.Entry<CompactableConcurrentMap<K, byte[]>, List<K>> entry : this
+				.<K> byStripe(keys).entrySet()) {
+			result.putAll(entry.getKey().getAll(entry.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * Takes the lock of each stripe only once.
+	 */
+	@Override
+	public int removeAll(final Collection<?> keys) {
+		int result = 0;
+		for (final Map.Entry<CompactableConcurrentMap<K, byte[]>, List<Object>> entry : this
+				.<Object> byStripe(keys).entrySet()) {
+			result += entry.getKey().removeAll(entry.getValue());
+		}
+		return result;
+	}
+
+	private <T> Map<CompactableConcurrentMap<K, byte[]>, List<T>> byStripe(
+			final Collection<? extends T> keys) {
+		checkArgument(keys != null, "keys != null");
+		final Map<CompactableConcurrentMap<K, byte[]>, List<T>> result = new HashMap<>();
+		for (final T key : keys) {
+			final CompactableConcurrentMap<K, byte[]> stripe = stripe(key);
+			List<T> stripeKeys = result.get(stripe);
+			if (stripeKeys == null) {
+				stripeKeys = new ArrayList<>();
+				result.put(stripe, stripeKeys);
+			}
+			stripeKeys.add(key);
+		}
+		return result;
+	}
+
+	@Override
+	public void clear() {
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	@Override
+	public Set<K> keySet() {
+		final Set<K> result = new HashSet<>();
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			result.addAll(stripe.keySet());
+		}
+		return result;
+	}
+
+	/**
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
+	 */
+	@Override
+	public Collection<byte[]> values() {
+		return CursorCollections.values(this, CursorCollections::toBytes);
+	}
+
+	/**
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
+	 */
+	@Override
+	public Set<java.util.Map.Entry<K, byte[]>> entrySet() {
+		return CursorCollections.entrySet(this, CursorCollections::toBytes);
+	}
+
+	/**
+	 * Walks one stripe after the other. A split takes half of the stripes
+	 * not started yet, or a part of the last one.
+	 */
+	@Override
+	public Cursor<K> cursor(final int batchSize) {
+		checkArgument(batchSize > 0, "batchSize > 0");
+		return cursor(0, stripes.size(), batchSize);
+	}
+
+	/**
+	 * @return a cursor over the stripes from first to end, exclusive
+	 */
+	private Cursor<K> cursor(final int first, final int end,
+			final int batchSize) {
+		return new Cursor<K>() {
+
+			private int stripe = first;
+
+			private int limit = end;
+
+			/**
+			 * The cursor of the current stripe, null until it starts.
+			 */
+			private Cursor<K> cursor;
+
+			@Override
+			public boolean next(
+					final BiConsumer<? super K, ? super ByteBuffer> visitor) {
+				while (stripe < limit) {
+					if (current().next(visitor)) {
+						return true;
+					}
+					cursor = null;
+					stripe++;
+				}
+				return false;
+			}
+
+			@Override
+			public Cursor<K> trySplit() {
+				if (limit - stripe > 1) {
+					final int middle = (stripe + 1 + limit) / 2;
+					final Cursor<K> result = cursor(middle, limit, batchSize);
+					limit = middle;
+					return result;
+				}
+				return stripe < limit ? current().trySplit() : null;
+			}
+
+			@Override
+			public long estimateSize() {
+				long result = stripe < limit ? current().estimateSize() : 0;
+				for (int i = stripe + 1; i < limit; i++) {
+					result += stripes.get(i).size();
+				}
+				return result;
+			}
+
+			private Cursor<K> current() {
+				if (cursor == null) {
+					cursor = stripes.get(stripe).cursor(batchSize);
+				}
+				return cursor;
+			}
+		};
+	}
+
+	@Override
+	public void scan(final BiConsumer<? super K, ? super ByteBuffer> action) {
+		CursorCollections.scan(this, action);
+	}
+
+	@Override
+	public int removeIf(final BiPredicate<? super K, ? super ByteBuffer> filter) {
+		return CursorCollections.removeIf(this, filter);
+	}
+
+	@Override
+	public <R> Spliterator<R> spliterator(
+			final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+		return CursorCollections.spliterator(this, reader);
+	}
+
+	@Override
+	public byte[] putIfAbsent(final K key, final byte[] value) {
+		return stripe(key).putIfAbsent(key, value);
+	}
+
+	@Override
+	public boolean remove(final Object key, final Object value) {
+		return stripe(key).remove(key, value);
+	}
+
+	@Override
+	public boolean replace(final K key, final byte[] oldValue,
+			final byte[] newValue) {
+		return stripe(key).replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public byte[] replace(final K key, final byte[] value) {
+		return stripe(key).replace(key, value);
+	}
+
+	@Override
+	public byte[] compute(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		return stripe(key).compute(key, remappingFunction);
+	}
+
+	@Override
+	public byte[] computeIfPresent(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		return stripe(key).computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public byte[] computeIfAbsent(final K key,
+			final Function<? super K, ? extends byte[]> mappingFunction) {
+		return stripe(key).computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public byte[] merge(final K key, final byte[] value,
+			final BiFunction<? super byte[], ? super byte[], ? extends byte[]> remappingFunction) {
+		return stripe(key).merge(key, value, remappingFunction);
+	}
+
+	/**
+	 * Compacts one stripe after the other, the others stay usable.
+	 */
+	@Override
+	public void compact() {
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			stripe.compact();
+		}
+	}
+
+	/**
+	 * Closes each stripe; with a file, stripe i has the file
+	 * <code>file.i</code>.
+	 */
+	@Override
+	public void close() {
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			stripe.close();
+		}
+	}
+
+	/**
+	 * Runs a step on each stripe; a stripe is locked for its step only.
+	 */
+	@Override
+	public boolean compactStep(final int maxBytes) {
+		boolean result = false;
+		for (final CompactableConcurrentMap<K, byte[]> stripe : stripes) {
+			result |= stripe.compactStep(maxBytes);
+		}
+		return result;
+	}
+
+	@Override
+	public <R> R read(final Object key,
+			final Function<? super ByteBuffer, ? extends R> reader) {
+		return stripe(key).read(key, reader);
+	}
+
+	@Override
+	public <R> R write(final K key, final int size,
+			final Consumer<? super ByteBuffer> writer,
+			final Function<? super ByteBuffer, ? extends R> previous) {
+		return stripe(key).write(key, size, writer, previous);
+	}
+
+	@Override
+	public boolean update(final Object key,
+			final Consumer<? super ByteBuffer> updater) {
+		return stripe(key).update(key, updater);
+	}
+
+	@Override
+	public MemStats memStats() {
+		MemStats result = stripes.get(0).memStats();
+		for (int i = 1; i < stripes.size(); i++) {
+			result = result.add(stripes.get(i).memStats());
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,98 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * CLOCK, or second chance: the header of a chunk is the number of its node
+ * and a reference byte. An access sets the byte, nothing else, so concurrent
+ * accesses under a read lock are fine. The hand goes round the nodes in the
+ * order of their numbers; it clears the bytes it finds set and stops at the
+ * first entry with a clear one.
+ */
+class ClockPolicy extends EvictionPolicy {
+
+	private static final int NODE = 0;
+
+	private static final int REFERENCED = 4;
+
+	private static final int HEADER_SIZE = 5;
+
+	private final Arena arena;
+
+	private final Nodes nodes;
+
+	/**
+	 * The next node to look at.
+	 */
+	private int hand;
+
+	ClockPolicy(final Arena arena, final boolean keepKeys) {
+		this.arena = arena;
+		nodes = new Nodes(keepKeys);
+	}
+
+	@Override
+	int headerSize() {
+		return HEADER_SIZE;
+	}
+
+	@Override
+	void inserted(final long header, final ArenaChunk chunk, final Object key,
+			final int hash) {
+		final int node = nodes.add(chunk, key);
+		arena.putInt(header + NODE, node);
+		arena.put(header + REFERENCED, (byte) 0);
+	}
+
+	@Override
+	void accessed(final long header) {
+		arena.put(header + REFERENCED, (byte) 1);
+	}
+
+	@Override
+	void removed(final long header) {
+		nodes.remove(arena.getInt(header + NODE));
+	}
+
+	@Override
+	void relocated(final long header, final ArenaChunk chunk) {
+		nodes.chunk(arena.getInt(header + NODE), chunk);
+	}
+
+	@Override
+	int victim() {
+		// in the second round all bits are clear
+		for (int i = 0; i < 2 * nodes.capacity(); i++) {
+			if (hand >= nodes.capacity()) {
+				hand = 0;
+			}
+			final int node = hand++;
+			if (nodes.isUsed(node)) {
+				final long referenced = header(nodes.chunk(node)) + REFERENCED;
+				if (arena.get(referenced) == 0) {
+					return node;
+				}
+				arena.put(referenced, (byte) 0);
+			}
+		}
+		return NO_VICTIM;
+	}
+
+	@Override
+	ArenaChunk chunk(final int victim) {
+		return nodes.chunk(victim);
+	}
+
+	@Override
+	Object key(final int victim) {
+		return nodes.key(victim);
+	}
+
+	@Override
+	void clear() {
+		nodes.clear();
+		hand = 0;
+	}
+
+}
@@ -0,0 +1,300 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import de.dirkdittmar.offheapCache.CompactableConcurrentMap;
+import de.dirkdittmar.offheapCache.Cursor;
+
+/**
+ * The entrySet and values of a {@link CompactableConcurrentMap} as views:
+ * their iterators walk the map with a {@link Cursor}, so only one batch of
+ * values is on the heap at a time. They are weakly consistent like the
+ * cursor and never throw a ConcurrentModificationException.
+ * <p>
+ * The scans of the maps are built on the cursor here too.
+ */
+public final class CursorCollections {
+
+	static final int BATCH_SIZE = 256;
+
+	private CursorCollections() {
+	}
+
+	/**
+	 * @param reader
+	 *            makes a value from the view of its bytes
+	 */
+	public static <K, V> Set<Map.Entry<K, V>> entrySet(
+			final CompactableConcurrentMap<K, ?> map,
+			final Function<? super ByteBuffer, ? extends V> reader) {
+		return new AbstractSet<Map.Entry<K, V>>() {
+
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new CursorIterator<>(map, reader);
+			}
+
+			@Override
+			public int size() {
+				return map.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return map.isEmpty();
+			}
+
+			@Override
+			public void clear() {
+				map.clear();
+			}
+		};
+	}
+
+	/**
+	 * @param reader
+	 *            makes a value from the view of its bytes
+	 */
+	public static <K, V> Collection<V> values(
+			final CompactableConcurrentMap<K, ?> map,
+			final Function<? super ByteBuffer, ? extends V> reader) {
+		return new AbstractCollection<V>() {
+
+			@Override
+			public Iterator<V> iterator() {
+				final Iterator<Map.Entry<K, V>> entries = new CursorIterator<>(
+						map, reader);
+				return new Iterator<V>() {
+
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public V next() {
+						return entries.next().getValue();
+					}
+
+					@Override
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return map.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return map.isEmpty();
+			}
+
+			@Override
+			public void clear() {
+				map.clear();
+			}
+		};
+	}
+
+	/**
+	 * @see CompactableConcurrentMap#scan(BiConsumer)
+	 */
+	public static <K> void scan(final CompactableConcurrentMap<K, ?> map,
+			final BiConsumer<? super K, ? super ByteBuffer> action) {
+		checkArgument(action != null, "action != null");
+		final Cursor<K> cursor = map.cursor(BATCH_SIZE);
+		while (cursor.next(action)) {
+			// next batch
+		}
+	}
+
+	/**
+	 * @see CompactableConcurrentMap#removeIf(BiPredicate)
+	 */
+	public static <K> int removeIf(
+			final CompactableConcurrentMap<K, byte[]> map,
+			final BiPredicate<? super K, ? super ByteBuffer> filter) {
+		checkArgument(filter != null, "filter != null");
+		final Cursor<K> cursor = map.cursor(BATCH_SIZE);
+		final List<K> keys = new ArrayList<>();
+		final List<byte[]> seen = new ArrayList<>();
+		int result = 0;
+		while (cursor.next((key, value) -> {
+			// the filter may move the position of the view
+			final ByteBuffer bytes = value.duplicate();
+			if (filter.test(key, value)) {
+				keys.add(key);
+				seen.add(toBytes(bytes));
+			}
+		})) {
+			for (int i = 0; i < keys.size(); i++) {
+				if (map.remove(keys.get(i), seen.get(i))) {
+					result++;
+				}
+			}
+			keys.clear();
+			seen.clear();
+		}
+		return result;
+	}
+
+	/**
+	 * @see CompactableConcurrentMap#spliterator(BiFunction)
+	 */
+	public static <K, R> Spliterator<R> spliterator(
+			final CompactableConcurrentMap<K, ?> map,
+			final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+		checkArgument(reader != null, "reader != null");
+		return new CursorSpliterator<>(map.cursor(BATCH_SIZE), reader);
+	}
+
+	/**
+	 * Copies the bytes of the view.
+	 */
+	public static byte[] toBytes(final ByteBuffer buffer) {
+		final byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+		return result;
+	}
+
+	/**
+	 * Fetches a batch of elements whenever the last one is used up. The size
+	 * is an estimate only, as the map may change during the walk.
+	 */
+	private static class CursorSpliterator<K, R> implements Spliterator<R> {
+
+		private final Cursor<K> cursor;
+
+		private final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader;
+
+		private final List<R> batch = new ArrayList<>();
+
+		private int next;
+
+		private boolean more = true;
+
+		CursorSpliterator(final Cursor<K> cursor,
+				final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+			this.cursor = cursor;
+			this.reader = reader;
+		}
+
+		@Override
+		public boolean tryAdvance(final Consumer<? super R> action) {
+			while (next == batch.size() && more) {
+				batch.clear();
+				next = 0;
+				more = cursor.next((key, value) -> batch.add(reader.apply(key,
+						value)));
+			}
+			if (next == batch.size()) {
+				return false;
+			}
+			action.accept(batch.get(next++));
+			return true;
+		}
+
+		@Override
+		public Spliterator<R> trySplit() {
+			final Cursor<K> split = cursor.trySplit();
+			return split == null ? null
+					: new CursorSpliterator<>(split, reader);
+		}
+
+		@Override
+		public long estimateSize() {
+			return batch.size() - next + cursor.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return CONCURRENT;
+		}
+
+	}
+
+	/**
+	 * Fetches a batch whenever the last one is used up.
+	 */
+	private static class CursorIterator<K, V> implements
+			Iterator<Map.Entry<K, V>> {
+
+		private final CompactableConcurrentMap<K, ?> map;
+
+		private final Function<? super ByteBuffer, ? extends V> reader;
+
+		private final Cursor<K> cursor;
+
+		private final List<Map.Entry<K, V>> batch = new ArrayList<>();
+
+		private int next;
+
+		private boolean more = true;
+
+		private Map.Entry<K, V> last;
+
+		CursorIterator(final CompactableConcurrentMap<K, ?> map,
+				final Function<? super ByteBuffer, ? extends V> reader) {
+			this.map = map;
+			this.reader = reader;
+			cursor = map.cursor(BATCH_SIZE);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == batch.size() && more) {
+				batch.clear();
+				next = 0;
+				more = cursor.next((key, value) -> batch
+						.add(new AbstractMap.SimpleImmutableEntry<K, V>(key,
+								reader.apply(value))));
+			}
+			return next < batch.size();
+		}
+
+		@Override
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = batch.get(next++);
+			return last;
+		}
+
+		/**
+		 * Removes the key, whatever its value is by now.
+		 */
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			map.remove(last.getKey());
+			last = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,82 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import de.dirkdittmar.offheapCache.Eviction;
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * Decides which entries of an {@link InternalOffheapMap} to remove if a put
+ * runs out of space. A policy may keep a header of its own in each chunk,
+ * after the value at the end of the chunk, so it can find it from the chunk
+ * alone; the callbacks get the address of that header.
+ */
+abstract class EvictionPolicy {
+
+	static final int NO_VICTIM = Nodes.NIL;
+
+	static EvictionPolicy create(final Eviction eviction, final Arena arena,
+			final boolean keepKeys) {
+		switch (eviction) {
+		case LRU:
+			return new LruPolicy(arena, keepKeys);
+		case TINY_LFU:
+			return new TinyLfuPolicy(arena, keepKeys);
+		case CLOCK:
+			return new ClockPolicy(arena, keepKeys);
+		default:
+			return new NoEviction();
+		}
+	}
+
+	/**
+	 * @return the size of the header in each chunk
+	 */
+	abstract int headerSize();
+
+	/**
+	 * @return the address of the header of the chunk
+	 */
+	long header(final ArenaChunk chunk) {
+		return chunk.end() - headerSize();
+	}
+
+	/**
+	 * The chunk is written and in the index.
+	 *
+	 * @param key
+	 *            only needed to find the entry again if the index keeps the
+	 *            keys on the heap
+	 * @param hash
+	 *            of the key, see {@link Index#hash(Object, ArenaChunk)}
+	 */
+	abstract void inserted(long header, ArenaChunk chunk, Object key, int hash);
+
+	abstract void accessed(long header);
+
+	/**
+	 * The chunk is about to be freed.
+	 */
+	abstract void removed(long header);
+
+	/**
+	 * The entry moved to a copy of its chunk, header included.
+	 */
+	abstract void relocated(long header, ArenaChunk chunk);
+
+	/**
+	 * @return the entry to evict next or {@link #NO_VICTIM}; it stays until
+	 *         {@link #removed(long)}
+	 */
+	abstract int victim();
+
+	abstract ArenaChunk chunk(int victim);
+
+	/**
+	 * @return the key given to
+	 *         {@link #inserted(long, ArenaChunk, Object, int)}
+	 */
+	abstract Object key(int victim);
+
+	abstract void clear();
+
+}
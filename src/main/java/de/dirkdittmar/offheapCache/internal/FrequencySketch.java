@@ -0,0 +1,130 @@
+/*
+ * Derived from com.github.benmanes.caffeine.cache.FrequencySketch of Caffeine, https://github.com/ben-manes/caffeine
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0, see the NOTICE file.
+ */
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how often a hash was seen, with a count-min sketch of 4 bit
+ * counters: each hash has one counter in 4 different places, and the
+ * estimate is the lowest of them. Sixteen counters share a long.
+ * <p>
+ * After 10 increments per long all counters are halved, so the estimates
+ * follow the recent history. The sketch grows with the number of entries;
+ * a growing sketch starts empty.
+ */
+class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private static final int MIN_LENGTH = 8;
+
+	private static final int MAX_LENGTH = 1 << 20; // 8 MiB
+
+	private long[] table;
+
+	private int sampleSize;
+
+	/**
+	 * The increments since the last reset.
+	 */
+	private int size;
+
+	FrequencySketch() {
+		allocate(MIN_LENGTH);
+	}
+
+	private void allocate(final int length) {
+		table = new long[length];
+		sampleSize = 10 * length;
+		size = 0;
+	}
+
+	/**
+	 * Grows the sketch, if it is too small for the entries.
+	 */
+	void ensureCapacity(final int entries) {
+		if (entries > table.length && table.length < MAX_LENGTH) {
+			allocate(Math.min(MAX_LENGTH,
+					Integer.highestOneBit(entries - 1) << 1));
+		}
+	}
+
+	/**
+	 * @return the estimated count, 0 to 15
+	 */
+	int frequency(final int hash) {
+		final int h = spread(hash);
+		final int start = (h & 3) << 2;
+		int result = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			final long counters = table[indexOf(h, i)];
+			result = Math.min(result,
+					(int) ((counters >>> ((start + i) << 2)) & 0xfL));
+		}
+		return result;
+	}
+
+	void increment(final int hash) {
+		final int h = spread(hash);
+		final int start = (h & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(h, i), start + i);
+		}
+		if (added && ++size == sampleSize) {
+			reset();
+		}
+	}
+
+	void clear() {
+		Arrays.fill(table, 0L);
+		size = 0;
+	}
+
+	/**
+	 * @return false if the counter is at its maximum
+	 */
+	private boolean incrementAt(final int i, final int counter) {
+		final int offset = counter << 2;
+		final long mask = 0xfL << offset;
+		if ((table[i] & mask) != mask) {
+			table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Halves all counters.
+	 */
+	private void reset() {
+		int odd = 0;
+		for (int i = 0; i < table.length; i++) {
+			odd += Long.bitCount(table[i] & ONE_MASK);
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		size = (size >>> 1) - (odd >>> 2);
+	}
+
+	private int indexOf(final int h, final int i) {
+		long hash = (h + SEEDS[i]) * SEEDS[i];
+		hash += hash >>> 32;
+		return ((int) hash) & (table.length - 1);
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
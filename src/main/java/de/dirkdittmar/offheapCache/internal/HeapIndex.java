@@ -0,0 +1,139 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * Keeps the keys and chunks in a {@link ConcurrentHashMap}. The chunks hold
+ * the values only.
+ * <p>
+ * The map is guarded by the locks of the {@link InternalOffheapMap}; it is a
+ * ConcurrentHashMap for its weakly consistent spliterators only, which a
+ * {@link Index.Walk} keeps between two steps and splits.
+ */
+class HeapIndex<K> extends Index<K> {
+
+	private final Map<K, ArenaChunk> entries = new ConcurrentHashMap<>();
+
+	@Override
+	byte[] header(final K key) {
+		return NO_HEADER;
+	}
+
+	@Override
+	int headerSize(final ArenaChunk chunk) {
+		return 0;
+	}
+
+	@Override
+	ArenaChunk get(final Object key) {
+		// unlike a HashMap the ConcurrentHashMap rejects null
+		return key == null ? null : entries.get(key);
+	}
+
+	@Override
+	void put(final K key, final ArenaChunk chunk) {
+		entries.put(key, chunk);
+	}
+
+	@Override
+	ArenaChunk remove(final Object key) {
+		return key == null ? null : entries.remove(key);
+	}
+
+	@Override
+	void remove(final Object key, final ArenaChunk chunk) {
+		entries.remove(key);
+	}
+
+	@Override
+	int hash(final K key, final ArenaChunk chunk) {
+		return key.hashCode();
+	}
+
+	@Override
+	boolean keysOnHeap() {
+		return true;
+	}
+
+	@Override
+	int size() {
+		return entries.size();
+	}
+
+	@Override
+	void clear() {
+		entries.clear();
+	}
+
+	@Override
+	Set<K> keySet() {
+		return new HashSet<K>(entries.keySet());
+	}
+
+	@Override
+	Collection<ArenaChunk> chunks() {
+		return entries.values();
+	}
+
+	@Override
+	List<Entry<K>> sortedEntries() {
+		final List<Entry<K>> result = new ArrayList<>(entries.size());
+		for (final Map.Entry<K, ArenaChunk> entry : entries.entrySet()) {
+			result.add(new Entry<K>(entry.getValue(), entry.getKey(), 0));
+		}
+		return sort(result);
+	}
+
+	@Override
+	Walk<K> walk() {
+		return walk(entries.entrySet().spliterator());
+	}
+
+	private Walk<K> walk(final Spliterator<Map.Entry<K, ArenaChunk>> entries) {
+		return new Walk<K>() {
+
+			@Override
+			public boolean next(final List<Entry<K>> batch, final int max) {
+				final int start = batch.size();
+				while (batch.size() - start < max
+						&& entries.tryAdvance(entry -> batch.add(new Entry<K>(
+								entry.getValue(), entry.getKey(), 0)))) {
+					// next entry
+				}
+				return batch.size() > start;
+			}
+
+			@Override
+			public Walk<K> trySplit() {
+				final Spliterator<Map.Entry<K, ArenaChunk>> split = entries
+						.trySplit();
+				return split == null ? null : walk(split);
+			}
+
+			@Override
+			public long estimateSize() {
+				return entries.estimateSize();
+			}
+		};
+	}
+
+	@Override
+	boolean isCurrent(final Entry<K> entry) {
+		return entry.chunk.equals(entries.get(entry.key));
+	}
+
+	@Override
+	void relocate(final Entry<K> entry, final ArenaChunk chunk) {
+		entries.put(entry.key, chunk);
+	}
+
+}
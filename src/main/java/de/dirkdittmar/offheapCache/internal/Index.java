@@ -0,0 +1,153 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * Maps the keys of an {@link InternalOffheapMap} to the chunks of its arena.
+ * A chunk may start with a header the index needs, e.g. the key, followed by
+ * the value.
+ */
+abstract class Index<K> {
+
+	static final byte[] NO_HEADER = new byte[0];
+
+	/**
+	 * @return the bytes to write in front of the value
+	 */
+	abstract byte[] header(K key);
+
+	/**
+	 * @return the size of the header at the start of the chunk
+	 */
+	abstract int headerSize(ArenaChunk chunk);
+
+	abstract ArenaChunk get(Object key);
+
+	/**
+	 * The header is already written to the chunk.
+	 */
+	abstract void put(K key, ArenaChunk chunk);
+
+	/**
+	 * @return the chunk of the key or null
+	 */
+	abstract ArenaChunk remove(Object key);
+
+	/**
+	 * Removes the entry of the chunk, e.g. to evict it.
+	 * 
+	 * @param key
+	 *            the key if {@link #keysOnHeap()}, null otherwise
+	 */
+	abstract void remove(Object key, ArenaChunk chunk);
+
+	/**
+	 * @return a hash of the key, e.g. for a frequency sketch; the header is
+	 *         already written to the chunk
+	 */
+	abstract int hash(K key, ArenaChunk chunk);
+
+	/**
+	 * @return true if the keys are kept on the heap and not in the chunks
+	 */
+	abstract boolean keysOnHeap();
+
+	abstract int size();
+
+	abstract void clear();
+
+	/**
+	 * @return a copy of the keys
+	 */
+	abstract Set<K> keySet();
+
+	abstract Collection<ArenaChunk> chunks();
+
+	/**
+	 * @return the entries sorted by address
+	 */
+	abstract List<Entry<K>> sortedEntries();
+
+	/**
+	 * @return a walk over the entries from the start
+	 */
+	abstract Walk<K> walk();
+
+	/**
+	 * @return true if the entry still has the same chunk
+	 */
+	abstract boolean isCurrent(Entry<K> entry);
+
+	/**
+	 * Points the entry to a copy of its chunk.
+	 */
+	abstract void relocate(Entry<K> entry, ArenaChunk chunk);
+
+	static <K> List<Entry<K>> sort(final List<Entry<K>> entries) {
+		Collections.sort(entries, new Comparator<Entry<K>>() {
+
+			@Override
+			public int compare(final Entry<K> o1, final Entry<K> o2) {
+				return o1.chunk.compareTo(o2.chunk);
+			}
+
+		});
+		return entries;
+	}
+
+	static class Entry<K> {
+
+		public final ArenaChunk chunk;
+
+		/**
+		 * null in the {@link #sortedEntries()} if the index doesn't keep the
+		 * keys on the heap
+		 */
+		public final K key;
+
+		public final int hash;
+
+		public Entry(final ArenaChunk chunk, final K key, final int hash) {
+			this.chunk = chunk;
+			this.key = key;
+			this.hash = hash;
+		}
+
+	}
+
+	/**
+	 * Walks the entries in steps. The index may change between two steps:
+	 * an entry that is in the index for the whole walk is found exactly once,
+	 * even if the index grows.
+	 */
+	interface Walk<K> {
+
+		/**
+		 * Adds about max entries to the batch, with their keys.
+		 * 
+		 * @return false if there were no more entries
+		 */
+		boolean next(List<Entry<K>> batch, int max);
+
+		/**
+		 * Hands a part of the rest of the walk to a new one, e.g. to walk
+		 * the parts in parallel.
+		 * 
+		 * @return the new walk or null if this one can't be split
+		 */
+		Walk<K> trySplit();
+
+		/**
+		 * @return about the number of entries still to walk
+		 */
+		long estimateSize();
+
+	}
+
+}
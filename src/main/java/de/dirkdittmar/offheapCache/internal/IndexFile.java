@@ -0,0 +1,131 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import de.dirkdittmar.offheapCache.OffheapMapConfig;
+
+/**
+ * The chunks of an {@link InternalOffheapMap} backed by a file, written on
+ * close to <code>file.index</code> so the next map with that file can pick
+ * them up. The keys are in the chunks, so the addresses and sizes are
+ * enough, in ascending order of the addresses. A header holds the settings
+ * the layout of the chunks depends on and the time of the expiry.
+ */
+class IndexFile {
+
+	private static final int MAGIC = 0x4f484d49;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * The time of the expiry at the close.
+	 */
+	final long now;
+
+	/**
+	 * The wall clock at the close.
+	 */
+	final long millis;
+
+	final long[] addresses;
+
+	final int[] sizes;
+
+	private IndexFile(final long now, final long millis, final int count) {
+		this.now = now;
+		this.millis = millis;
+		addresses = new long[count];
+		sizes = new int[count];
+	}
+
+	static Path path(final Path file) {
+		return file.resolveSibling(file.getFileName() + ".index");
+	}
+
+	/**
+	 * Writes to a temporary file first and moves it, so there is either the
+	 * complete index or none.
+	 */
+	static void write(final Path file, final OffheapMapConfig config,
+			final int trailerSize, final long now,
+			final List<? extends Index.Entry<?>> sortedEntries)
+			throws IOException {
+		final Path path = path(file);
+		final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeLayout(out, config, trailerSize);
+			out.writeLong(now);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(sortedEntries.size());
+			for (final Index.Entry<?> entry : sortedEntries) {
+				out.writeLong(entry.chunk.address);
+				out.writeInt(entry.chunk.size);
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads and deletes the index, so a map that isn't closed can't leave an
+	 * outdated one behind.
+	 *
+	 * @return null if there is no index or if it was written with other
+	 *         settings
+	 */
+	static IndexFile read(final Path file, final OffheapMapConfig config,
+			final int trailerSize) throws IOException {
+		final Path path = path(file);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION
+					|| !readLayout(in, config, trailerSize)) {
+				return null;
+			}
+			final IndexFile result = new IndexFile(in.readLong(),
+					in.readLong(), in.readInt());
+			for (int i = 0; i < result.addresses.length; i++) {
+				result.addresses[i] = in.readLong();
+				result.sizes[i] = in.readInt();
+			}
+			return result;
+		} catch (final NoSuchFileException e) {
+			return null;
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private static void writeLayout(final DataOutputStream out,
+			final OffheapMapConfig config, final int trailerSize)
+			throws IOException {
+		out.writeLong(config.size());
+		out.writeInt(config.segmentSize());
+		out.writeInt(config.allocationStrategy().ordinal());
+		out.writeInt(config.eviction().ordinal());
+		out.writeInt(trailerSize);
+	}
+
+	private static boolean readLayout(final DataInputStream in,
+			final OffheapMapConfig config, final int trailerSize)
+			throws IOException {
+		return in.readLong() == config.size()
+				&& in.readInt() == config.segmentSize()
+				&& in.readInt() == config.allocationStrategy().ordinal()
+				&& in.readInt() == config.eviction().ordinal()
+				&& in.readInt() == trailerSize;
+	}
+
+}
@@ -2,256 +2,1348 @@ package de.dirkdittmar.offheapCache.internal;
 
 import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
+import de.dirkdittmar.offheapCache.AllocationStrategy;
+import de.dirkdittmar.offheapCache.ByteConverter;
 import de.dirkdittmar.offheapCache.CompactableConcurrentMap;
+import de.dirkdittmar.offheapCache.Cursor;
+import de.dirkdittmar.offheapCache.Eviction;
+import de.dirkdittmar.offheapCache.MemStats;
 import de.dirkdittmar.offheapCache.NotEnoughMemException;
-import de.dirkdittmar.offheapCache.internal.mem.MemChunk;
-import de.dirkdittmar.offheapCache.internal.mem.MemChunkSet;
+import de.dirkdittmar.offheapCache.OffheapMapConfig;
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
 
 public class InternalOffheapMap<K> implements CompactableConcurrentMap<K, byte[]> {
 
-	private final ByteBuffer buffer;
+	private final Arena arena;
 
-	private final MemChunkSet freeChunks;
+	/**
+	 * The file of the arena or null, see {@link OffheapMapConfig#file(Path)}
+	 */
+	private final Path file;
+
+	private final OffheapMapConfig config;
+
+	private final Index<K> index;
+
+	private final EvictionPolicy policy;
+
+	/**
+	 * null if the entries don't expire
+	 */
+	private final TimerWheel wheel;
+
+	/**
+	 * The headers of the wheel and the policy at the end of each chunk.
+	 */
+	private final int trailerSize;
+
+	private LongSupplier ticker = System::nanoTime;
+
+	/**
+	 * The time 0 of the wheel.
+	 */
+	private long origin = ticker.getAsLong();
+
+	private final int compactionPauseBytes;
+
+	/**
+	 * The entries sorted by address at the start of the current
+	 * {@link #compactStep(int)} cycle; null if there is none.
+	 */
+	private List<Index.Entry<K>> evacuationQueue;
+
+	/**
+	 * The next entry of the evacuationQueue, counting down.
+	 */
+	private int evacuationIdx;
+
+	/**
+	 * The largest free chunk at the start of the last {@link #compactStep(int)}
+	 * cycle, until a put needs more than that.
+	 */
+	private int largestFreeChunkBeforeCycle = Integer.MAX_VALUE;
+
+	/**
+	 * The chunks freed since {@link #beginSnapshot()}, freed in the arena at
+	 * its end; null if there is no snapshot.
+	 */
+	private List<ArenaChunk> deferredFrees;
+
+	private long modifications;
 
-	private final Map<K, MemChunk> entries = new HashMap<>();
+	private long foregroundCompactions;
+
+	private long avoidedForegroundCompactions;
+
+	private long evictions;
+
+	private long expirations;
 
 	public InternalOffheapMap(final int size) {
-		checkArgument(size > 0, "size > 0");
-		buffer = ByteBuffer.allocateDirect(size);
-		freeChunks = new MemChunkSet(size);
+		this(new OffheapMapConfig(size));
+	}
+
+	public InternalOffheapMap(final int size, final AllocationStrategy strategy) {
+		this(new OffheapMapConfig(size).allocationStrategy(strategy));
+	}
+
+	public InternalOffheapMap(final OffheapMapConfig config) {
+		this(config, null);
+	}
+
+	/**
+	 * @param keyConverter
+	 *            if not null the keys are stored with the values and the
+	 *            index is kept off-heap too, see {@link OffheapIndex}
+	 */
+	public InternalOffheapMap(final OffheapMapConfig config,
+			final ByteConverter<K> keyConverter) {
+		checkArgument(config != null, "config != null");
+		this.config = config;
+		file = config.file();
+		if (file == null) {
+			arena = new Arena(config.size(), config.segmentSize(),
+					config.allocationStrategy());
+		} else {
+			checkArgument(keyConverter != null, "a file needs a keyConverter");
+			checkArgument(
+					config.allocationStrategy() != AllocationStrategy.BUDDY,
+					"a file needs an allocation strategy that compacts");
+			arena = new Arena(config.size(), config.segmentSize(),
+					config.allocationStrategy(), open(file));
+		}
+		compactionPauseBytes = config.compactionPauseBytes();
+		if (keyConverter == null) {
+			index = new HeapIndex<>();
+		} else {
+			index = new OffheapIndex<>(arena, keyConverter);
+		}
+		policy = EvictionPolicy.create(config.eviction(), arena,
+				index.keysOnHeap());
+		if (config.expiry()) {
+			wheel = new TimerWheel(arena, index.keysOnHeap(),
+					policy.headerSize());
+			trailerSize = TimerWheel.HEADER_SIZE + policy.headerSize();
+		} else {
+			wheel = null;
+			trailerSize = policy.headerSize();
+		}
+		if (file != null) {
+			reopen();
+		}
+	}
+
+	private static FileChannel open(final Path file) {
+		try {
+			return FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Takes over the entries the last map with the file left in it, if it
+	 * was closed. The expiry continues with the time of the close plus the
+	 * time since then, and the entries that expired in between are dropped.
+	 * The order of the eviction starts over with the addresses, as the
+	 * recency and the frequencies aren't saved.
+	 */
+	private void reopen() {
+		final IndexFile saved;
+		try {
+			saved = IndexFile.read(file, config, trailerSize);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (saved == null) {
+			return;
+		}
+		final long elapsed = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+				System.currentTimeMillis() - saved.millis));
+		origin = ticker.getAsLong() - saved.now - elapsed;
+		final long now = now();
+		if (wheel != null) {
+			// the wheel is empty, this only sets its time
+			wheel.advance(now, node -> {
+			});
+		}
+
+		// as in compact(): the chunks are sorted by address, so every entry
+		// moves to the left or stays where it is
+		arena.clear();
+		for (int i = 0; i < saved.addresses.length; i++) {
+			final ArenaChunk chunk = new ArenaChunk(saved.addresses[i],
+					saved.sizes[i]);
+			final long expiresAt = wheel == null ? Long.MAX_VALUE : wheel
+					.expiresAt(expiryHeader(chunk));
+			if (expiresAt - now <= 0) {
+				continue;
+			}
+			final long lower = arena.allocate(chunk.size);
+			if (lower == Arena.NO_SPACE) {
+				throw new IllegalStateException("index doesn't fit " + file);
+			}
+			if (lower != chunk.address) {
+				arena.put(lower, read(chunk));
+			}
+			insert(null, new ArenaChunk(lower, chunk.size), expiresAt);
+		}
+	}
+
+	/**
+	 * With a file, saves the index for the next map with the file and closes
+	 * it; the map must not be used afterwards. Without a file it does
+	 * nothing.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the file or the index can't be written
+	 */
+	@Override
+	public void close() {
+		if (file != null) {
+			try {
+				// the values first, the index is only valid with them
+				arena.close();
+				IndexFile.write(file, config, trailerSize, now(),
+						index.sortedEntries());
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Takes a consistent cut for a snapshot: the chunks of the entries stay
+	 * as they are until {@link #endSnapshot()}, so
+	 * {@link Snapshot#write(java.nio.channels.WritableByteChannel)} can write
+	 * them while the map is in use. Until then the freed chunks are kept,
+	 * the map doesn't compact or evict, and changing a value in place moves
+	 * it to a new chunk; a put that doesn't fit into the free memory fails
+	 * with a {@link NotEnoughMemException}.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the keys are on the heap, they wouldn't be in the
+	 *             snapshot
+	 */
+	public Snapshot beginSnapshot() {
+		if (index.keysOnHeap()) {
+			throw new UnsupportedOperationException(
+					"a snapshot needs the keys off-heap, see keyConverter");
+		}
+		if (deferredFrees != null) {
+			throw new IllegalStateException("snapshot already running");
+		}
+		evacuationQueue = null;
+		final long now = now();
+		final List<ArenaChunk> chunks = new ArrayList<>(index.size());
+		for (final Index.Entry<K> entry : index.sortedEntries()) {
+			if (wheel == null
+					|| !wheel.isExpired(expiryHeader(entry.chunk), now)) {
+				chunks.add(entry.chunk);
+			}
+		}
+		deferredFrees = new ArrayList<>();
+		return new Snapshot(arena, trailerSize, now, chunks);
+	}
+
+	/**
+	 * Frees the chunks kept since {@link #beginSnapshot()}.
+	 */
+	public void endSnapshot() {
+		if (deferredFrees != null) {
+			for (final ArenaChunk chunk : deferredFrees) {
+				arena.free(chunk.address, chunk.size);
+			}
+			deferredFrees = null;
+		}
+	}
+
+	/**
+	 * Replaces the entries with the ones of a snapshot written by
+	 * {@link Snapshot#write(java.nio.channels.WritableByteChannel)}, of a map
+	 * with the same keyConverter, eviction and expiry. The chunks are read
+	 * into the off-heap memory in one piece wherever the arena hands them out
+	 * next to each other, i.e. with a compacting allocation strategy into one
+	 * piece each segment. As with {@link OffheapMapConfig#file(Path)}, the
+	 * expiry continues with the time of the snapshot plus the time since
+	 * then, and the order of the eviction starts over.
+	 *
+	 * @throws NotEnoughMemException
+	 *             if the entries don't fit; the map is empty then
+	 */
+	public void restore(final ReadableByteChannel channel) throws IOException {
+		checkArgument(channel != null, "channel != null");
+		if (index.keysOnHeap()) {
+			throw new UnsupportedOperationException(
+					"a snapshot needs the keys off-heap, see keyConverter");
+		}
+		if (deferredFrees != null) {
+			throw new IllegalStateException("snapshot running");
+		}
+		final Snapshot snapshot = Snapshot.read(channel);
+		checkArgument(snapshot.trailerSize == trailerSize,
+				"snapshot of a map with another eviction or expiry");
+		clear();
+
+		final long elapsed = TimeUnit.MILLISECONDS.toNanos(Math.max(0,
+				System.currentTimeMillis() - snapshot.millis));
+		origin = ticker.getAsLong() - snapshot.now - elapsed;
+		if (wheel != null) {
+			// the wheel is empty, this only sets its time
+			wheel.advance(now(), node -> {
+			});
+		}
+
+		final int[] sizes = snapshot.sizes;
+		final long[] addresses = new long[sizes.length];
+		int first = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			addresses[i] = arena.allocate(sizes[i]);
+			if (addresses[i] == Arena.NO_SPACE) {
+				clear();
+				throw new NotEnoughMemException(
+						"Not enough memory in this cache for the snapshot");
+			}
+			if (i > first && addresses[i] != addresses[i - 1] + sizes[i - 1]) {
+				load(channel, addresses, sizes, first, i);
+				first = i;
+			}
+		}
+		load(channel, addresses, sizes, first, sizes.length);
+	}
+
+	/**
+	 * Reads the chunks from first to end, which are next to each other in
+	 * the arena, and inserts them unless they expired.
+	 */
+	private void load(final ReadableByteChannel channel,
+			final long[] addresses, final int[] sizes, final int first,
+			final int end) throws IOException {
+		if (first == end) {
+			return;
+		}
+		arena.transferFrom(channel, addresses[first], addresses[end - 1]
+				+ sizes[end - 1] - addresses[first]);
+		final long now = now();
+		for (int i = first; i < end; i++) {
+			final ArenaChunk chunk = new ArenaChunk(addresses[i], sizes[i]);
+			final long expiresAt = expiresAt(chunk);
+			if (expiresAt - now <= 0) {
+				arena.free(chunk.address, chunk.size);
+			} else {
+				insert(null, chunk, expiresAt);
+			}
+		}
+	}
+
+	/**
+	 * For internal use or testing only!
+	 */
+	Arena arena() {
+		return arena;
+	}
+
+	/**
+	 * For internal use or testing only!
+	 */
+	EvictionPolicy policy() {
+		return policy;
+	}
+
+	/**
+	 * For testing only! Sets the clock of the expiry, before the first put.
+	 */
+	void ticker(final LongSupplier ticker) {
+		this.ticker = ticker;
+		origin = ticker.getAsLong();
+	}
+
+	@Override
+	public MemStats memStats() {
+		return new MemStats(arena.capacity(), arena.freeBytes(),
+				arena.largestFreeChunk(), arena.freeChunkCount(),
+				modifications, foregroundCompactions,
+				avoidedForegroundCompactions, evictions, expirations,
+				arena.heapFootprint());
 	}
 
 	@Override
 	public int size() {
-		return entries.size();
+		return index.size();
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return entries.isEmpty();
+		return index.size() == 0;
 	}
 
 	@Override
 	public boolean containsKey(final Object key) {
-		return entries.containsKey(key);
+		return lookup(key) != null;
+	}
+
+	/**
+	 * @return the chunk of the key or null if there is none or if it is
+	 *         expired
+	 */
+	private ArenaChunk lookup(final Object key) {
+		final ArenaChunk range = index.get(key);
+		if (range != null && isExpired(range)) {
+			return null;
+		}
+		return range;
+	}
+
+	private boolean isExpired(final ArenaChunk range) {
+		return wheel != null && wheel.isExpired(expiryHeader(range), now());
+	}
+
+	private long now() {
+		return ticker.getAsLong() - origin;
+	}
+
+	/**
+	 * Reclaims the expired entries of the buckets the time passed since the
+	 * last call.
+	 */
+	private void expire() {
+		if (wheel != null) {
+			wheel.advance(now(), node -> {
+				final ArenaChunk chunk = wheel.chunk(node);
+				index.remove(wheel.key(node), chunk);
+				free(chunk);
+				expirations++;
+			});
+		}
 	}
 
 	@Override
 	public byte[] get(final Object key) {
 		checkArgument(key != null, "key != null");
 		byte[] result = null;
-		final MemChunk range = entries.get(key);
+		final ArenaChunk range = lookup(key);
 		if (range != null) {
-			result = read(range);
+			policy.accessed(policyHeader(range));
+			result = readValue(range);
 		}
 		return result;
 	}
 
-	private byte[] read(final MemChunk range) {
-		byte[] result;
-		result = new byte[range.size()];
-		final ByteBuffer readBuffer = buffer.asReadOnlyBuffer();
-		readBuffer.clear();
-		readBuffer.position(range.loIdx);
-		readBuffer.get(result);
+	/**
+	 * Reads the values in address order.
+	 */
+	@Override
+	public Map<K, byte[]> getAll(final Collection<? extends K> keys) {
+		checkArgument(keys != null, "keys != null");
+		final List<BatchEntry<K>> found = new ArrayList<>(keys.size());
+		for (final K key : keys) {
+			checkArgument(key != null, "key != null");
+			final ArenaChunk range = lookup(key);
+			if (range != null) {
+				policy.accessed(policyHeader(range));
+				found.add(new BatchEntry<>(key, range));
+			}
+		}
+		Collections.sort(found, BatchEntry.BY_ADDRESS);
+		final Map<K, byte[]> result = new HashMap<>();
+		for (final BatchEntry<K> entry : found) {
+			result.put(entry.key, readValue(entry.chunk));
+		}
+		return result;
+	}
+
+	@Override
+	public <R> R read(final Object key,
+			final Function<? super ByteBuffer, ? extends R> reader) {
+		checkArgument(key != null, "key != null");
+		checkArgument(reader != null, "reader != null");
+		final ArenaChunk range = lookup(key);
+		if (range == null) {
+			return null;
+		}
+		policy.accessed(policyHeader(range));
+		return reader.apply(valueSlice(range));
+	}
+
+	private long policyHeader(final ArenaChunk range) {
+		return policy.header(range);
+	}
+
+	/**
+	 * @return the address of the header of the wheel, in front of the one of
+	 *         the policy
+	 */
+	private long expiryHeader(final ArenaChunk range) {
+		return range.end() - trailerSize;
+	}
+
+	private int valueLength(final ArenaChunk range, final int valueOffset) {
+		return range.size - valueOffset - trailerSize;
+	}
+
+	private ByteBuffer valueSlice(final ArenaChunk range) {
+		final int valueOffset = index.headerSize(range);
+		return arena.slice(range.address + valueOffset, valueLength(range,
+				valueOffset));
+	}
+
+	private byte[] readValue(final ArenaChunk range) {
+		final int valueOffset = index.headerSize(range);
+		return read(range.address + valueOffset, valueLength(range,
+				valueOffset));
+	}
+
+	private byte[] read(final ArenaChunk range) {
+		return read(range.address, range.size);
+	}
+
+	private byte[] read(final long address, final int length) {
+		final byte[] result = new byte[length];
+		arena.get(address, result);
 		return result;
 	}
 
 	@Override
 	public byte[] put(final K key, final byte[] value) {
+		return put(key, value, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The entry expires after the ttl, see {@link OffheapMapConfig#expiry()}.
+	 */
+	@Override
+	public byte[] put(final K key, final byte[] value, final long ttl,
+			final TimeUnit unit) {
+		checkArgument(ttl > 0, "ttl > 0");
+		checkArgument(unit != null, "unit != null");
+		if (wheel == null) {
+			throw new IllegalStateException("The config has no expiry");
+		}
+		final long nanos = unit.toNanos(ttl);
+		final long now = now();
+		return put(key, value, nanos < Long.MAX_VALUE - now ? now + nanos
+				: Long.MAX_VALUE);
+	}
+
+	private byte[] put(final K key, final byte[] value, final long expiresAt) {
 		checkArgument(key != null, "key != null");
 		checkArgument(value != null, "value != null");
 
-		if (value.length > buffer.capacity()) {
-			throw new NotEnoughMemException("Not enough memory in this cache");
-		}
+		final byte[] header = header(key, value.length);
+		expire();
 
 		byte[] result = null;
-		final MemChunk range = entries.get(key);
+		final ArenaChunk range = index.remove(key);
 		if (range != null) {
-			result = delete(range);
+			if (isExpired(range)) {
+				free(range);
+			} else {
+				result = delete(range);
+			}
 		}
-		write(key, value);
+		final int length = header.length + value.length + trailerSize;
+		final long address = allocate(length);
+		arena.put(address, header);
+		arena.put(address + header.length, value);
+		insert(key, new ArenaChunk(address, length), expiresAt);
 		return result;
 
 	}
 
-	private void write(final K key, final byte[] value) {
-		MemChunk freeRange = findRangeWithEnoughSpace(value.length);
-		if (freeRange == null) {
-			compact();
-			freeRange = findRangeWithEnoughSpace(value.length);
+	/**
+	 * The writer has to fill the buffer. It writes to a new chunk, and the
+	 * old value is only replaced if it succeeds; if the new chunk doesn't
+	 * fit next to the old value, the writer writes to the heap first.
+	 */
+	@Override
+	public <R> R write(final K key, final int size,
+			final Consumer<? super ByteBuffer> writer,
+			final Function<? super ByteBuffer, ? extends R> previous) {
+		checkArgument(key != null, "key != null");
+		checkArgument(size > 0, "size > 0");
+		checkArgument(writer != null, "writer != null");
+		final byte[] header = header(key, size);
+		expire();
+
+		final int length = header.length + size + trailerSize;
+		final long address;
+		try {
+			address = allocate(length);
+		} catch (final NotEnoughMemException e) {
+			if (index.get(key) == null) {
+				throw e;
+			}
+			// it needs the space of the old value
+			final ByteBuffer target = ByteBuffer.allocate(size);
+			fill(writer, target);
+			final R result = previous(key, previous);
+			put(key, target.array(), Long.MAX_VALUE);
+			return result;
+		}
+		arena.put(address, header);
+		try {
+			fill(writer, arena.writableSlice(address + header.length, size));
+		} catch (final RuntimeException e) {
+			arena.free(address, length);
+			throw e;
+		}
+		final R result = previous(key, previous);
+		final ArenaChunk range = index.remove(key);
+		if (range != null) {
+			free(range);
+		}
+		insert(key, new ArenaChunk(address, length), Long.MAX_VALUE);
+		return result;
+	}
+
+	private static void fill(final Consumer<? super ByteBuffer> writer,
+			final ByteBuffer target) {
+		writer.accept(target);
+		if (target.hasRemaining()) {
+			throw new IllegalStateException(String.format(
+					"%d of %d bytes not written", target.remaining(),
+					target.capacity()));
+		}
+	}
+
+	/**
+	 * @return the result of the function for the current value or null
+	 */
+	private <R> R previous(final Object key,
+			final Function<? super ByteBuffer, ? extends R> previous) {
+		final ArenaChunk range = previous == null ? null : lookup(key);
+		return range == null ? null : previous.apply(valueSlice(range));
+	}
+
+	private void insert(final K key, final ArenaChunk chunk,
+			final long expiresAt) {
+		index.put(key, chunk);
+		if (wheel != null) {
+			wheel.inserted(expiryHeader(chunk), chunk, key, expiresAt);
+		}
+		policy.inserted(policyHeader(chunk), chunk, key,
+				index.hash(key, chunk));
+	}
+
+	@Override
+	public boolean update(final Object key,
+			final Consumer<? super ByteBuffer> updater) {
+		checkArgument(key != null, "key != null");
+		checkArgument(updater != null, "updater != null");
+		ArenaChunk range = lookup(key);
+		if (range == null) {
+			return false;
 		}
-		if (freeRange == null) {
+		if (deferredFrees != null) {
+			range = copy(key, range);
+		}
+		policy.accessed(policyHeader(range));
+		final int valueOffset = index.headerSize(range);
+		updater.accept(arena.writableSlice(range.address + valueOffset,
+				valueLength(range, valueOffset)));
+		return true;
+	}
+
+	/**
+	 * Moves the entry to a new chunk, as the snapshot may still write the
+	 * old one.
+	 */
+	@SuppressWarnings("unchecked")
+	private ArenaChunk copy(final Object key, final ArenaChunk range) {
+		final byte[] data = read(range);
+		final ArenaChunk result = new ArenaChunk(allocate(data.length),
+				data.length);
+		arena.put(result.address, data);
+		relocate(new Index.Entry<>(range, (K) key, index.hash((K) key, range)),
+				result);
+		deferredFrees.add(range);
+		return result;
+	}
+
+	private byte[] header(final K key, final int valueSize) {
+		final byte[] header = index.header(key);
+		if ((long) header.length + valueSize + trailerSize > arena
+				.maxChunkSize()) {
 			throw new NotEnoughMemException("Not enough memory in this cache");
 		}
+		return header;
+	}
+
+	/**
+	 * Compacts and evicts if needed.
+	 */
+	private long allocate(final int length) {
+		modifications++;
+		long lower = allocateWithoutCompaction(length);
+		if (lower == Arena.NO_SPACE) {
+			lower = allocateCompacting(length);
+		}
+		if (lower == Arena.NO_SPACE) {
+			lower = allocateEvicting(length);
+		}
+		return lower;
+	}
+
+	private long allocateWithoutCompaction(final int length) {
+		final long lower = arena.allocate(length);
+		if (lower != Arena.NO_SPACE
+				&& length > largestFreeChunkBeforeCycle) {
+			// would not have fit before the last compactStep cycle
+			avoidedForegroundCompactions++;
+			largestFreeChunkBeforeCycle = Integer.MAX_VALUE;
+		}
+		return lower;
+	}
+
+	/**
+	 * Compacts all at once or, with a pause budget, one step of it, so the
+	 * pause of a put stays within the budget.
+	 *
+	 * @return the address or {@link Arena#NO_SPACE}
+	 */
+	private long allocateCompacting(final int length) {
+		foregroundCompactions++;
+		largestFreeChunkBeforeCycle = Integer.MAX_VALUE;
+		if (compactionPauseBytes == OffheapMapConfig.UNLIMITED) {
+			compact();
+		} else {
+			compactStep(compactionPauseBytes);
+		}
+		return arena.allocate(length);
+	}
 
-		final Integer lower = freeRange.loIdx;
-		final Integer upper = lower + value.length - 1;
-		buffer.position(lower);
-		buffer.put(value);
-		final MemChunk writtenRange = new MemChunk(lower, upper);
-		freeChunks.remove(writtenRange);
-		entries.put(key, writtenRange);
+	/**
+	 * Evicts until the length fits. Without a pause budget it compacts as
+	 * soon as the free bytes suffice; with one it doesn't compact again.
+	 */
+	private long allocateEvicting(final int length) {
+		if (deferredFrees != null) {
+			// the victims would stay until the end of the snapshot
+			throw new NotEnoughMemException(
+					"Not enough memory in this cache during a snapshot");
+		}
+		final boolean compacting = arena.isCompactable()
+				&& compactionPauseBytes == OffheapMapConfig.UNLIMITED;
+		long lower = Arena.NO_SPACE;
+		while (lower == Arena.NO_SPACE) {
+			final int victim = policy.victim();
+			if (victim == EvictionPolicy.NO_VICTIM) {
+				throw new NotEnoughMemException(
+						"Not enough memory in this cache");
+			}
+			evict(victim);
+			lower = arena.allocate(length);
+			if (lower == Arena.NO_SPACE && compacting
+					&& arena.freeBytes() >= length) {
+				// enough space, but not in one piece
+				compact();
+				lower = arena.allocate(length);
+			}
+		}
+		return lower;
 	}
 
-	private byte[] delete(final MemChunk chunk) {
+	private void evict(final int victim) {
+		final ArenaChunk chunk = policy.chunk(victim);
+		index.remove(policy.key(victim), chunk);
+		free(chunk);
+		evictions++;
+	}
+
+	private byte[] delete(final ArenaChunk chunk) {
 		byte[] result;
-		result = read(chunk);
-		freeChunks.add(chunk); // free the chunk
+		result = readValue(chunk);
+		free(chunk);
 		return result;
 	}
 
-	private MemChunk findRangeWithEnoughSpace(final int minSpace) {
-		for (final MemChunk freeRange : freeChunks) {
-			if (freeRange.size() >= minSpace) {
-				return freeRange;
-			}
+	private void free(final ArenaChunk chunk) {
+		policy.removed(policyHeader(chunk));
+		if (wheel != null) {
+			wheel.removed(expiryHeader(chunk));
+		}
+		if (deferredFrees == null) {
+			arena.free(chunk.address, chunk.size);
+		} else {
+			deferredFrees.add(chunk);
 		}
-		return null;
 	}
 
+	/**
+	 * Does nothing during a snapshot.
+	 */
 	@Override
 	public void compact() {
 		// more than one free chunk?
-		if (freeChunks.size() > 1) {
-			final Deque<MemChunk> freeChunkStack = freeChunks.chunks();
-			final Deque<ReverseEntry<K>> valuesStack = sortedEntries();
-
-			int moveBy = 0;
-			while (!freeChunkStack.isEmpty()) {
-				final MemChunk first = freeChunkStack.pop();
-				moveBy += first.size();
-				if (!freeChunkStack.isEmpty()) {
-					final MemChunk second = freeChunkStack.peek();
-
-					while (!valuesStack.isEmpty()) {
-						final ReverseEntry<K> entry = valuesStack.pop();
-						if (entry.value.isRightOf(first)) {
-							if (entry.value.isLeftOf(second)) {
-								final byte[] data = read(entry.value);
-								final Integer lower = entry.value.loIdx
-										- moveBy;
-								final Integer upper = lower + data.length - 1;
-								buffer.position(lower);
-								buffer.put(data);
-								final MemChunk writtenRange = new MemChunk(
-										lower, upper);
-								entries.put(entry.key, writtenRange);
-							} else {
-								valuesStack.push(entry);
-								break;
-							}
-						}
-					}
-				}
-			}
+		if (arena.isCompactable() && arena.freeChunkCount() > 1
+				&& deferredFrees == null) {
+			evacuationQueue = null;
+			final List<Index.Entry<K>> sortedEntries = index.sortedEntries();
 
-			freeChunks.clear();
-			for (final MemChunk entryChunk : entries.values()) {
-				freeChunks.remove(entryChunk);
+			// after a clear the arena hands out the chunks in ascending order,
+			// so every entry moves to the left or stays where it is
+			arena.clear();
+			for (final Index.Entry<K> entry : sortedEntries) {
+				// the allocator doesn't write into the chunk, so only the
+				// entries that move are copied
+				final long lower = arena.allocate(entry.chunk.size);
+				if (lower != entry.chunk.address) {
+					arena.put(lower, read(entry.chunk));
+					relocate(entry, new ArenaChunk(lower, entry.chunk.size));
+				}
 			}
 		}
 	}
 
-	private Deque<ReverseEntry<K>> sortedEntries() {
-		final LinkedList<ReverseEntry<K>> result = new LinkedList<>();
-		for (final Map.Entry<K, MemChunk> entry : entries.entrySet()) {
-			result.add(new ReverseEntry<K>(entry.getValue(), entry.getKey()));
+	/**
+	 * Moves the entries with the highest addresses to free chunks further to
+	 * the front. Works with every allocator, but unlike {@link #compact()} an
+	 * entry only moves if a free chunk in front of it is big enough.
+	 * <p>
+	 * A cycle starts with a snapshot of the entries sorted by address and
+	 * ends as soon as the remaining entries are all within the used bytes at
+	 * the front. Entries changed since the snapshot are skipped.
+	 */
+	@Override
+	public boolean compactStep(final int maxBytes) {
+		checkArgument(maxBytes > 0, "maxBytes > 0");
+		if (deferredFrees != null) {
+			return false;
 		}
-		Collections.sort(result, new Comparator<ReverseEntry<K>>() {
 
-			@Override
-			public int compare(final ReverseEntry<K> o1,
-					final ReverseEntry<K> o2) {
-				return o1.value.compareTo(o2.value);
+		if (evacuationQueue == null) {
+			if (arena.freeChunkCount() <= 1) {
+				return false;
 			}
+			evacuationQueue = index.sortedEntries();
+			evacuationIdx = evacuationQueue.size() - 1;
+			largestFreeChunkBeforeCycle = arena.largestFreeChunk();
+		}
 
-		});
-		return result;
+		final long usedBytes = arena.capacity() - arena.freeBytes();
+		int movedBytes = 0;
+		while (movedBytes < maxBytes && evacuationIdx >= 0) {
+			final Index.Entry<K> entry = evacuationQueue.get(evacuationIdx);
+			if (entry.chunk.end() <= usedBytes) {
+				break; // the rest is packed well enough
+			}
+			evacuationIdx--;
+			if (index.isCurrent(entry)) {
+				movedBytes += evacuate(entry);
+			}
+		}
+
+		if (evacuationIdx < 0
+				|| evacuationQueue.get(evacuationIdx).chunk.end() <= usedBytes) {
+			evacuationQueue = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the bytes moved
+	 */
+	private int evacuate(final Index.Entry<K> entry) {
+		final ArenaChunk chunk = entry.chunk;
+		final long lower = arena.allocate(chunk.size);
+		if (lower == Arena.NO_SPACE) {
+			return 0;
+		}
+		if (lower > chunk.address) {
+			// no free chunk in front of it is big enough
+			arena.free(lower, chunk.size);
+			return 0;
+		}
+		// the allocator only writes into free memory, the entry is intact
+		arena.put(lower, read(chunk));
+		relocate(entry, new ArenaChunk(lower, chunk.size));
+		arena.free(chunk.address, chunk.size);
+		return chunk.size;
+	}
+
+	private void relocate(final Index.Entry<K> entry, final ArenaChunk chunk) {
+		index.relocate(entry, chunk);
+		if (wheel != null) {
+			wheel.relocated(expiryHeader(chunk), chunk);
+		}
+		policy.relocated(policyHeader(chunk), chunk);
 	}
 
 	@Override
 	public byte[] remove(final Object key) {
+		expire();
 		byte[] result = null;
-		final MemChunk range = entries.remove(key);
+		final ArenaChunk range = index.remove(key);
 		if (range != null) {
-			result = delete(range);
+			modifications++;
+			if (isExpired(range)) {
+				free(range);
+			} else {
+				result = delete(range);
+			}
 		}
 		return result;
 	}
 
+	/**
+	 * Either puts the whole batch or, with a NotEnoughMemException, nothing:
+	 * <ul>
+	 * <li>If all the chunks fit beside the old values, they are allocated
+	 * first and the values are written in address order; only then the old
+	 * values go.</li>
+	 * <li>Otherwise the old values are copied to the heap and removed, so
+	 * their space is free for the batch, and the map evicts for the whole
+	 * batch at once. If the chunks still don't fit, the map compacts once and
+	 * allocates the rest one by one. If that fails, the batch is removed
+	 * again and the old values are restored from the heap.</li>
+	 * </ul>
+	 * A value too big for the map or a batch bigger than the free bytes plus
+	 * the replaced values, without eviction, fails right away.
+	 */
 	@Override
 	public void putAll(final Map<? extends K, ? extends byte[]> map) {
+		checkArgument(map != null, "map != null");
+		final List<BatchEntry<K>> batch = new ArrayList<>(map.size());
 		for (final Map.Entry<? extends K, ? extends byte[]> entry : map
 				.entrySet()) {
-			put(entry.getKey(), entry.getValue());
+			final K key = entry.getKey();
+			final byte[] value = entry.getValue();
+			checkArgument(key != null, "key != null");
+			checkArgument(value != null, "value != null");
+			batch.add(new BatchEntry<>(key, header(key, value.length), value));
+		}
+		expire();
+
+		long needed = 0;
+		long replaced = 0;
+		for (final BatchEntry<K> entry : batch) {
+			needed += entry.length(trailerSize);
+			final ArenaChunk range = index.get(entry.key);
+			if (range != null) {
+				replaced += range.size;
+			}
+		}
+		// the victims and the old values would stay until the end of a
+		// snapshot
+		final boolean evicting = config.eviction() != Eviction.NONE
+				&& deferredFrees == null;
+		final long available = evicting ? arena.capacity() : arena
+				.freeBytes() + (deferredFrees == null ? replaced : 0);
+		if (needed > available) {
+			throw new NotEnoughMemException("Not enough memory in this cache");
+		}
+		modifications += batch.size();
+
+		if (allocateBeside(batch)) {
+			Collections.sort(batch, BatchEntry.BY_ADDRESS);
+			for (final BatchEntry<K> entry : batch) {
+				final ArenaChunk range = index.remove(entry.key);
+				if (range != null) {
+					free(range);
+				}
+				insert(entry);
+			}
+			return;
+		}
+		if (deferredFrees != null) {
+			throw new NotEnoughMemException(
+					"Not enough memory in this cache during a snapshot");
+		}
+
+		final List<BatchEntry<K>> saved = new ArrayList<>();
+		for (final BatchEntry<K> entry : batch) {
+			final ArenaChunk range = index.remove(entry.key);
+			if (range != null) {
+				if (!isExpired(range)) {
+					final BatchEntry<K> old = new BatchEntry<>(entry.key,
+							null, read(range));
+					old.expiresAt = expiresAt(range);
+					saved.add(old);
+				}
+				free(range);
+			}
+		}
+		try {
+			putAllReplacing(batch, needed, evicting);
+		} catch (final NotEnoughMemException e) {
+			undo(batch, saved);
+			throw e;
 		}
 	}
 
+	/**
+	 * Allocates the chunks of the batch without compacting; if one doesn't
+	 * fit, the others are freed again.
+	 *
+	 * @return whether all of them fit
+	 */
+	private boolean allocateBeside(final List<BatchEntry<K>> batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			final BatchEntry<K> entry = batch.get(i);
+			final int length = entry.length(trailerSize);
+			final long lower = allocateWithoutCompaction(length);
+			if (lower == Arena.NO_SPACE) {
+				for (int j = 0; j < i; j++) {
+					arena.free(batch.get(j).chunk.address,
+							batch.get(j).chunk.size);
+					batch.get(j).chunk = null;
+				}
+				return false;
+			}
+			entry.chunk = new ArenaChunk(lower, length);
+		}
+		return true;
+	}
+
+	/**
+	 * The old values of the batch are gone already.
+	 */
+	private void putAllReplacing(final List<BatchEntry<K>> batch,
+			final long needed, final boolean evicting) {
+		while (evicting && arena.freeBytes() < needed) {
+			final int victim = policy.victim();
+			if (victim == EvictionPolicy.NO_VICTIM) {
+				break;
+			}
+			evict(victim);
+		}
+
+		final List<BatchEntry<K>> allocated = new ArrayList<>(batch.size());
+		final List<BatchEntry<K>> rest = new ArrayList<>();
+		for (final BatchEntry<K> entry : batch) {
+			final int length = entry.length(trailerSize);
+			final long lower = allocateWithoutCompaction(length);
+			if (lower == Arena.NO_SPACE) {
+				rest.add(entry);
+			} else {
+				entry.chunk = new ArenaChunk(lower, length);
+				allocated.add(entry);
+			}
+		}
+		Collections.sort(allocated, BatchEntry.BY_ADDRESS);
+		for (final BatchEntry<K> entry : allocated) {
+			insert(entry);
+		}
+
+		// the batch so far is in the index, so the compaction moves it too
+		boolean compacted = false;
+		for (final BatchEntry<K> entry : rest) {
+			final int length = entry.length(trailerSize);
+			long lower = arena.allocate(length);
+			if (lower == Arena.NO_SPACE && !compacted) {
+				// once for the batch, as for a single put
+				compacted = true;
+				lower = allocateCompacting(length);
+			}
+			if (lower == Arena.NO_SPACE) {
+				lower = allocateEvicting(length);
+			}
+			entry.chunk = new ArenaChunk(lower, length);
+			insert(entry);
+		}
+	}
+
+	/**
+	 * Removes the part of the batch in the map and puts the old values back,
+	 * the biggest first, so they fit into the space they left, with any
+	 * allocator.
+	 */
+	private void undo(final List<BatchEntry<K>> batch,
+			final List<BatchEntry<K>> saved) {
+		for (final BatchEntry<K> entry : batch) {
+			if (entry.chunk != null) {
+				// may have moved or been evicted meanwhile
+				final ArenaChunk range = index.remove(entry.key);
+				if (range != null) {
+					free(range);
+				}
+			}
+		}
+		Collections.sort(saved, BatchEntry.BY_SIZE_DESC);
+		for (final BatchEntry<K> old : saved) {
+			long lower = arena.allocate(old.value.length);
+			if (lower == Arena.NO_SPACE && arena.isCompactable()) {
+				compact();
+				lower = arena.allocate(old.value.length);
+			}
+			if (lower == Arena.NO_SPACE) {
+				throw new IllegalStateException("can't restore " + old.key);
+			}
+			arena.put(lower, old.value);
+			insert(old.key, new ArenaChunk(lower, old.value.length),
+					old.expiresAt);
+		}
+	}
+
+	private void insert(final BatchEntry<K> entry) {
+		final long address = entry.chunk.address;
+		arena.put(address, entry.header);
+		arena.put(address + entry.header.length, entry.value);
+		insert(entry.key, entry.chunk, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Removes the keys under one call; they are found first and freed in
+	 * address order.
+	 * 
+	 * @return the number of removed entries
+	 */
+	@Override
+	public int removeAll(final Collection<?> keys) {
+		checkArgument(keys != null, "keys != null");
+		expire();
+		final List<BatchEntry<Object>> removed = new ArrayList<>(keys.size());
+		for (final Object key : keys) {
+			checkArgument(key != null, "key != null");
+			final ArenaChunk range = index.remove(key);
+			if (range != null) {
+				modifications++;
+				if (isExpired(range)) {
+					free(range);
+				} else {
+					removed.add(new BatchEntry<>(key, range));
+				}
+			}
+		}
+		Collections.sort(removed, BatchEntry.BY_ADDRESS);
+		for (final BatchEntry<Object> entry : removed) {
+			free(entry.chunk);
+		}
+		return removed.size();
+	}
+
 	@Override
 	public void clear() {
-		freeChunks.clear();
-		entries.clear();
+		modifications++;
+		evacuationQueue = null;
+		largestFreeChunkBeforeCycle = Integer.MAX_VALUE;
+		if (deferredFrees == null) {
+			arena.clear();
+		} else {
+			for (final Index.Entry<K> entry : index.sortedEntries()) {
+				deferredFrees.add(entry.chunk);
+			}
+		}
+		index.clear();
+		policy.clear();
+		if (wheel != null) {
+			wheel.clear();
+		}
 	}
 
 	@Override
 	public Set<K> keySet() {
-		return new HashSet<K>(entries.keySet());
+		return index.keySet();
 	}
 
 	@Override
 	public byte[] putIfAbsent(final K key, final byte[] value) {
-		if (!containsKey(key)) {
-			return put(key, value);
-		} else {
-			return get(key);
+		checkArgument(key != null, "key != null");
+		final ArenaChunk range = lookup(key);
+		if (range != null) {
+			policy.accessed(policyHeader(range));
+			return readValue(range);
 		}
+		return put(key, value);
 	}
 
 	@Override
 	public boolean remove(final Object key, final Object value) {
+		checkArgument(key != null, "key != null");
 		checkArgument(value instanceof byte[], "value instanceof byte[]");
-		final byte[] byteArr = (byte[]) value;
-
-		if (containsKey(key) && Arrays.equals(get(key), byteArr)) {
+		final ArenaChunk range = lookup(key);
+		if (range != null && valueEquals(range, (byte[]) value)) {
 			remove(key);
 			return true;
-		} else {
-			return false;
 		}
+		return false;
 	}
 
 	@Override
 	public boolean replace(final K key, final byte[] oldValue,
 			final byte[] newValue) {
-		if (containsKey(key) && Arrays.equals(get(key), oldValue)) {
-			put(key, newValue);
+		checkArgument(key != null, "key != null");
+		checkArgument(oldValue != null, "oldValue != null");
+		checkArgument(newValue != null, "newValue != null");
+		final ArenaChunk range = lookup(key);
+		if (range != null && valueEquals(range, oldValue)) {
+			replaceValue(key, range, newValue);
 			return true;
-		} else {
-			return false;
 		}
+		return false;
 	}
 
 	@Override
 	public byte[] replace(final K key, final byte[] value) {
-		if (containsKey(key)) {
-			return put(key, value);
-		} else {
+		checkArgument(key != null, "key != null");
+		checkArgument(value != null, "value != null");
+		final ArenaChunk range = lookup(key);
+		if (range == null) {
 			return null;
 		}
+		final byte[] result = readValue(range);
+		replaceValue(key, range, value);
+		return result;
+	}
+
+	/**
+	 * The function gets a copy of the old value, if any, and the new one is
+	 * written in the same pass, see {@link #replaceValue}.
+	 */
+	@Override
+	public byte[] compute(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		checkArgument(key != null, "key != null");
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final ArenaChunk range = lookup(key);
+		final byte[] oldValue = range == null ? null : readValue(range);
+		return store(key, range, remappingFunction.apply(key, oldValue));
+	}
+
+	@Override
+	public byte[] computeIfPresent(final K key,
+			final BiFunction<? super K, ? super byte[], ? extends byte[]> remappingFunction) {
+		checkArgument(key != null, "key != null");
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final ArenaChunk range = lookup(key);
+		if (range == null) {
+			return null;
+		}
+		return store(key, range,
+				remappingFunction.apply(key, readValue(range)));
+	}
+
+	@Override
+	public byte[] computeIfAbsent(final K key,
+			final Function<? super K, ? extends byte[]> mappingFunction) {
+		checkArgument(key != null, "key != null");
+		checkArgument(mappingFunction != null, "mappingFunction != null");
+		final ArenaChunk range = lookup(key);
+		if (range != null) {
+			policy.accessed(policyHeader(range));
+			return readValue(range);
+		}
+		return store(key, null, mappingFunction.apply(key));
+	}
+
+	@Override
+	public byte[] merge(final K key, final byte[] value,
+			final BiFunction<? super byte[], ? super byte[], ? extends byte[]> remappingFunction) {
+		checkArgument(key != null, "key != null");
+		checkArgument(value != null, "value != null");
+		checkArgument(remappingFunction != null, "remappingFunction != null");
+		final ArenaChunk range = lookup(key);
+		if (range == null) {
+			return store(key, null, value);
+		}
+		return store(key, range,
+				remappingFunction.apply(readValue(range), value));
+	}
+
+	/**
+	 * Stores the result of a compute or merge: null removes the entry.
+	 * 
+	 * @param range
+	 *            the current chunk of the key or null
+	 * @return the new value
+	 */
+	private byte[] store(final K key, final ArenaChunk range,
+			final byte[] value) {
+		if (value == null) {
+			if (range != null) {
+				remove(key);
+			}
+		} else if (range == null) {
+			put(key, value);
+		} else {
+			replaceValue(key, range, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Overwrites the value in place if the new one fits into the chunk; the
+	 * rest goes back to the allocator, as far as it allows. Otherwise the
+	 * value goes to a new chunk with the header of the old one. Either way
+	 * the entry keeps its expiry.
+	 */
+	private void replaceValue(final K key, final ArenaChunk range,
+			final byte[] value) {
+		final int valueOffset = index.headerSize(range);
+		if ((long) valueOffset + value.length + trailerSize > arena
+				.maxChunkSize()) {
+			throw new NotEnoughMemException("Not enough memory in this cache");
+		}
+		final int length = valueOffset + value.length + trailerSize;
+		if (length == range.size && deferredFrees == null) {
+			modifications++;
+			policy.accessed(policyHeader(range));
+			arena.put(range.address + valueOffset, value);
+			return;
+		}
+		if (length < range.size && deferredFrees == null) {
+			// read the trailer first, the allocator may write to the rest
+			final byte[] trailer = read(range.end() - trailerSize, trailerSize);
+			if (arena.shrink(range.address, range.size, length)) {
+				modifications++;
+				final ArenaChunk chunk = new ArenaChunk(range.address, length);
+				arena.put(chunk.address + valueOffset, value);
+				arena.put(chunk.end() - trailerSize, trailer);
+				relocate(new Index.Entry<>(range, key, index.hash(key, range)),
+						chunk);
+				policy.accessed(policyHeader(chunk));
+				return;
+			}
+		}
+
+		final byte[] header = read(range.address, valueOffset);
+		final long expiresAt = expiresAt(range);
+		index.remove(key, range);
+		free(range);
+		final long address = allocate(length);
+		arena.put(address, header);
+		arena.put(address + valueOffset, value);
+		insert(key, new ArenaChunk(address, length), expiresAt);
+	}
+
+	private boolean valueEquals(final ArenaChunk range, final byte[] value) {
+		return valueSlice(range).equals(ByteBuffer.wrap(value));
+	}
+
+	/**
+	 * @return the expiry time or {@link Long#MAX_VALUE}
+	 */
+	private long expiresAt(final ArenaChunk range) {
+		return wheel == null ? Long.MAX_VALUE : wheel
+				.expiresAt(expiryHeader(range));
 	}
 
 	@Override
@@ -259,8 +1351,11 @@ public class InternalOffheapMap<K> implements CompactableConcurrentMap<K, byte[]
 		checkArgument(value instanceof byte[], "value instanceof byte[]");
 
 		final byte[] val = (byte[]) value;
-		for (final MemChunk chunk : entries.values()) {
-			final byte[] arr = read(chunk);
+		for (final ArenaChunk chunk : index.chunks()) {
+			if (isExpired(chunk)) {
+				continue;
+			}
+			final byte[] arr = readValue(chunk);
 			if (Arrays.equals(arr, val)) {
 				return true;
 			}
@@ -269,37 +1364,139 @@ public class InternalOffheapMap<K> implements CompactableConcurrentMap<K, byte[]
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
-	public Collection<byte[]> values() throws UnsupportedOperationException {
-		throw new UnsupportedOperationException();
+	public Collection<byte[]> values() {
+		return CursorCollections.values(this, CursorCollections::toBytes);
 	}
 
 	/**
-	 * This would load all values into the heap area. That's not what this class
-	 * is good for. So this is not supported.
-	 *
-	 * @throws UnsupportedOperationException
+	 * A view that copies the values batch by batch, see
+	 * {@link #cursor(int)}.
 	 */
 	@Override
-	public Set<Map.Entry<K, byte[]>> entrySet()
-			throws UnsupportedOperationException {
-		throw new UnsupportedOperationException();
+	public Set<Map.Entry<K, byte[]>> entrySet() {
+		return CursorCollections.entrySet(this, CursorCollections::toBytes);
 	}
 
-	private static class ReverseEntry<K> {
+	/**
+	 * Walks the index, skipping the expired entries. Visits are no accesses
+	 * for the eviction, so a scan doesn't displace the hot entries.
+	 */
+	@Override
+	public Cursor<K> cursor(final int batchSize) {
+		checkArgument(batchSize > 0, "batchSize > 0");
+		return cursor(index.walk(), batchSize);
+	}
+
+	private Cursor<K> cursor(final Index.Walk<K> walk, final int batchSize) {
+		final List<Index.Entry<K>> batch = new ArrayList<>(batchSize);
+		return new Cursor<K>() {
+
+			@Override
+			public boolean next(
+					final BiConsumer<? super K, ? super ByteBuffer> visitor) {
+				checkArgument(visitor != null, "visitor != null");
+				int visited = 0;
+				while (visited == 0) {
+					batch.clear();
+					if (!walk.next(batch, batchSize)) {
+						return false;
+					}
+					for (final Index.Entry<K> entry : batch) {
+						if (!isExpired(entry.chunk)) {
+							visitor.accept(entry.key, valueSlice(entry.chunk));
+							visited++;
+						}
+					}
+				}
+				return true;
+			}
 
-		public final MemChunk value;
+			@Override
+			public Cursor<K> trySplit() {
+				final Index.Walk<K> split = walk.trySplit();
+				return split == null ? null : cursor(split, batchSize);
+			}
 
-		public final K key;
+			@Override
+			public long estimateSize() {
+				return walk.estimateSize();
+			}
+		};
+	}
 
-		public ReverseEntry(final MemChunk value, final K key) {
-			this.value = value;
+	@Override
+	public void scan(final BiConsumer<? super K, ? super ByteBuffer> action) {
+		CursorCollections.scan(this, action);
+	}
+
+	@Override
+	public int removeIf(final BiPredicate<? super K, ? super ByteBuffer> filter) {
+		return CursorCollections.removeIf(this, filter);
+	}
+
+	@Override
+	public <R> Spliterator<R> spliterator(
+			final BiFunction<? super K, ? super ByteBuffer, ? extends R> reader) {
+		return CursorCollections.spliterator(this, reader);
+	}
+
+	/**
+	 * A key of a batch with its chunk and, for a put, the bytes to write.
+	 */
+	private static final class BatchEntry<K> {
+
+		static final Comparator<BatchEntry<?>> BY_ADDRESS = new Comparator<BatchEntry<?>>() {
+
+			@Override
+			public int compare(final BatchEntry<?> o1, final BatchEntry<?> o2) {
+				return Long.compare(o1.chunk.address, o2.chunk.address);
+			}
+		};
+
+		/**
+		 * the biggest saved old value first
+		 */
+		static final Comparator<BatchEntry<?>> BY_SIZE_DESC = new Comparator<BatchEntry<?>>() {
+
+			@Override
+			public int compare(final BatchEntry<?> o1, final BatchEntry<?> o2) {
+				return Integer.compare(o2.value.length, o1.value.length);
+			}
+		};
+
+		final K key;
+
+		/**
+		 * null for a saved old value, whose value is the whole chunk
+		 */
+		final byte[] header;
+
+		final byte[] value;
+
+		ArenaChunk chunk;
+
+		/**
+		 * of a saved old value
+		 */
+		long expiresAt = Long.MAX_VALUE;
+
+		BatchEntry(final K key, final ArenaChunk chunk) {
+			this(key, null, null);
+			this.chunk = chunk;
+		}
+
+		BatchEntry(final K key, final byte[] header, final byte[] value) {
 			this.key = key;
+			this.header = header;
+			this.value = value;
+		}
+
+		int length(final int trailerSize) {
+			return header.length + value.length + trailerSize;
 		}
 
 	}
@@ -0,0 +1,75 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * Evicts the least recently used entry. The entries are {@link Nodes} in one
+ * list, the most recently used first; the header of a chunk is the number of
+ * its node, so an access finds the node without a lookup.
+ */
+class LruPolicy extends EvictionPolicy {
+
+	private static final int HEADER_SIZE = 4;
+
+	private final Arena arena;
+
+	private final Nodes nodes;
+
+	private final int list;
+
+	LruPolicy(final Arena arena, final boolean keepKeys) {
+		this.arena = arena;
+		nodes = new Nodes(keepKeys);
+		list = nodes.newList();
+	}
+
+	@Override
+	int headerSize() {
+		return HEADER_SIZE;
+	}
+
+	@Override
+	void inserted(final long header, final ArenaChunk chunk, final Object key,
+			final int hash) {
+		final int node = nodes.add(chunk, key);
+		arena.putInt(header, node);
+		nodes.addFirst(list, node);
+	}
+
+	@Override
+	void accessed(final long header) {
+		nodes.moveToFront(list, arena.getInt(header));
+	}
+
+	@Override
+	void removed(final long header) {
+		nodes.remove(arena.getInt(header));
+	}
+
+	@Override
+	void relocated(final long header, final ArenaChunk chunk) {
+		nodes.chunk(arena.getInt(header), chunk);
+	}
+
+	@Override
+	int victim() {
+		return nodes.last(list);
+	}
+
+	@Override
+	ArenaChunk chunk(final int victim) {
+		return nodes.chunk(victim);
+	}
+
+	@Override
+	Object key(final int victim) {
+		return nodes.key(victim);
+	}
+
+	@Override
+	void clear() {
+		nodes.clear();
+	}
+
+}
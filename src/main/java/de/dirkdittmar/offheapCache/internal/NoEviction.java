@@ -0,0 +1,51 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * Keeps no header and never has a victim.
+ */
+class NoEviction extends EvictionPolicy {
+
+	@Override
+	int headerSize() {
+		return 0;
+	}
+
+	@Override
+	void inserted(final long header, final ArenaChunk chunk, final Object key,
+			final int hash) {
+	}
+
+	@Override
+	void accessed(final long header) {
+	}
+
+	@Override
+	void removed(final long header) {
+	}
+
+	@Override
+	void relocated(final long header, final ArenaChunk chunk) {
+	}
+
+	@Override
+	int victim() {
+		return NO_VICTIM;
+	}
+
+	@Override
+	ArenaChunk chunk(final int victim) {
+		throw new IllegalStateException("No victim");
+	}
+
+	@Override
+	Object key(final int victim) {
+		throw new IllegalStateException("No victim");
+	}
+
+	@Override
+	void clear() {
+	}
+
+}
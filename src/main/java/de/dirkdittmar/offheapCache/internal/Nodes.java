@@ -0,0 +1,224 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.Arrays;
+
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * The entries of an {@link EvictionPolicy} in primitive arrays, so there is
+ * no heap object per entry. A node has the chunk of its entry, the key if the
+ * index keeps the keys on the heap anyway, and the links of a doubly linked
+ * list, together with the list it is in.
+ * <p>
+ * A list is a node of its own, the sentinel: its next node is the first of
+ * the list, its previous node the last one. Unused nodes and the sentinels
+ * have size 0.
+ */
+class Nodes {
+
+	static final int NIL = -1;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final boolean keepKeys;
+
+	private long[] addresses;
+
+	private int[] sizes;
+
+	private int[] prev;
+
+	private int[] next;
+
+	private int[] owners;
+
+	private Object[] keys;
+
+	private int lists;
+
+	/**
+	 * The nodes handed out so far, including the free and the sentinels.
+	 */
+	private int count;
+
+	/**
+	 * The free nodes, linked by next.
+	 */
+	private int free = NIL;
+
+	Nodes(final boolean keepKeys) {
+		this.keepKeys = keepKeys;
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(final int capacity) {
+		addresses = new long[capacity];
+		sizes = new int[capacity];
+		prev = new int[capacity];
+		next = new int[capacity];
+		owners = new int[capacity];
+		keys = keepKeys ? new Object[capacity] : null;
+	}
+
+	private void grow() {
+		final int capacity = addresses.length * 2;
+		addresses = Arrays.copyOf(addresses, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		next = Arrays.copyOf(next, capacity);
+		owners = Arrays.copyOf(owners, capacity);
+		if (keepKeys) {
+			keys = Arrays.copyOf(keys, capacity);
+		}
+	}
+
+	/**
+	 * Only before the first {@link #add(ArenaChunk, Object)}.
+	 *
+	 * @return the sentinel of a new, empty list
+	 */
+	int newList() {
+		final int list = newNode();
+		prev[list] = list;
+		next[list] = list;
+		owners[list] = NIL;
+		lists++;
+		return list;
+	}
+
+	private int newNode() {
+		if (free != NIL) {
+			final int node = free;
+			free = next[node];
+			return node;
+		}
+		if (count == addresses.length) {
+			grow();
+		}
+		return count++;
+	}
+
+	/**
+	 * @return the new node, not in any list yet
+	 */
+	int add(final ArenaChunk chunk, final Object key) {
+		final int node = newNode();
+		addresses[node] = chunk.address;
+		sizes[node] = chunk.size;
+		prev[node] = NIL;
+		next[node] = NIL;
+		owners[node] = NIL;
+		if (keepKeys) {
+			keys[node] = key;
+		}
+		return node;
+	}
+
+	/**
+	 * Unlinks the node and frees it.
+	 */
+	void remove(final int node) {
+		unlink(node);
+		sizes[node] = 0;
+		if (keepKeys) {
+			keys[node] = null;
+		}
+		next[node] = free;
+		free = node;
+	}
+
+	/**
+	 * Removes all nodes but keeps the lists, empty.
+	 */
+	void clear() {
+		count = lists;
+		free = NIL;
+		for (int list = 0; list < lists; list++) {
+			prev[list] = list;
+			next[list] = list;
+		}
+		if (keepKeys) {
+			Arrays.fill(keys, null);
+		}
+		Arrays.fill(sizes, 0);
+	}
+
+	void addFirst(final int list, final int node) {
+		prev[node] = list;
+		next[node] = next[list];
+		prev[next[list]] = node;
+		next[list] = node;
+		owners[node] = list;
+	}
+
+	/**
+	 * Does nothing if the node is in no list.
+	 */
+	void unlink(final int node) {
+		if (prev[node] != NIL) {
+			next[prev[node]] = next[node];
+			prev[next[node]] = prev[node];
+			prev[node] = NIL;
+			next[node] = NIL;
+			owners[node] = NIL;
+		}
+	}
+
+	void moveToFront(final int list, final int node) {
+		unlink(node);
+		addFirst(list, node);
+	}
+
+	/**
+	 * @return the list of the node or {@link #NIL}
+	 */
+	int list(final int node) {
+		return owners[node];
+	}
+
+	/**
+	 * @return the first node of the list or {@link #NIL} if it is empty
+	 */
+	int first(final int list) {
+		return next[list] == list ? NIL : next[list];
+	}
+
+	/**
+	 * @return the last node of the list or {@link #NIL} if it is empty
+	 */
+	int last(final int list) {
+		return prev[list] == list ? NIL : prev[list];
+	}
+
+	/**
+	 * @return the nodes handed out so far; the nodes in use are below
+	 */
+	int capacity() {
+		return count;
+	}
+
+	boolean isUsed(final int node) {
+		return sizes[node] != 0;
+	}
+
+	int size(final int node) {
+		return sizes[node];
+	}
+
+	ArenaChunk chunk(final int node) {
+		return new ArenaChunk(addresses[node], sizes[node]);
+	}
+
+	void chunk(final int node, final ArenaChunk chunk) {
+		addresses[node] = chunk.address;
+		sizes[node] = chunk.size;
+	}
+
+	/**
+	 * @return the key or null if the keys are not kept
+	 */
+	Object key(final int node) {
+		return keepKeys ? keys[node] : null;
+	}
+
+}
@@ -0,0 +1,446 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.dirkdittmar.offheapCache.ByteConverter;
+import de.dirkdittmar.offheapCache.NotEnoughMemException;
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * An open-addressing hash table in a direct {@link ByteBuffer}, so the
+ * entries cost no heap at all.
+ * <p>
+ * Each chunk starts with the key: its length as int, then the bytes of the
+ * key. A slot of the table holds the hash of the key, the size and the
+ * address of the chunk; size 0 marks an empty slot. Collisions are resolved by
+ * linear probing with Robin Hood hashing: an entry takes the slot of an entry
+ * that is closer to its home slot. So the probe lengths stay short and a
+ * lookup can stop as soon as it meets an entry closer to home than itself.
+ * Removes shift the following entries back instead of leaving tombstones.
+ * <p>
+ * A lookup compares the hash first and then the key bytes in the chunk.
+ * <p>
+ * A {@link Index.Walk} visits the home slots in the order of their reversed
+ * bits, collecting the entries of each. The entries of a home slot stay
+ * together when the table changes, and when it grows the home slots of the
+ * new table that come later in that order are exactly those of the entries
+ * not yet visited. So the walk neither misses nor repeats an entry. A split
+ * takes the second half of the remaining range of reversed bits.
+ */
+class OffheapIndex<K> extends Index<K> {
+
+	private static final int HASH = 0;
+
+	private static final int SIZE = 4;
+
+	private static final int ADDRESS = 8;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final int KEY_LENGTH_SIZE = 4;
+
+	static final int MIN_SLOTS = 16;
+
+	static final int MAX_SLOTS = 1 << 26; // * SLOT_SIZE < 2 GiB
+
+	private final Arena data;
+
+	private final ByteConverter<K> keyConverter;
+
+	private ByteBuffer table;
+
+	private int mask;
+
+	private int size;
+
+	OffheapIndex(final Arena data, final ByteConverter<K> keyConverter) {
+		this.data = data;
+		this.keyConverter = keyConverter;
+		allocateTable(MIN_SLOTS);
+	}
+
+	private void allocateTable(final int slots) {
+		table = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+		mask = slots - 1;
+	}
+
+	int slots() {
+		return mask + 1;
+	}
+
+	@Override
+	byte[] header(final K key) {
+		final byte[] keyBytes = keyConverter.toBytes(key);
+		final ByteBuffer header = ByteBuffer.allocate(KEY_LENGTH_SIZE
+				+ keyBytes.length);
+		header.putInt(keyBytes.length);
+		header.put(keyBytes);
+		return header.array();
+	}
+
+	@Override
+	int headerSize(final ArenaChunk chunk) {
+		final int keyLength = data.getInt(chunk.address);
+		if (keyLength < 0 || keyLength > chunk.size - KEY_LENGTH_SIZE) {
+			// only an optimistic read racing a writer can see this
+			throw new IllegalStateException("Invalid key length " + keyLength
+					+ " in chunk " + chunk);
+		}
+		return KEY_LENGTH_SIZE + keyLength;
+	}
+
+	@SuppressWarnings("unchecked")
+	private byte[] keyBytes(final Object key) {
+		return keyConverter.toBytes((K) key);
+	}
+
+	private byte[] keyBytes(final long address) {
+		final byte[] result = new byte[data.getInt(address)];
+		data.get(address + KEY_LENGTH_SIZE, result);
+		return result;
+	}
+
+	@Override
+	ArenaChunk get(final Object key) {
+		final int slot = find(keyBytes(key));
+		return slot < 0 ? null : chunk(slot);
+	}
+
+	@Override
+	void put(final K key, final ArenaChunk chunk) {
+		final byte[] keyBytes = keyBytes(chunk.address);
+		final int slot = find(keyBytes);
+		if (slot >= 0) {
+			setChunk(slot, chunk);
+		} else {
+			if (size + 1 > slots() - slots() / 8) {
+				grow();
+			}
+			insert(hash(keyBytes), chunk.address, chunk.size);
+			size++;
+		}
+	}
+
+	@Override
+	ArenaChunk remove(final Object key) {
+		final int slot = find(keyBytes(key));
+		if (slot < 0) {
+			return null;
+		}
+		final ArenaChunk result = chunk(slot);
+		delete(slot);
+		size--;
+		return result;
+	}
+
+	@Override
+	void remove(final Object key, final ArenaChunk chunk) {
+		final int slot = find(keyBytes(chunk.address));
+		if (slot >= 0 && address(slot) == chunk.address) {
+			delete(slot);
+			size--;
+		}
+	}
+
+	@Override
+	int hash(final K key, final ArenaChunk chunk) {
+		return hash(keyBytes(chunk.address));
+	}
+
+	@Override
+	boolean keysOnHeap() {
+		return false;
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	void clear() {
+		allocateTable(MIN_SLOTS);
+		size = 0;
+	}
+
+	@Override
+	Set<K> keySet() {
+		final Set<K> result = new HashSet<>(size);
+		for (int slot = 0; slot <= mask; slot++) {
+			if (!isEmpty(slot)) {
+				result.add(keyConverter.toValue(keyBytes(address(slot))));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	Collection<ArenaChunk> chunks() {
+		final List<ArenaChunk> result = new ArrayList<>(size);
+		for (int slot = 0; slot <= mask; slot++) {
+			if (!isEmpty(slot)) {
+				result.add(chunk(slot));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	List<Entry<K>> sortedEntries() {
+		final List<Entry<K>> result = new ArrayList<>(size);
+		for (int slot = 0; slot <= mask; slot++) {
+			if (!isEmpty(slot)) {
+				result.add(new Entry<K>(chunk(slot), null, hash(slot)));
+			}
+		}
+		return sort(result);
+	}
+
+	@Override
+	Walk<K> walk() {
+		return walk(0, 1L << 32);
+	}
+
+	/**
+	 * @param next
+	 *            the reversed bits of the first home slot
+	 * @param end
+	 *            the reversed bits of the home slot after the last one, 2^32
+	 *            for the end of the table
+	 */
+	private Walk<K> walk(final long next, final long end) {
+		return new Walk<K>() {
+
+			private long cursor = next;
+
+			private long limit = end;
+
+			@Override
+			public boolean next(final List<Entry<K>> batch, final int max) {
+				final int start = batch.size();
+				while (batch.size() - start < max && cursor < limit) {
+					addEntries(Integer.reverse((int) cursor) & mask, batch);
+					// the next home slot of the current table
+					cursor = (cursor | (step() - 1)) + 1;
+				}
+				return batch.size() > start;
+			}
+
+			@Override
+			public Walk<K> trySplit() {
+				final long middle = (cursor + limit) / 2 & -step();
+				if (middle <= cursor) {
+					return null;
+				}
+				final Walk<K> result = walk(middle, limit);
+				limit = middle;
+				return result;
+			}
+
+			@Override
+			public long estimateSize() {
+				return (long) ((double) size * (limit - cursor) / (1L << 32));
+			}
+		};
+	}
+
+	/**
+	 * @return the distance of two home slots in the reversed bits
+	 */
+	private long step() {
+		return (1L << 32) / slots();
+	}
+
+	/**
+	 * Adds the entries with this home slot.
+	 */
+	private void addEntries(final int home, final List<Entry<K>> batch) {
+		int slot = home;
+		for (int dist = 0; dist <= mask; dist++) {
+			if (isEmpty(slot) || distance(slot) < dist) {
+				return; // nothing more from this home
+			}
+			if (distance(slot) == dist) {
+				final long address = address(slot);
+				batch.add(new Entry<K>(chunk(slot), keyConverter
+						.toValue(keyBytes(address)), hash(slot)));
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	@Override
+	boolean isCurrent(final Entry<K> entry) {
+		final int slot = findAddress(entry.hash, entry.chunk.address);
+		return slot >= 0 && size(slot) == entry.chunk.size;
+	}
+
+	@Override
+	void relocate(final Entry<K> entry, final ArenaChunk chunk) {
+		final int slot = findAddress(entry.hash, entry.chunk.address);
+		if (slot >= 0) {
+			setChunk(slot, chunk);
+		}
+	}
+
+	/**
+	 * @return the slot of the key or -1
+	 */
+	private int find(final byte[] keyBytes) {
+		final int hash = hash(keyBytes);
+		int slot = hash & mask;
+		// dist <= mask bounds optimistic reads during a concurrent change
+		for (int dist = 0; dist <= mask; dist++) {
+			if (isEmpty(slot) || distance(slot) < dist) {
+				return -1;
+			}
+			if (hash(slot) == hash && keyEquals(address(slot), keyBytes)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Chunks don't overlap, so the address identifies the entry.
+	 *
+	 * @return the slot of the entry or -1
+	 */
+	private int findAddress(final int hash, final long address) {
+		int slot = hash & mask;
+		for (int dist = 0;; dist++) {
+			if (isEmpty(slot) || distance(slot) < dist) {
+				return -1;
+			}
+			if (address(slot) == address) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private boolean keyEquals(final long address, final byte[] keyBytes) {
+		if (data.getInt(address) != keyBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (data.get(address + KEY_LENGTH_SIZE + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(int hash, long address, int chunkSize) {
+		int slot = hash & mask;
+		for (int dist = 0;; dist++) {
+			if (isEmpty(slot)) {
+				setSlot(slot, hash, address, chunkSize);
+				return;
+			}
+			final int slotDist = distance(slot);
+			if (slotDist < dist) {
+				// robin hood: take the slot from the richer entry
+				final int slotHash = hash(slot);
+				final long slotAddress = address(slot);
+				final int slotSize = size(slot);
+				setSlot(slot, hash, address, chunkSize);
+				hash = slotHash;
+				address = slotAddress;
+				chunkSize = slotSize;
+				dist = slotDist;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Shifts the following entries back until one is at its home slot.
+	 */
+	private void delete(final int slot) {
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (!isEmpty(next) && distance(next) > 0) {
+			setSlot(hole, hash(next), address(next), size(next));
+			hole = next;
+			next = (next + 1) & mask;
+		}
+		table.putInt(hole * SLOT_SIZE + SIZE, 0);
+	}
+
+	private void grow() {
+		final int slots = slots();
+		if (slots >= MAX_SLOTS) {
+			throw new NotEnoughMemException("The index is full");
+		}
+		final ByteBuffer old = table;
+		allocateTable(slots * 2);
+		for (int slot = 0; slot < slots; slot++) {
+			final int pos = slot * SLOT_SIZE;
+			final int chunkSize = old.getInt(pos + SIZE);
+			if (chunkSize != 0) {
+				insert(old.getInt(pos + HASH), old.getLong(pos + ADDRESS),
+						chunkSize);
+			}
+		}
+	}
+
+	private static int hash(final byte[] keyBytes) {
+		int h = 1;
+		for (final byte b : keyBytes) {
+			h = 31 * h + b;
+		}
+		// spread the bits, the table uses the lower ones only
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the distance from the home slot
+	 */
+	private int distance(final int slot) {
+		return (slot - (hash(slot) & mask)) & mask;
+	}
+
+	private boolean isEmpty(final int slot) {
+		return size(slot) == 0;
+	}
+
+	private int hash(final int slot) {
+		return table.getInt(slot * SLOT_SIZE + HASH);
+	}
+
+	private long address(final int slot) {
+		return table.getLong(slot * SLOT_SIZE + ADDRESS);
+	}
+
+	private int size(final int slot) {
+		return table.getInt(slot * SLOT_SIZE + SIZE);
+	}
+
+	private ArenaChunk chunk(final int slot) {
+		return new ArenaChunk(address(slot), size(slot));
+	}
+
+	private void setChunk(final int slot, final ArenaChunk chunk) {
+		final int pos = slot * SLOT_SIZE;
+		table.putLong(pos + ADDRESS, chunk.address);
+		table.putInt(pos + SIZE, chunk.size);
+	}
+
+	private void setSlot(final int slot, final int hash, final long address,
+			final int chunkSize) {
+		final int pos = slot * SLOT_SIZE;
+		table.putInt(pos + HASH, hash);
+		table.putLong(pos + ADDRESS, address);
+		table.putInt(pos + SIZE, chunkSize);
+	}
+
+}
@@ -0,0 +1,147 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * A consistent cut of the entries of an {@link InternalOffheapMap}, see
+ * {@link InternalOffheapMap#beginSnapshot()}: the chunks of the entries at
+ * the cut, sorted by address, which stay as they are until the snapshot
+ * ends.
+ * <p>
+ * The format: a header with the trailer size of the chunks and the time of
+ * the expiry, the sizes of the chunks and then the chunks themselves, one
+ * after the other. The chunks hold the keys, so they are all a map needs.
+ */
+public final class Snapshot {
+
+	private static final int MAGIC = 0x4f48534e;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 32;
+
+	private final Arena arena;
+
+	final int trailerSize;
+
+	/**
+	 * The time of the expiry at the cut.
+	 */
+	final long now;
+
+	/**
+	 * The wall clock at the cut.
+	 */
+	final long millis;
+
+	/**
+	 * null if read from a channel
+	 */
+	private final long[] addresses;
+
+	final int[] sizes;
+
+	Snapshot(final Arena arena, final int trailerSize, final long now,
+			final List<ArenaChunk> sortedChunks) {
+		this.arena = arena;
+		this.trailerSize = trailerSize;
+		this.now = now;
+		millis = System.currentTimeMillis();
+		addresses = new long[sortedChunks.size()];
+		sizes = new int[sortedChunks.size()];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = sortedChunks.get(i).address;
+			sizes[i] = sortedChunks.get(i).size;
+		}
+	}
+
+	private Snapshot(final int trailerSize, final long now, final long millis,
+			final int[] sizes) {
+		arena = null;
+		this.trailerSize = trailerSize;
+		this.now = now;
+		this.millis = millis;
+		addresses = null;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return sizes.length;
+	}
+
+	/**
+	 * Writes the snapshot; adjacent chunks go to the channel in one piece,
+	 * straight from the off-heap memory. Needs no lock, the map may be used
+	 * meanwhile.
+	 */
+	public void write(final WritableByteChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4
+				* sizes.length);
+		header.putInt(MAGIC).putInt(VERSION).putInt(trailerSize).putLong(now)
+				.putLong(millis).putInt(sizes.length);
+		for (final int size : sizes) {
+			header.putInt(size);
+		}
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+
+		int first = 0;
+		for (int i = 1; i <= addresses.length; i++) {
+			if (i == addresses.length
+					|| addresses[i] != addresses[i - 1] + sizes[i - 1]) {
+				final long end = addresses[i - 1] + sizes[i - 1];
+				arena.transferTo(addresses[first], end - addresses[first],
+						channel);
+				first = i;
+			}
+		}
+	}
+
+	/**
+	 * Reads the header and the sizes; the chunks follow in the channel.
+	 */
+	static Snapshot read(final ReadableByteChannel channel) throws IOException {
+		final ByteBuffer header = readFully(channel, HEADER_SIZE);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new StreamCorruptedException("not a snapshot");
+		}
+		final int trailerSize = header.getInt();
+		final long now = header.getLong();
+		final long millis = header.getLong();
+		final int count = header.getInt();
+		if (count < 0) {
+			throw new StreamCorruptedException("count < 0");
+		}
+		final ByteBuffer sizes = readFully(channel, 4 * count);
+		final int[] result = new int[count];
+		sizes.asIntBuffer().get(result);
+		return new Snapshot(trailerSize, now, millis, result);
+	}
+
+	private static ByteBuffer readFully(final ReadableByteChannel channel,
+			final int length) throws IOException {
+		final ByteBuffer result = ByteBuffer.allocate(length);
+		while (result.hasRemaining()) {
+			if (channel.read(result) < 0) {
+				throw new EOFException();
+			}
+		}
+		result.flip();
+		return result;
+	}
+
+}
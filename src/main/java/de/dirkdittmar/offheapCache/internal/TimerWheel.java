@@ -0,0 +1,219 @@
+/*
+ * Derived from com.github.benmanes.caffeine.cache.TimerWheel of Caffeine, https://github.com/ben-manes/caffeine
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0, see the NOTICE file.
+ */
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * The expiry of the entries of an {@link InternalOffheapMap}: a hierarchical
+ * hashed timer wheel. The levels have buckets of about a second, a minute,
+ * an hour and a day; an entry goes into the bucket of its expiry time on the
+ * finest level that covers it. When the time passes a bucket, its entries
+ * either expire or, if they expire later, move to a finer level. So
+ * reclaiming the expired entries visits the buckets that passed only, never
+ * all entries.
+ * <p>
+ * Each chunk has a header of 12 bytes near its end: the expiry time and the
+ * number of its node in the wheel, {@link Nodes#NIL} if it doesn't expire.
+ * The buckets are lists of {@link Nodes}.
+ */
+class TimerWheel {
+
+	static final int HEADER_SIZE = 12;
+
+	private static final int EXPIRES_AT = 0;
+
+	private static final int NODE = 8;
+
+	private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+
+	/**
+	 * The nanos per bucket, powers of two: about a second, a minute, an hour
+	 * and a day; then the overflow.
+	 */
+	private static final long[] SPANS = { 1L << 30, 1L << 36, 1L << 42,
+			1L << 47, 4L << 47, 4L << 47 };
+
+	private static final int[] SHIFTS = new int[BUCKETS.length];
+
+	static {
+		for (int i = 0; i < SHIFTS.length; i++) {
+			SHIFTS[i] = Long.numberOfTrailingZeros(SPANS[i]);
+		}
+	}
+
+	private final Arena arena;
+
+	private final Nodes nodes;
+
+	/**
+	 * The bytes from the header to the end of a chunk.
+	 */
+	private final int offsetFromEnd;
+
+	/**
+	 * The sentinels of the buckets by level.
+	 */
+	private final int[][] wheel = new int[BUCKETS.length][];
+
+	/**
+	 * The time of the last advance.
+	 */
+	private long nanos;
+
+	/**
+	 * The nodes of the bucket just expiring.
+	 */
+	private int[] batch = new int[16];
+
+	/**
+	 * @param trailerSize
+	 *            the bytes after the header at the end of a chunk
+	 */
+	TimerWheel(final Arena arena, final boolean keepKeys,
+			final int trailerSize) {
+		this.arena = arena;
+		nodes = new Nodes(keepKeys);
+		offsetFromEnd = HEADER_SIZE + trailerSize;
+		for (int i = 0; i < BUCKETS.length; i++) {
+			wheel[i] = new int[BUCKETS[i]];
+			for (int j = 0; j < BUCKETS[i]; j++) {
+				wheel[i][j] = nodes.newList();
+			}
+		}
+	}
+
+	/**
+	 * Writes the header.
+	 *
+	 * @param expiresAt
+	 *            the expiry time in nanos or {@link Long#MAX_VALUE} if the
+	 *            entry doesn't expire
+	 */
+	void inserted(final long header, final ArenaChunk chunk, final Object key,
+			final long expiresAt) {
+		arena.putLong(header + EXPIRES_AT, expiresAt);
+		if (expiresAt == Long.MAX_VALUE) {
+			arena.putInt(header + NODE, Nodes.NIL);
+		} else {
+			final int node = nodes.add(chunk, key);
+			arena.putInt(header + NODE, node);
+			schedule(node, expiresAt);
+		}
+	}
+
+	void removed(final long header) {
+		final int node = arena.getInt(header + NODE);
+		if (node != Nodes.NIL) {
+			nodes.remove(node);
+		}
+	}
+
+	void relocated(final long header, final ArenaChunk chunk) {
+		final int node = arena.getInt(header + NODE);
+		if (node != Nodes.NIL) {
+			nodes.chunk(node, chunk);
+		}
+	}
+
+	/**
+	 * @return the expiry time or {@link Long#MAX_VALUE}
+	 */
+	long expiresAt(final long header) {
+		return arena.getInt(header + NODE) == Nodes.NIL ? Long.MAX_VALUE
+				: arena.getLong(header + EXPIRES_AT);
+	}
+
+	boolean isExpired(final long header, final long now) {
+		return arena.getInt(header + NODE) != Nodes.NIL
+				&& arena.getLong(header + EXPIRES_AT) - now <= 0;
+	}
+
+	/**
+	 * Moves the time forward and hands the expired entries to the consumer,
+	 * which has to remove them. The entries stay valid during the call.
+	 */
+	void advance(final long now, final IntConsumer expired) {
+		final long previous = nanos;
+		nanos = now;
+		for (int level = 0; level < SHIFTS.length; level++) {
+			final long previousTicks = previous >>> SHIFTS[level];
+			final long currentTicks = now >>> SHIFTS[level];
+			if (currentTicks - previousTicks <= 0) {
+				break;
+			}
+			expire(level, previousTicks, currentTicks, expired);
+		}
+	}
+
+	private void expire(final int level, final long previousTicks,
+			final long currentTicks, final IntConsumer expired) {
+		final int[] buckets = wheel[level];
+		final int mask = buckets.length - 1;
+		final long steps = Math.min(1 + currentTicks - previousTicks,
+				buckets.length);
+		final int start = (int) (previousTicks & mask);
+		for (int i = 0; i < steps; i++) {
+			final int bucket = buckets[(start + i) & mask];
+			// take the bucket apart first, a node may go back into it
+			int count = 0;
+			for (int node = nodes.last(bucket); node != Nodes.NIL; node = nodes
+					.last(bucket)) {
+				nodes.unlink(node);
+				if (count == batch.length) {
+					batch = Arrays.copyOf(batch, count * 2);
+				}
+				batch[count++] = node;
+			}
+			for (int j = 0; j < count; j++) {
+				final int node = batch[j];
+				final long expiresAt = arena.getLong(header(node) + EXPIRES_AT);
+				if (expiresAt - nanos <= 0) {
+					expired.accept(node);
+				} else {
+					schedule(node, expiresAt);
+				}
+			}
+		}
+	}
+
+	private void schedule(final int node, final long expiresAt) {
+		nodes.addFirst(bucket(expiresAt), node);
+	}
+
+	private int bucket(final long expiresAt) {
+		final long duration = expiresAt - nanos;
+		final int last = wheel.length - 1;
+		for (int level = 0; level < last; level++) {
+			if (duration < SPANS[level + 1]) {
+				final long ticks = expiresAt >>> SHIFTS[level];
+				return wheel[level][(int) (ticks & (wheel[level].length - 1))];
+			}
+		}
+		return wheel[last][0];
+	}
+
+	private long header(final int node) {
+		return nodes.chunk(node).end() - offsetFromEnd;
+	}
+
+	ArenaChunk chunk(final int node) {
+		return nodes.chunk(node);
+	}
+
+	Object key(final int node) {
+		return nodes.key(node);
+	}
+
+	void clear() {
+		nodes.clear();
+	}
+
+}
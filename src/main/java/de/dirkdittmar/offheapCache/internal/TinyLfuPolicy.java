@@ -0,0 +1,189 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import java.util.Arrays;
+
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+/**
+ * W-TinyLFU: new entries go to a small LRU window of 1% of the memory. From
+ * there they move to the probation segment of the main region; a hit in
+ * probation promotes an entry to the protected segment, at most 80% of the
+ * main region. The protected segment pushes its oldest entries back to
+ * probation.
+ * <p>
+ * To make space, the oldest entry of probation, the victim, competes with
+ * the newest, the candidate: the one seen less often according to a
+ * {@link FrequencySketch} is evicted. So a scan of keys seen once can't
+ * displace the hot keys.
+ * <p>
+ * The header of a chunk is the number of its node; the hashes of the keys
+ * are kept in an int array by node.
+ */
+class TinyLfuPolicy extends EvictionPolicy {
+
+	private static final int HEADER_SIZE = 4;
+
+	private final Arena arena;
+
+	private final Nodes nodes;
+
+	private final int window;
+
+	private final int probation;
+
+	private final int protectedSegment;
+
+	private final long windowMax;
+
+	private final long protectedMax;
+
+	private final FrequencySketch sketch = new FrequencySketch();
+
+	private int[] hashes = new int[16];
+
+	private int entries;
+
+	private long windowBytes;
+
+	private long protectedBytes;
+
+	TinyLfuPolicy(final Arena arena, final boolean keepKeys) {
+		this.arena = arena;
+		nodes = new Nodes(keepKeys);
+		window = nodes.newList();
+		probation = nodes.newList();
+		protectedSegment = nodes.newList();
+		windowMax = Math.max(1, arena.capacity() / 100);
+		protectedMax = (arena.capacity() - windowMax) * 4 / 5;
+	}
+
+	@Override
+	int headerSize() {
+		return HEADER_SIZE;
+	}
+
+	@Override
+	void inserted(final long header, final ArenaChunk chunk, final Object key,
+			final int hash) {
+		final int node = nodes.add(chunk, key);
+		arena.putInt(header, node);
+		if (node >= hashes.length) {
+			hashes = Arrays.copyOf(hashes, Math.max(node + 1,
+					hashes.length * 2));
+		}
+		hashes[node] = hash;
+		sketch.ensureCapacity(++entries);
+		sketch.increment(hash);
+
+		nodes.addFirst(window, node);
+		windowBytes += chunk.size;
+		while (windowBytes > windowMax) {
+			final int oldest = nodes.last(window);
+			nodes.moveToFront(probation, oldest);
+			windowBytes -= nodes.size(oldest);
+		}
+	}
+
+	@Override
+	void accessed(final long header) {
+		final int node = arena.getInt(header);
+		sketch.increment(hashes[node]);
+		final int list = nodes.list(node);
+		if (list == probation) {
+			nodes.moveToFront(protectedSegment, node);
+			protectedBytes += nodes.size(node);
+			while (protectedBytes > protectedMax) {
+				final int oldest = nodes.last(protectedSegment);
+				nodes.moveToFront(probation, oldest);
+				protectedBytes -= nodes.size(oldest);
+			}
+		} else {
+			nodes.moveToFront(list, node);
+		}
+	}
+
+	@Override
+	void removed(final long header) {
+		final int node = arena.getInt(header);
+		final int list = nodes.list(node);
+		if (list == window) {
+			windowBytes -= nodes.size(node);
+		} else if (list == protectedSegment) {
+			protectedBytes -= nodes.size(node);
+		}
+		nodes.remove(node);
+		entries--;
+	}
+
+	/**
+	 * The chunk may have shrunk, see {@link Arena#shrink(long, int, int)}, so
+	 * the bytes of its segment change too.
+	 */
+	@Override
+	void relocated(final long header, final ArenaChunk chunk) {
+		final int node = arena.getInt(header);
+		final int list = nodes.list(node);
+		final int delta = chunk.size - nodes.size(node);
+		if (list == window) {
+			windowBytes += delta;
+		} else if (list == protectedSegment) {
+			protectedBytes += delta;
+		}
+		nodes.chunk(node, chunk);
+	}
+
+	@Override
+	int victim() {
+		int victim = nodes.last(probation);
+		if (victim == Nodes.NIL) {
+			victim = nodes.last(protectedSegment);
+		}
+		int candidate = nodes.first(probation);
+		if (candidate == Nodes.NIL || candidate == victim) {
+			candidate = nodes.last(window);
+		}
+		if (victim == Nodes.NIL) {
+			return candidate;
+		}
+		if (candidate == Nodes.NIL) {
+			return victim;
+		}
+		return sketch.frequency(hashes[candidate]) > sketch
+				.frequency(hashes[victim]) ? victim : candidate;
+	}
+
+	@Override
+	ArenaChunk chunk(final int victim) {
+		return nodes.chunk(victim);
+	}
+
+	@Override
+	Object key(final int victim) {
+		return nodes.key(victim);
+	}
+
+	/**
+	 * For testing only!
+	 */
+	long windowBytes() {
+		return windowBytes;
+	}
+
+	/**
+	 * For testing only!
+	 */
+	long protectedBytes() {
+		return protectedBytes;
+	}
+
+	@Override
+	void clear() {
+		nodes.clear();
+		sketch.clear();
+		entries = 0;
+		windowBytes = 0;
+		protectedBytes = 0;
+	}
+
+}
@@ -0,0 +1,358 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import de.dirkdittmar.offheapCache.AllocationStrategy;
+
+/**
+ * Off-heap memory of any size, split into segments. A segment is a direct
+ * {@link ByteBuffer} of at most 2 GiB with its own {@link MemAllocator}, so a
+ * chunk never straddles two segments.
+ * <p>
+ * The addresses are longs: segment number times segment size plus the index
+ * within the segment. All segments but the last have the full segment size,
+ * so the addresses are ascending from the first segment to the last one.
+ * <p>
+ * The segments may be mapped from a file instead, each at the offset of its
+ * first address.
+ */
+public class Arena {
+
+	public static final long NO_SPACE = -1;
+
+	private final int segmentSize;
+
+	private final ByteBuffer[] buffers;
+
+	private final MemAllocator[] allocators;
+
+	/**
+	 * Read-only views of the buffers that nobody positions, so their
+	 * duplicates are safe while others write, see
+	 * {@link #transferTo(long, long, WritableByteChannel)}
+	 */
+	private final ByteBuffer[] views;
+
+	/**
+	 * null if the segments are not mapped from a file
+	 */
+	private final FileChannel file;
+
+	/**
+	 * The segment to try first.
+	 */
+	private int current;
+
+	public Arena(final long capacity, final int segmentSize,
+			final AllocationStrategy strategy) {
+		this(capacity, segmentSize, strategy, null);
+	}
+
+	/**
+	 * @param file
+	 *            the file to map the segments from, or null for direct
+	 *            buffers; it grows to the capacity, if it is smaller
+	 * @throws UncheckedIOException
+	 *             if the file can't be mapped
+	 */
+	public Arena(final long capacity, final int segmentSize,
+			final AllocationStrategy strategy, final FileChannel file) {
+		checkArgument(capacity > 0, "capacity > 0");
+		checkArgument(segmentSize > 0, "segmentSize > 0");
+		checkArgument(strategy != null, "strategy != null");
+
+		final long segments = (capacity + segmentSize - 1) / segmentSize;
+		checkArgument(segments <= Integer.MAX_VALUE,
+				"too many segments: %d", segments);
+		this.segmentSize = segmentSize;
+		this.file = file;
+		buffers = new ByteBuffer[(int) segments];
+		allocators = new MemAllocator[buffers.length];
+		views = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			final long size = Math.min(segmentSize, capacity - (long) i
+					* segmentSize);
+			if (file == null) {
+				buffers[i] = ByteBuffer.allocateDirect((int) size);
+			} else {
+				try {
+					buffers[i] = file.map(MapMode.READ_WRITE, (long) i
+							* segmentSize, size);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			allocators[i] = createAllocator(buffers[i], strategy);
+			views[i] = buffers[i].asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Writes the mapped segments to the file and closes it; does nothing
+	 * without a file. The arena must not be used afterwards.
+	 */
+	public void close() throws IOException {
+		if (file != null && file.isOpen()) {
+			for (final ByteBuffer buffer : buffers) {
+				((MappedByteBuffer) buffer).force();
+			}
+			file.close();
+		}
+	}
+
+	private static MemAllocator createAllocator(final ByteBuffer buffer,
+			final AllocationStrategy strategy) {
+		switch (strategy) {
+		case SIZE_CLASS:
+			return new SizeClassMemAllocator(buffer.capacity());
+		case BOUNDARY_TAG:
+			return new BoundaryTagMemAllocator(buffer);
+		case SLAB:
+			return new SlabMemAllocator(buffer.capacity());
+		case BUDDY:
+			return new BuddyMemAllocator(buffer);
+		default:
+			return new FirstFitMemAllocator(buffer.capacity());
+		}
+	}
+
+	/**
+	 * Tries the segment of the last allocation first, then the others in
+	 * ascending order. After a {@link #clear()} the chunks are handed out in
+	 * ascending order, as with {@link MemAllocator#clear()}, but a chunk may
+	 * go to a lower segment than the one before, if it fits there.
+	 *
+	 * @return the address or {@link #NO_SPACE}
+	 */
+	public long allocate(final int size) {
+		checkArgument(size > 0, "size > 0");
+		int idx = allocators[current].allocate(size);
+		if (idx != MemAllocator.NO_SPACE) {
+			return address(current, idx);
+		}
+		for (int segment = 0; segment < allocators.length; segment++) {
+			if (segment != current) {
+				idx = allocators[segment].allocate(size);
+				if (idx != MemAllocator.NO_SPACE) {
+					current = segment;
+					return address(segment, idx);
+				}
+			}
+		}
+		return NO_SPACE;
+	}
+
+	public void free(final long address, final int size) {
+		allocators[segment(address)].free(index(address), size);
+	}
+
+	/**
+	 * @see MemAllocator#shrink(int, int, int)
+	 */
+	public boolean shrink(final long address, final int size, final int newSize) {
+		return allocators[segment(address)].shrink(index(address), size,
+				newSize);
+	}
+
+	public void clear() {
+		for (final MemAllocator allocator : allocators) {
+			allocator.clear();
+		}
+		current = 0;
+	}
+
+	public boolean isCompactable() {
+		return allocators[0].isCompactable();
+	}
+
+	public int segmentCount() {
+		return buffers.length;
+	}
+
+	/**
+	 * @return the size of the largest segment, no chunk can be bigger
+	 */
+	public int maxChunkSize() {
+		return buffers[0].capacity();
+	}
+
+	public long capacity() {
+		return (long) segmentSize * (buffers.length - 1)
+				+ buffers[buffers.length - 1].capacity();
+	}
+
+	public long freeBytes() {
+		long result = 0;
+		for (final MemAllocator allocator : allocators) {
+			result += allocator.freeBytes();
+		}
+		return result;
+	}
+
+	public int largestFreeChunk() {
+		int result = 0;
+		for (final MemAllocator allocator : allocators) {
+			result = Math.max(result, allocator.largestFreeChunk());
+		}
+		return result;
+	}
+
+	public int freeChunkCount() {
+		int result = 0;
+		for (final MemAllocator allocator : allocators) {
+			result += allocator.freeChunkCount();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the bytes the allocators need on the heap
+	 */
+	public long heapFootprint() {
+		long result = 0;
+		for (final MemAllocator allocator : allocators) {
+			result += allocator.heapFootprint();
+		}
+		return result;
+	}
+
+	public void put(final long address, final byte[] src) {
+		final ByteBuffer buffer = buffers[segment(address)];
+		buffer.position(index(address));
+		buffer.put(src);
+	}
+
+	/**
+	 * Thread-safe as long as nobody writes.
+	 */
+	public void get(final long address, final byte[] dst) {
+		final ByteBuffer readBuffer = buffers[segment(address)]
+				.asReadOnlyBuffer();
+		readBuffer.clear();
+		readBuffer.position(index(address));
+		readBuffer.get(dst);
+	}
+
+	/**
+	 * @return a read-only view of the bytes, from position 0 to the limit
+	 */
+	public ByteBuffer slice(final long address, final int length) {
+		final ByteBuffer result = buffers[segment(address)].asReadOnlyBuffer();
+		result.clear();
+		result.position(index(address));
+		result.limit(index(address) + length);
+		return result.slice();
+	}
+
+	/**
+	 * @return a view of the bytes to write to, from position 0 to the limit
+	 */
+	public ByteBuffer writableSlice(final long address, final int length) {
+		final ByteBuffer result = buffers[segment(address)].duplicate();
+		result.clear();
+		result.position(index(address));
+		result.limit(index(address) + length);
+		return result.slice();
+	}
+
+	/**
+	 * Writes the bytes to the channel without a copy on the heap; they may
+	 * straddle segments. Thread-safe as long as nobody writes these bytes,
+	 * even if others write elsewhere.
+	 */
+	public void transferTo(final long address, final long length,
+			final WritableByteChannel channel) throws IOException {
+		final long end = address + length;
+		for (long from = address; from < end;) {
+			final int segment = segment(from);
+			final int index = index(from);
+			final int count = (int) Math.min(end - from,
+					buffers[segment].capacity() - index);
+			final ByteBuffer src = views[segment].duplicate();
+			src.limit(index + count);
+			src.position(index);
+			while (src.hasRemaining()) {
+				channel.write(src);
+			}
+			from += count;
+		}
+	}
+
+	/**
+	 * Reads the bytes from the channel without a copy on the heap; they may
+	 * straddle segments.
+	 *
+	 * @throws EOFException
+	 *             if the channel ends before
+	 */
+	public void transferFrom(final ReadableByteChannel channel,
+			final long address, final long length) throws IOException {
+		final long end = address + length;
+		for (long from = address; from < end;) {
+			final int segment = segment(from);
+			final int index = index(from);
+			final int count = (int) Math.min(end - from,
+					buffers[segment].capacity() - index);
+			final ByteBuffer dst = buffers[segment].duplicate();
+			dst.clear();
+			dst.limit(index + count);
+			dst.position(index);
+			while (dst.hasRemaining()) {
+				if (channel.read(dst) < 0) {
+					throw new EOFException();
+				}
+			}
+			from += count;
+		}
+	}
+
+	public byte get(final long address) {
+		return buffers[segment(address)].get(index(address));
+	}
+
+	/**
+	 * Thread-safe as long as nobody else writes the same byte.
+	 */
+	public void put(final long address, final byte value) {
+		buffers[segment(address)].put(index(address), value);
+	}
+
+	public int getInt(final long address) {
+		return buffers[segment(address)].getInt(index(address));
+	}
+
+	public void putInt(final long address, final int value) {
+		buffers[segment(address)].putInt(index(address), value);
+	}
+
+	public long getLong(final long address) {
+		return buffers[segment(address)].getLong(index(address));
+	}
+
+	public void putLong(final long address, final long value) {
+		buffers[segment(address)].putLong(index(address), value);
+	}
+
+	private long address(final int segment, final int idx) {
+		return (long) segment * segmentSize + idx;
+	}
+
+	private int segment(final long address) {
+		return (int) (address / segmentSize);
+	}
+
+	private int index(final long address) {
+		return (int) (address % segmentSize);
+	}
+
+}
@@ -0,0 +1,66 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+/**
+ * An allocated chunk of an {@link Arena}.
+ */
+public class ArenaChunk implements Comparable<ArenaChunk> {
+
+	public final long address;
+
+	public final int size;
+
+	public ArenaChunk(final long address, final int size) {
+		checkArgument(address >= 0);
+		checkArgument(size > 0);
+
+		this.address = address;
+		this.size = size;
+	}
+
+	/**
+	 * @return the address after the last byte
+	 */
+	public long end() {
+		return address + size;
+	}
+
+	@Override
+	public int compareTo(final ArenaChunk other) {
+		final long x = this.address;
+		final long y = other.address;
+		return (x < y) ? -1 : ((x == y) ? 0 : 1);
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (address ^ (address >>> 32));
+		result = prime * result + size;
+		return result;
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		final ArenaChunk other = (ArenaChunk) obj;
+		if (address != other.address)
+			return false;
+		if (size != other.size)
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + address + "+" + size + "]";
+	}
+
+}
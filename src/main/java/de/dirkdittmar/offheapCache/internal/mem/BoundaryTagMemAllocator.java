@@ -0,0 +1,283 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps the bookkeeping inside the arena itself. Every block starts with a
+ * header and ends with a footer holding the size of the block, negative if the
+ * block is free. Free blocks are linked into segregated lists by
+ * {@link SizeClasses size class}; the links live in the free block. Apart
+ * from the list heads, which don't grow with the number of blocks, nothing is
+ * kept on the heap and allocating or freeing creates no objects.
+ * 
+ * <pre>
+ * allocated: [ size][payload .........][ size]
+ * free:      [-size][next][prev] .....  [-size]
+ * </pre>
+ * 
+ * The addresses handed out are payload addresses.
+ */
+public class BoundaryTagMemAllocator implements MemAllocator {
+
+	static final int TAG_SIZE = 4;
+
+	/**
+	 * header and footer
+	 */
+	static final int OVERHEAD = 2 * TAG_SIZE;
+
+	/**
+	 * header, next, prev and footer
+	 */
+	static final int MIN_BLOCK_SIZE = 4 * TAG_SIZE;
+
+	private static final int NIL = -1;
+
+	private static final int NEXT = TAG_SIZE;
+
+	private static final int PREV = 2 * TAG_SIZE;
+
+	private final ByteBuffer arena;
+
+	private final int capacity;
+
+	/**
+	 * first free block per size class
+	 */
+	private final int[] heads = new int[SizeClasses.CLASSES];
+
+	/**
+	 * bit n is set if size class n is not empty
+	 */
+	private final long[] nonEmptyClasses = SizeClasses.newBitmap();
+
+	/**
+	 * Start of the untouched rest of the arena after a {@link #clear()}, -1
+	 * after the first {@link #free(int, int)}. Until then blocks are cut from
+	 * the start of the rest and get their header only, so nothing is written
+	 * into or behind the payload; the footers follow with the first free.
+	 */
+	private int top;
+
+	private int freeBytes;
+
+	private int freeBlocks;
+
+	public BoundaryTagMemAllocator(final ByteBuffer arena) {
+		checkArgument(arena.capacity() >= MIN_BLOCK_SIZE,
+				"capacity >= %s", MIN_BLOCK_SIZE);
+		this.arena = arena;
+		this.capacity = arena.capacity();
+		clear();
+	}
+
+	@Override
+	public int allocate(final int size) {
+		checkArgument(size >= 1, "size >= 1");
+		if (size > capacity - OVERHEAD) {
+			return NO_SPACE;
+		}
+		final int blockSize = Math.max(size + OVERHEAD, MIN_BLOCK_SIZE);
+		if (top >= 0) {
+			return allocateFromTop(blockSize);
+		}
+
+		int block = NIL;
+		final int found = SizeClasses.next(nonEmptyClasses,
+				SizeClasses.fittingClass(blockSize));
+		if (found >= 0) {
+			block = heads[found];
+		} else {
+			final int sizeClass = SizeClasses.sizeClass(blockSize);
+			for (int candidate = heads[sizeClass]; candidate != NIL; candidate = arena
+					.getInt(candidate + NEXT)) {
+				if (-arena.getInt(candidate) >= blockSize) {
+					block = candidate;
+					break;
+				}
+			}
+		}
+		if (block == NIL) {
+			return NO_SPACE;
+		}
+
+		final int available = -arena.getInt(block);
+		unlink(block, available);
+		if (available - blockSize >= MIN_BLOCK_SIZE) {
+			link(block + blockSize, available - blockSize);
+			setTags(block, blockSize);
+			freeBytes -= blockSize;
+		} else {
+			setTags(block, available);
+			freeBytes -= available;
+		}
+		return block + TAG_SIZE;
+	}
+
+	/**
+	 * Splits the rest off as a free block, if it is big enough for one;
+	 * otherwise it stays in the block.
+	 */
+	@Override
+	public boolean shrink(final int address, final int size,
+			final int newSize) {
+		checkArgument(newSize >= 1 && newSize <= size, "1 <= newSize <= size");
+		final int block = address - TAG_SIZE;
+		final int blockSize = arena.getInt(block);
+		final int newBlockSize = Math.max(newSize + OVERHEAD, MIN_BLOCK_SIZE);
+		if (blockSize - newBlockSize >= MIN_BLOCK_SIZE) {
+			setTags(block, newBlockSize);
+			setTags(block + newBlockSize, blockSize - newBlockSize);
+			free(block + newBlockSize + TAG_SIZE, 1);
+		}
+		return true;
+	}
+
+	private int allocateFromTop(final int blockSize) {
+		if (blockSize > capacity - top) {
+			return NO_SPACE;
+		}
+		final int block = top;
+		int size = blockSize;
+		if (capacity - top - blockSize < MIN_BLOCK_SIZE) {
+			size = capacity - top; // the rest is too small for a block
+		}
+		arena.putInt(block, size);
+		top += size;
+		freeBytes -= size;
+		return block + TAG_SIZE;
+	}
+
+	@Override
+	public void free(final int address, final int size) {
+		final int block = address - TAG_SIZE;
+		checkArgument(block >= 0 && address < capacity
+				&& arena.getInt(block) >= size + OVERHEAD,
+				"not allocated: %s", address);
+
+		if (top >= 0) {
+			// from now on the blocks need their footers and the rest of the
+			// arena is a free block like any other
+			for (int b = 0; b < top; b += arena.getInt(b)) {
+				setTags(b, arena.getInt(b));
+			}
+			if (top < capacity) {
+				link(top, capacity - top);
+			}
+			top = -1;
+		}
+
+		int start = block;
+		int blockSize = arena.getInt(block);
+		freeBytes += blockSize;
+
+		final int right = block + blockSize;
+		if (right < capacity) {
+			final int rightTag = arena.getInt(right);
+			if (rightTag < 0) {
+				unlink(right, -rightTag);
+				blockSize -= rightTag;
+			}
+		}
+		if (start > 0) {
+			final int leftTag = arena.getInt(start - TAG_SIZE);
+			if (leftTag < 0) {
+				start += leftTag;
+				unlink(start, -leftTag);
+				blockSize -= leftTag;
+			}
+		}
+		link(start, blockSize);
+	}
+
+	private void setTags(final int block, final int tag) {
+		arena.putInt(block, tag);
+		arena.putInt(block + Math.abs(tag) - TAG_SIZE, tag);
+	}
+
+	private void link(final int block, final int blockSize) {
+		final int sizeClass = SizeClasses.sizeClass(blockSize);
+		final int next = heads[sizeClass];
+		setTags(block, -blockSize);
+		arena.putInt(block + NEXT, next);
+		arena.putInt(block + PREV, NIL);
+		if (next != NIL) {
+			arena.putInt(next + PREV, block);
+		}
+		heads[sizeClass] = block;
+		SizeClasses.set(nonEmptyClasses, sizeClass);
+		freeBlocks++;
+	}
+
+	private void unlink(final int block, final int blockSize) {
+		final int sizeClass = SizeClasses.sizeClass(blockSize);
+		final int next = arena.getInt(block + NEXT);
+		final int prev = arena.getInt(block + PREV);
+		if (prev != NIL) {
+			arena.putInt(prev + NEXT, next);
+		} else {
+			heads[sizeClass] = next;
+		}
+		if (next != NIL) {
+			arena.putInt(next + PREV, prev);
+		}
+		if (heads[sizeClass] == NIL) {
+			SizeClasses.unset(nonEmptyClasses, sizeClass);
+		}
+		freeBlocks--;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(heads, NIL);
+		Arrays.fill(nonEmptyClasses, 0L);
+		top = 0;
+		freeBytes = capacity;
+		freeBlocks = 0;
+	}
+
+	@Override
+	public boolean isCompactable() {
+		return true;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public int freeBytes() {
+		return freeBytes;
+	}
+
+	@Override
+	public int largestFreeChunk() {
+		int result = top >= 0 ? capacity - top : 0;
+		final int sizeClass = SizeClasses.last(nonEmptyClasses);
+		if (sizeClass >= 0) {
+			for (int block = heads[sizeClass]; block != NIL; block = arena
+					.getInt(block + NEXT)) {
+				result = Math.max(result, -arena.getInt(block));
+			}
+		}
+		return Math.max(0, result - OVERHEAD);
+	}
+
+	@Override
+	public int freeChunkCount() {
+		return top >= 0 && top < capacity ? freeBlocks + 1 : freeBlocks;
+	}
+
+	/**
+	 * The list heads and the bitmap; independent of the number of blocks.
+	 */
+	@Override
+	public long heapFootprint() {
+		return 48 + 16 + 4L * heads.length + 16 + 8L * nonEmptyClasses.length;
+	}
+
+}
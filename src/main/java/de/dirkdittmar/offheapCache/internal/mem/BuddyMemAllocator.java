@@ -0,0 +1,234 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Binary buddy allocator. Blocks have power of two sizes and are aligned to
+ * their size; a block is split in halves until it fits and joined with its
+ * buddy again when both are free, so allocating and freeing is O(log n) and
+ * there is no need for a global compaction. The price is up to 50% unused
+ * space per value.
+ * <p>
+ * If the capacity is not a power of two the arena starts with the biggest
+ * blocks that fit. Free blocks are linked per order; the links live in the
+ * free block. One bitmap per order marks the free blocks, so the buddy of a
+ * block is found without touching the arena.
+ */
+public class BuddyMemAllocator implements MemAllocator {
+
+	/**
+	 * next and prev link
+	 */
+	static final int MIN_ORDER = 3;
+
+	private static final int NIL = -1;
+
+	private static final int PREV = 4;
+
+	private final ByteBuffer arena;
+
+	private final int capacity;
+
+	private final int maxOrder;
+
+	/**
+	 * first free block per order
+	 */
+	private final int[] heads;
+
+	/**
+	 * free blocks per order, indexed by address &gt;&gt;&gt; order
+	 */
+	private final BitSet[] freeBlocks;
+
+	/**
+	 * bit n is set if there is a free block of order n
+	 */
+	private int nonEmptyOrders;
+
+	private int freeBytes;
+
+	private int freeChunks;
+
+	public BuddyMemAllocator(final ByteBuffer arena) {
+		checkArgument(arena.capacity() >= 1 << MIN_ORDER, "capacity >= %s",
+				1 << MIN_ORDER);
+		this.arena = arena;
+		this.capacity = arena.capacity();
+		this.maxOrder = 31 - Integer.numberOfLeadingZeros(capacity);
+		this.heads = new int[maxOrder + 1];
+		this.freeBlocks = new BitSet[maxOrder + 1];
+		for (int order = MIN_ORDER; order <= maxOrder; order++) {
+			freeBlocks[order] = new BitSet(capacity >>> order);
+		}
+		clear();
+	}
+
+	/**
+	 * The order of the smallest block with at least <code>size</code> bytes.
+	 */
+	static int order(final int size) {
+		final int order = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return Math.max(MIN_ORDER, order);
+	}
+
+	@Override
+	public int allocate(final int size) {
+		checkArgument(size >= 1, "size >= 1");
+
+		final int order = order(size);
+		if (order > maxOrder) {
+			return NO_SPACE;
+		}
+		final int available = nonEmptyOrders & (-1 << order);
+		if (available == 0) {
+			return NO_SPACE;
+		}
+
+		int blockOrder = Integer.numberOfTrailingZeros(available);
+		final int block = heads[blockOrder];
+		unlink(block, blockOrder);
+		// split until it fits, the upper halves stay free
+		while (blockOrder > order) {
+			blockOrder--;
+			link(block + (1 << blockOrder), blockOrder);
+		}
+		freeBytes -= 1 << order;
+		return block;
+	}
+
+	@Override
+	public void free(final int address, final int size) {
+		checkArgument(size >= 1, "size >= 1");
+		int order = order(size);
+		checkArgument(address >= 0 && order <= maxOrder
+				&& address <= capacity - (1 << order)
+				&& (address & ((1 << order) - 1)) == 0
+				&& !freeBlocks[order].get(address >>> order),
+				"not allocated: %s", address);
+		freeBytes += 1 << order;
+
+		// join with the buddy as long as it is free
+		int block = address;
+		while (order < maxOrder) {
+			final int buddy = block ^ (1 << order);
+			if (buddy > capacity - (1 << order)
+					|| !freeBlocks[order].get(buddy >>> order)) {
+				break;
+			}
+			unlink(buddy, order);
+			block = Math.min(block, buddy);
+			order++;
+		}
+		link(block, order);
+	}
+
+	/**
+	 * Only within the block, so the order of the size mustn't change.
+	 */
+	@Override
+	public boolean shrink(final int address, final int size,
+			final int newSize) {
+		checkArgument(newSize >= 1 && newSize <= size, "1 <= newSize <= size");
+		return order(newSize) == order(size);
+	}
+
+	private void link(final int block, final int order) {
+		final int next = heads[order];
+		arena.putInt(block, next);
+		arena.putInt(block + PREV, NIL);
+		if (next != NIL) {
+			arena.putInt(next + PREV, block);
+		}
+		heads[order] = block;
+		freeBlocks[order].set(block >>> order);
+		nonEmptyOrders |= 1 << order;
+		freeChunks++;
+	}
+
+	private void unlink(final int block, final int order) {
+		final int next = arena.getInt(block);
+		final int prev = arena.getInt(block + PREV);
+		if (prev != NIL) {
+			arena.putInt(prev, next);
+		} else {
+			heads[order] = next;
+		}
+		if (next != NIL) {
+			arena.putInt(next + PREV, prev);
+		}
+		freeBlocks[order].clear(block >>> order);
+		if (heads[order] == NIL) {
+			nonEmptyOrders &= ~(1 << order);
+		}
+		freeChunks--;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(heads, NIL);
+		for (int order = MIN_ORDER; order <= maxOrder; order++) {
+			freeBlocks[order].clear();
+		}
+		nonEmptyOrders = 0;
+		freeChunks = 0;
+		freeBytes = 0;
+
+		// the biggest blocks first, each is aligned to its size
+		int address = 0;
+		for (int order = maxOrder; order >= MIN_ORDER; order--) {
+			if (capacity - address >= 1 << order) {
+				link(address, order);
+				address += 1 << order;
+				freeBytes += 1 << order;
+			}
+		}
+	}
+
+	/**
+	 * Blocks can't be moved to the left without breaking the alignment.
+	 * Freed blocks are joined immediately instead.
+	 */
+	@Override
+	public boolean isCompactable() {
+		return false;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public int freeBytes() {
+		return freeBytes;
+	}
+
+	@Override
+	public int largestFreeChunk() {
+		// the size of a block is the bit of its order
+		return Integer.highestOneBit(nonEmptyOrders);
+	}
+
+	@Override
+	public int freeChunkCount() {
+		return freeChunks;
+	}
+
+	/**
+	 * The free bitmaps, about capacity / 32 bytes.
+	 */
+	@Override
+	public long heapFootprint() {
+		long result = 16 + 4L * heads.length;
+		for (int order = MIN_ORDER; order <= maxOrder; order++) {
+			result += 48 + (capacity >>> order) / 8;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,104 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+/**
+ * Scans the address ordered {@link MemChunkSet} for the first free chunk big
+ * enough.
+ */
+public class FirstFitMemAllocator implements MemAllocator {
+
+	/**
+	 * a MemChunk and its TreeSet node
+	 */
+	private static final int HEAP_BYTES_PER_CHUNK = 24 + 40;
+
+	private final int capacity;
+
+	private final MemChunkSet freeChunks;
+
+	private int freeBytes;
+
+	public FirstFitMemAllocator(final int capacity) {
+		checkArgument(capacity >= 1);
+		this.capacity = capacity;
+		this.freeChunks = new MemChunkSet(capacity);
+		this.freeBytes = capacity;
+	}
+
+	@Override
+	public int allocate(final int size) {
+		checkArgument(size >= 1, "size >= 1");
+		for (final MemChunk freeChunk : freeChunks) {
+			if (freeChunk.size() >= size) {
+				final int address = freeChunk.loIdx;
+				freeChunks.remove(new MemChunk(address, address + size - 1));
+				freeBytes -= size;
+				return address;
+			}
+		}
+		return NO_SPACE;
+	}
+
+	@Override
+	public void free(final int address, final int size) {
+		freeChunks.add(new MemChunk(address, address + size - 1));
+		freeBytes += size;
+	}
+
+	@Override
+	public boolean shrink(final int address, final int size,
+			final int newSize) {
+		checkArgument(newSize >= 1 && newSize <= size, "1 <= newSize <= size");
+		if (newSize < size) {
+			free(address + newSize, size - newSize);
+		}
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		freeChunks.clear();
+		freeBytes = capacity;
+	}
+
+	@Override
+	public boolean isCompactable() {
+		return true;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public int freeBytes() {
+		return freeBytes;
+	}
+
+	@Override
+	public int largestFreeChunk() {
+		int result = 0;
+		for (final MemChunk freeChunk : freeChunks) {
+			result = Math.max(result, freeChunk.size());
+		}
+		return result;
+	}
+
+	@Override
+	public int freeChunkCount() {
+		return freeChunks.size();
+	}
+
+	@Override
+	public long heapFootprint() {
+		return (long) HEAP_BYTES_PER_CHUNK * freeChunks.size();
+	}
+
+	@Override
+	public String toString() {
+		return freeChunks.toString();
+	}
+
+}
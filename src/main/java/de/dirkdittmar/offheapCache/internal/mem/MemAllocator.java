@@ -0,0 +1,68 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+/**
+ * Manages the free space of an arena with a fixed capacity. Addresses are
+ * byte indexes into the arena.
+ */
+public interface MemAllocator {
+
+	/**
+	 * Returned by {@link #allocate(int)} if there is no free chunk big enough.
+	 */
+	int NO_SPACE = -1;
+
+	/**
+	 * Reserve <code>size</code> bytes.
+	 * 
+	 * @return the address of the reserved bytes or {@link #NO_SPACE}
+	 */
+	int allocate(int size);
+
+	/**
+	 * Give back bytes reserved by {@link #allocate(int)}.
+	 */
+	void free(int address, int size);
+
+	/**
+	 * Gives back the end of a chunk reserved by {@link #allocate(int)}, or
+	 * keeps it in the chunk, as far as the allocator allows.
+	 * 
+	 * @return <code>true</code> if the chunk has <code>newSize</code> bytes
+	 *         now, e.g. for {@link #free(int, int)}; <code>false</code> if
+	 *         nothing changed
+	 */
+	default boolean shrink(final int address, final int size,
+			final int newSize) {
+		return false;
+	}
+
+	/**
+	 * Free everything. After a clear the allocator hands out addresses in
+	 * ascending order, starting at the beginning of the arena, until the next
+	 * {@link #free(int, int)}. Compaction relies on that: it re-allocates the
+	 * entries in address order, so every entry moves to the left or stays
+	 * where it is. Allocators keeping their bookkeeping inside the arena must
+	 * not write into or behind the allocated chunk until the next free, so
+	 * the entries still to move stay intact.
+	 */
+	void clear();
+
+	/**
+	 * @return whether {@link #clear()} keeps the promise compaction relies on
+	 */
+	boolean isCompactable();
+
+	int capacity();
+
+	int freeBytes();
+
+	int largestFreeChunk();
+
+	int freeChunkCount();
+
+	/**
+	 * Rough estimate of the heap bytes used for the bookkeeping.
+	 */
+	long heapFootprint();
+
+}
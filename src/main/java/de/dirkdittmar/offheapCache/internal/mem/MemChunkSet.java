@@ -2,18 +2,16 @@ package de.dirkdittmar.offheapCache.internal.mem;
 
 import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
 
-import java.util.Collection;
-import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.SortedSet;
+import java.util.NavigableSet;
 import java.util.TreeSet;
 
 public class MemChunkSet implements Iterable<MemChunk> {
 
 	private final MemChunk initialChunk;
 
-	private final SortedSet<MemChunk> freeChunks = new TreeSet<>();
+	private final NavigableSet<MemChunk> freeChunks = new TreeSet<>();
 
 	public MemChunkSet(final int size) {
 		checkArgument(size >= 1);
@@ -47,54 +45,40 @@ public class MemChunkSet implements Iterable<MemChunk> {
 		freeChunks.add(initialChunk);
 	}
 
+	/**
+	 * Free the chunk. Joins it with the free chunks it touches or intersects.
+	 * Only the direct neighbors are visited, so this is O(log n).
+	 */
 	public void add(final MemChunk chunk) {
 		checkOutOfRange(chunk);
 
-		if (freeChunks.isEmpty()) {
-			freeChunks.add(chunk);
-			return; // shortcut
+		int lower = chunk.loIdx;
+		int upper = chunk.hiIdx;
+
+		// join with the left neighbor
+		final MemChunk floor = freeChunks.floor(chunk);
+		if (floor != null && floor.hiIdx + 1 >= chunk.loIdx) {
+			freeChunks.remove(floor);
+			lower = floor.loIdx;
+			upper = Math.max(upper, floor.hiIdx);
 		}
 
-		// join with all free chunks
-		boolean joined = false;
-		final Collection<MemChunk> newChunks = new TreeSet<>();
-		for (final MemChunk freeChunk : freeChunks) {
-			if (freeChunk.isNeighbor(chunk) || freeChunk.intersects(chunk)
-					|| chunk.intersects(freeChunk)) {
-				newChunks.add(freeChunk.join(chunk));
-				joined = true;
-			} else {
-				newChunks.add(freeChunk);
+		// join with the right neighbor and every chunk in between
+		final Iterator<MemChunk> iter = freeChunks.tailSet(chunk, true)
+				.iterator();
+		while (iter.hasNext()) {
+			final MemChunk freeChunk = iter.next();
+			if (freeChunk.loIdx > upper + 1) {
+				break;
 			}
+			iter.remove();
+			upper = Math.max(upper, freeChunk.hiIdx);
 		}
-		if (!joined) {
-			newChunks.add(chunk);
-		}
-		freeChunks.clear();
-		freeChunks.addAll(newChunks);
-
-		if (freeChunks.size() > 1) {
-			// setup
-			final Deque<MemChunk> stack = new LinkedList<>(freeChunks);
-			freeChunks.clear();
-
-			// join all neighbors
-			while (!stack.isEmpty()) {
-				final MemChunk chunk1 = stack.pop();
-				if (stack.isEmpty()) {
-					// only one element left
-					freeChunks.add(chunk1);
-				} else {
-					final MemChunk chunk2 = stack.pop();
-					if (chunk1.isNeighbor(chunk2) || chunk1.intersects(chunk2)
-							|| chunk2.intersects(chunk1)) {
-						freeChunks.add(chunk1.join(chunk2));
-					} else {
-						freeChunks.add(chunk1);
-						stack.push(chunk2);
-					}
-				}
-			}
+
+		if (lower == chunk.loIdx && upper == chunk.hiIdx) {
+			freeChunks.add(chunk);
+		} else {
+			freeChunks.add(new MemChunk(lower, upper));
 		}
 	}
 
@@ -104,15 +88,44 @@ public class MemChunkSet implements Iterable<MemChunk> {
 				initialChunk);
 	}
 
+	/**
+	 * Reserve the chunk. Cuts it out of the free chunks it intersects. Only
+	 * the intersecting chunks are visited, so this is O(log n).
+	 */
 	public void remove(final MemChunk chunk) {
 		checkOutOfRange(chunk);
 
-		final Collection<MemChunk> newChunks = new LinkedList<>();
-		for (final MemChunk freeChunk : freeChunks) {
-			freeChunk.substract(chunk, newChunks);
+		MemChunk leftRest = null;
+		MemChunk rightRest = null;
+
+		final MemChunk lower = freeChunks.lower(chunk);
+		if (lower != null && lower.hiIdx >= chunk.loIdx) {
+			freeChunks.remove(lower);
+			leftRest = new MemChunk(lower.loIdx, chunk.loIdx - 1);
+			if (lower.hiIdx > chunk.hiIdx) {
+				rightRest = new MemChunk(chunk.hiIdx + 1, lower.hiIdx);
+			}
+		}
+
+		final Iterator<MemChunk> iter = freeChunks.tailSet(chunk, true)
+				.iterator();
+		while (iter.hasNext()) {
+			final MemChunk freeChunk = iter.next();
+			if (freeChunk.loIdx > chunk.hiIdx) {
+				break;
+			}
+			iter.remove();
+			if (freeChunk.hiIdx > chunk.hiIdx) {
+				rightRest = new MemChunk(chunk.hiIdx + 1, freeChunk.hiIdx);
+			}
+		}
+
+		if (leftRest != null) {
+			freeChunks.add(leftRest);
+		}
+		if (rightRest != null) {
+			freeChunks.add(rightRest);
 		}
-		freeChunks.clear();
-		freeChunks.addAll(newChunks);
 	}
 
 	@Override
@@ -0,0 +1,199 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the free chunks in segregated lists, one per {@link SizeClasses size
+ * class}. Every chunk of a class above the class of the requested size is big
+ * enough, so a bitmap of the non empty classes finds a fitting chunk in O(1).
+ * Only if all bigger classes are empty the class of the requested size is
+ * scanned. Freed chunks are joined with their direct neighbors in O(log n).
+ */
+public class SizeClassMemAllocator implements MemAllocator {
+
+	/**
+	 * a TreeMap node with two Integers and a TreeSet node with an Integer
+	 */
+	private static final int HEAP_BYTES_PER_CHUNK = 40 + 16 + 16 + 40 + 16;
+
+	private final int capacity;
+
+	/**
+	 * all free chunks: loIdx -> hiIdx
+	 */
+	private final NavigableMap<Integer, Integer> freeChunks = new TreeMap<>();
+
+	/**
+	 * loIdx of the free chunks per size class
+	 */
+	private final List<NavigableSet<Integer>> sizeClasses = new ArrayList<>(
+			SizeClasses.CLASSES);
+
+	/**
+	 * bit n is set if size class n is not empty
+	 */
+	private final long[] nonEmptyClasses = SizeClasses.newBitmap();
+
+	private int freeBytes;
+
+	public SizeClassMemAllocator(final int capacity) {
+		checkArgument(capacity >= 1);
+		this.capacity = capacity;
+		for (int i = 0; i < SizeClasses.CLASSES; i++) {
+			sizeClasses.add(new TreeSet<Integer>());
+		}
+		clear();
+	}
+
+	@Override
+	public int allocate(final int size) {
+		checkArgument(size >= 1, "size >= 1");
+
+		final int sizeClass = SizeClasses.sizeClass(size);
+		final int fittingClass = SizeClasses.fittingClass(size);
+		int lower = NO_SPACE;
+		final int found = SizeClasses.next(nonEmptyClasses, fittingClass);
+		if (found >= 0) {
+			lower = sizeClasses.get(found).first();
+		} else if (fittingClass != sizeClass) {
+			for (final Integer lo : sizeClasses.get(sizeClass)) {
+				if (freeChunks.get(lo) - lo + 1 >= size) {
+					lower = lo;
+					break;
+				}
+			}
+		}
+		if (lower == NO_SPACE) {
+			return NO_SPACE;
+		}
+
+		final int upper = freeChunks.get(lower);
+		removeChunk(lower, upper);
+		if (lower + size <= upper) {
+			addChunk(lower + size, upper);
+		}
+		freeBytes -= size;
+		return lower;
+	}
+
+	@Override
+	public void free(final int address, final int size) {
+		checkArgument(address >= 0 && size >= 1 && address + size <= capacity,
+				"out of range: [%s..%s]", address, address + size - 1);
+
+		int lower = address;
+		int upper = address + size - 1;
+
+		final Map.Entry<Integer, Integer> left = freeChunks.floorEntry(upper);
+		checkArgument(left == null || left.getValue() < lower,
+				"not allocated: [%s..%s]", lower, upper);
+		if (left != null && left.getValue() + 1 == lower) {
+			removeChunk(left.getKey(), left.getValue());
+			lower = left.getKey();
+		}
+		final Integer rightUpper = freeChunks.get(upper + 1);
+		if (rightUpper != null) {
+			removeChunk(upper + 1, rightUpper);
+			upper = rightUpper;
+		}
+		addChunk(lower, upper);
+		freeBytes += size;
+	}
+
+	@Override
+	public boolean shrink(final int address, final int size,
+			final int newSize) {
+		checkArgument(newSize >= 1 && newSize <= size, "1 <= newSize <= size");
+		if (newSize < size) {
+			free(address + newSize, size - newSize);
+		}
+		return true;
+	}
+
+	private void addChunk(final int lower, final int upper) {
+		final int sizeClass = SizeClasses.sizeClass(upper - lower + 1);
+		freeChunks.put(lower, upper);
+		sizeClasses.get(sizeClass).add(lower);
+		SizeClasses.set(nonEmptyClasses, sizeClass);
+	}
+
+	private void removeChunk(final int lower, final int upper) {
+		final int sizeClass = SizeClasses.sizeClass(upper - lower + 1);
+		freeChunks.remove(lower);
+		final NavigableSet<Integer> chunks = sizeClasses.get(sizeClass);
+		chunks.remove(lower);
+		if (chunks.isEmpty()) {
+			SizeClasses.unset(nonEmptyClasses, sizeClass);
+		}
+	}
+
+	@Override
+	public void clear() {
+		freeChunks.clear();
+		for (final NavigableSet<Integer> chunks : sizeClasses) {
+			chunks.clear();
+		}
+		Arrays.fill(nonEmptyClasses, 0L);
+		addChunk(0, capacity - 1);
+		freeBytes = capacity;
+	}
+
+	@Override
+	public boolean isCompactable() {
+		return true;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public int freeBytes() {
+		return freeBytes;
+	}
+
+	@Override
+	public int largestFreeChunk() {
+		int result = 0;
+		final int sizeClass = SizeClasses.last(nonEmptyClasses);
+		if (sizeClass >= 0) {
+			for (final Integer lo : sizeClasses.get(sizeClass)) {
+				result = Math.max(result, freeChunks.get(lo) - lo + 1);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public int freeChunkCount() {
+		return freeChunks.size();
+	}
+
+	@Override
+	public long heapFootprint() {
+		return (long) HEAP_BYTES_PER_CHUNK * freeChunks.size();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("[");
+		for (final Map.Entry<Integer, Integer> chunk : freeChunks.entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(", ");
+			}
+			sb.append(new MemChunk(chunk.getKey(), chunk.getValue()));
+		}
+		return sb.append("]").toString();
+	}
+
+}
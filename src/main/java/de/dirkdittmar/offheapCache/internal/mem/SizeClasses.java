@@ -0,0 +1,99 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+/**
+ * Size classes for segregated free lists. Every power of two range is split
+ * into {@value #SUB_CLASSES} classes, sizes below {@value #SUB_CLASSES} have a
+ * class of their own. The non empty classes are tracked in a bitmap.
+ */
+final class SizeClasses {
+
+	private static final int SUB_CLASS_BITS = 3;
+
+	static final int SUB_CLASSES = 1 << SUB_CLASS_BITS;
+
+	static final int CLASSES = sizeClass(Integer.MAX_VALUE) + 1;
+
+	private SizeClasses() {
+	}
+
+	/**
+	 * The class of a chunk: the highest bit of the size and the
+	 * {@value #SUB_CLASS_BITS} bits below.
+	 */
+	static int sizeClass(final int size) {
+		if (size < SUB_CLASSES) {
+			return size;
+		}
+		final int log2 = 31 - Integer.numberOfLeadingZeros(size);
+		final int subClass = (size >>> (log2 - SUB_CLASS_BITS))
+				& (SUB_CLASSES - 1);
+		return (log2 - SUB_CLASS_BITS + 1) * SUB_CLASSES + subClass;
+	}
+
+	/**
+	 * The smallest chunk size of a class.
+	 */
+	static int minSize(final int sizeClass) {
+		if (sizeClass < SUB_CLASSES) {
+			return sizeClass;
+		}
+		final int log2 = sizeClass / SUB_CLASSES + SUB_CLASS_BITS - 1;
+		final int subClass = sizeClass % SUB_CLASSES;
+		return (SUB_CLASSES + subClass) << (log2 - SUB_CLASS_BITS);
+	}
+
+	/**
+	 * The first class with only chunks of at least <code>size</code> bytes.
+	 */
+	static int fittingClass(final int size) {
+		final int sizeClass = sizeClass(size);
+		return minSize(sizeClass) == size ? sizeClass : sizeClass + 1;
+	}
+
+	static long[] newBitmap() {
+		return new long[(CLASSES + 63) / 64];
+	}
+
+	static void set(final long[] bitmap, final int sizeClass) {
+		bitmap[sizeClass >>> 6] |= 1L << sizeClass;
+	}
+
+	static void unset(final long[] bitmap, final int sizeClass) {
+		bitmap[sizeClass >>> 6] &= ~(1L << sizeClass);
+	}
+
+	static boolean isSet(final long[] bitmap, final int sizeClass) {
+		return (bitmap[sizeClass >>> 6] & (1L << sizeClass)) != 0;
+	}
+
+	/**
+	 * @return the first set class &gt;= <code>sizeClass</code> or -1
+	 */
+	static int next(final long[] bitmap, final int sizeClass) {
+		if (sizeClass >= CLASSES) {
+			return -1;
+		}
+		int word = sizeClass >>> 6;
+		long bits = bitmap[word] & (-1L << sizeClass);
+		while (bits == 0) {
+			if (++word == bitmap.length) {
+				return -1;
+			}
+			bits = bitmap[word];
+		}
+		return word * 64 + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * @return the highest set class or -1
+	 */
+	static int last(final long[] bitmap) {
+		for (int word = bitmap.length - 1; word >= 0; word--) {
+			if (bitmap[word] != 0) {
+				return word * 64 + 63 - Long.numberOfLeadingZeros(bitmap[word]);
+			}
+		}
+		return -1;
+	}
+
+}
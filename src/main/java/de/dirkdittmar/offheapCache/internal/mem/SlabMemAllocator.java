@@ -0,0 +1,315 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static de.dirkdittmar.offheapCache.internal.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Carves the arena into pages of a fixed size. A page is assigned to a slab
+ * class on demand and cut into chunks of the class size; the chunk sizes grow
+ * by a constant factor (memcached style). Each page has a bitmap of its free
+ * chunks, each class a bitmap of its pages with free chunks. A page whose
+ * chunks are all free goes back to the pool of free pages, so pages move to
+ * the classes that need them.
+ * <p>
+ * There is no external fragmentation within a class, so compaction is only
+ * needed to empty sparsely used pages for other classes. Values bigger than a
+ * page can't be stored.
+ * <p>
+ * Pages are never taken away from a class while they hold a chunk: there is
+ * no reassignment from the coldest or the emptiest class as in memcached.
+ * If the value sizes shift, the old classes keep their pages (calcification)
+ * and a put in a class without free chunks has to evict; the victims come in
+ * the order of the eviction policy, not by class, so it may take many of them
+ * until a page runs empty or a compaction packs the old classes into fewer
+ * pages. Workloads with shifting value sizes are better off with
+ * {@link BoundaryTagMemAllocator}.
+ */
+public class SlabMemAllocator implements MemAllocator {
+
+	public static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+	/**
+	 * Smaller arenas get smaller pages, but at least this many.
+	 */
+	public static final int DEFAULT_MIN_PAGES = 64;
+
+	public static final int MIN_PAGE_SIZE = 4 * 1024;
+
+	public static final int DEFAULT_MIN_CHUNK_SIZE = 64;
+
+	public static final double DEFAULT_GROWTH_FACTOR = 1.25;
+
+	private static final int ALIGNMENT = 8;
+
+	private final int capacity;
+
+	private final int pageSize;
+
+	/**
+	 * chunk size per class, ascending
+	 */
+	private final int[] chunkSizes;
+
+	/**
+	 * class per page, -1 if the page is free
+	 */
+	private final int[] pageClasses;
+
+	/**
+	 * free chunks per page
+	 */
+	private final BitSet[] freeChunkBits;
+
+	/**
+	 * used chunks per page
+	 */
+	private final int[] usedChunks;
+
+	/**
+	 * pages with free chunks per class
+	 */
+	private final BitSet[] partialPages;
+
+	private final BitSet freePages;
+
+	private int freeBytes;
+
+	private int freeChunks;
+
+	public SlabMemAllocator(final int capacity) {
+		this(capacity, defaultPageSize(capacity), DEFAULT_MIN_CHUNK_SIZE,
+				DEFAULT_GROWTH_FACTOR);
+	}
+
+	public SlabMemAllocator(final int capacity, final int pageSize,
+			final int minChunkSize, final double growthFactor) {
+		checkArgument(capacity >= 1);
+		checkArgument(pageSize >= 1 && pageSize <= capacity,
+				"0 < pageSize <= capacity");
+		checkArgument(minChunkSize >= 1, "minChunkSize >= 1");
+		checkArgument(growthFactor > 1.0, "growthFactor > 1.0");
+
+		this.capacity = capacity;
+		this.pageSize = pageSize;
+		this.chunkSizes = chunkSizes(pageSize, minChunkSize, growthFactor);
+
+		final int pages = capacity / pageSize;
+		this.pageClasses = new int[pages];
+		this.freeChunkBits = new BitSet[pages];
+		this.usedChunks = new int[pages];
+		this.partialPages = new BitSet[chunkSizes.length];
+		for (int i = 0; i < partialPages.length; i++) {
+			partialPages[i] = new BitSet(pages);
+		}
+		this.freePages = new BitSet(pages);
+		clear();
+	}
+
+	static int defaultPageSize(final int capacity) {
+		final int pageSize = Math.max(capacity / DEFAULT_MIN_PAGES,
+				MIN_PAGE_SIZE);
+		return Math.min(Math.min(pageSize, DEFAULT_PAGE_SIZE), capacity);
+	}
+
+	/**
+	 * From <code>minChunkSize</code> up to half a page, growing by
+	 * <code>growthFactor</code>; the last class takes a whole page.
+	 */
+	static int[] chunkSizes(final int pageSize, final int minChunkSize,
+			final double growthFactor) {
+		final List<Integer> sizes = new ArrayList<>();
+		double size = minChunkSize;
+		while (size <= pageSize / 2) {
+			final int aligned = ((int) Math.ceil(size) + ALIGNMENT - 1)
+					/ ALIGNMENT * ALIGNMENT;
+			if (aligned > pageSize / 2) {
+				break;
+			}
+			if (sizes.isEmpty() || aligned > sizes.get(sizes.size() - 1)) {
+				sizes.add(aligned);
+			}
+			size *= growthFactor;
+		}
+		sizes.add(pageSize);
+
+		final int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = sizes.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the smallest class with chunks of at least <code>size</code>
+	 *         bytes or -1
+	 */
+	private int slabClass(final int size) {
+		final int idx = Arrays.binarySearch(chunkSizes, size);
+		if (idx >= 0) {
+			return idx;
+		}
+		final int insertionPoint = -idx - 1;
+		return insertionPoint < chunkSizes.length ? insertionPoint : -1;
+	}
+
+	@Override
+	public int allocate(final int size) {
+		checkArgument(size >= 1, "size >= 1");
+
+		final int slabClass = slabClass(size);
+		if (slabClass < 0) {
+			return NO_SPACE;
+		}
+
+		int page = partialPages[slabClass].nextSetBit(0);
+		if (page < 0) {
+			page = freePages.nextSetBit(0);
+			if (page < 0) {
+				return NO_SPACE;
+			}
+			assignPage(page, slabClass);
+		}
+
+		final int chunk = freeChunkBits[page].nextSetBit(0);
+		freeChunkBits[page].clear(chunk);
+		usedChunks[page]++;
+		freeChunks--;
+		if (freeChunkBits[page].isEmpty()) {
+			partialPages[slabClass].clear(page);
+		}
+
+		final int chunkSize = chunkSizes[slabClass];
+		freeBytes -= chunkSize;
+		return page * pageSize + chunk * chunkSize;
+	}
+
+	private void assignPage(final int page, final int slabClass) {
+		final int chunks = pageSize / chunkSizes[slabClass];
+		if (freeChunkBits[page] == null
+				|| freeChunkBits[page].size() < chunks) {
+			freeChunkBits[page] = new BitSet(chunks);
+		}
+		freeChunkBits[page].clear();
+		freeChunkBits[page].set(0, chunks);
+		pageClasses[page] = slabClass;
+		usedChunks[page] = 0;
+		freePages.clear(page);
+		partialPages[slabClass].set(page);
+		freeChunks += chunks - 1; // the free page was one free chunk
+		// the tail of a page smaller than a chunk can't be used
+		freeBytes -= pageSize - chunks * chunkSizes[slabClass];
+	}
+
+	private void releasePage(final int page) {
+		final int slabClass = pageClasses[page];
+		final int chunks = pageSize / chunkSizes[slabClass];
+		pageClasses[page] = -1;
+		partialPages[slabClass].clear(page);
+		freePages.set(page);
+		freeChunks -= chunks - 1;
+		freeBytes += pageSize - chunks * chunkSizes[slabClass];
+	}
+
+	@Override
+	public void free(final int address, final int size) {
+		final int page = address / pageSize;
+		checkArgument(address >= 0 && page < pageClasses.length
+				&& pageClasses[page] >= 0, "not allocated: %s", address);
+		final int slabClass = pageClasses[page];
+		final int chunkSize = chunkSizes[slabClass];
+		final int offset = address - page * pageSize;
+		final int chunk = offset / chunkSize;
+		checkArgument(offset % chunkSize == 0 && size <= chunkSize
+				&& !freeChunkBits[page].get(chunk), "not allocated: %s",
+				address);
+
+		freeChunkBits[page].set(chunk);
+		partialPages[slabClass].set(page);
+		freeChunks++;
+		freeBytes += chunkSize;
+		if (--usedChunks[page] == 0) {
+			releasePage(page);
+		}
+	}
+
+	/**
+	 * The chunk keeps its slot, the rest of it stays unused.
+	 */
+	@Override
+	public boolean shrink(final int address, final int size,
+			final int newSize) {
+		checkArgument(newSize >= 1 && newSize <= size, "1 <= newSize <= size");
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(pageClasses, -1);
+		Arrays.fill(usedChunks, 0);
+		for (final BitSet pages : partialPages) {
+			pages.clear();
+		}
+		freePages.set(0, pageClasses.length);
+		freeBytes = pageClasses.length * pageSize;
+		freeChunks = pageClasses.length;
+	}
+
+	@Override
+	public boolean isCompactable() {
+		return true;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public int freeBytes() {
+		return freeBytes;
+	}
+
+	@Override
+	public int largestFreeChunk() {
+		if (!freePages.isEmpty()) {
+			return pageSize;
+		}
+		for (int slabClass = chunkSizes.length - 1; slabClass >= 0;
+				slabClass--) {
+			if (!partialPages[slabClass].isEmpty()) {
+				return chunkSizes[slabClass];
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public int freeChunkCount() {
+		return freeChunks;
+	}
+
+	/**
+	 * The per page and per class bitmaps; depends on the number of pages, not
+	 * on the number of entries.
+	 */
+	@Override
+	public long heapFootprint() {
+		final long pages = pageClasses.length;
+		final long pageBitmaps = pages * (pageSize / chunkSizes[0] / 8 + 48);
+		final long classBitmaps = (chunkSizes.length + 1) * (pages / 8 + 48);
+		return pages * 8 + pageBitmaps + classBitmaps;
+	}
+
+	int pageSize() {
+		return pageSize;
+	}
+
+	int[] chunkSizes() {
+		return chunkSizes.clone();
+	}
+
+}
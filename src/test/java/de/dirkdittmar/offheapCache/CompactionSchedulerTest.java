@@ -0,0 +1,94 @@
+package de.dirkdittmar.offheapCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CompactionSchedulerTest {
+
+	private final Random random = new Random();
+
+	private OffheapByteMap<Integer> fragmentedMap(final byte[][] stuff) {
+		final OffheapByteMap<Integer> map = new OffheapByteMap<>(100);
+		for (int i = 0; i < 10; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			map.put(i, stuff[i]);
+		}
+		for (int i = 0; i < 10; i += 2) {
+			map.remove(i);
+		}
+		return map;
+	}
+
+	@Test
+	public void checkTest() throws InterruptedException {
+		final byte[][] stuff = new byte[10][];
+		final OffheapByteMap<Integer> map = fragmentedMap(stuff);
+		final CompactionScheduler scheduler = new CompactionScheduler(map)
+				.stepBytes(10);
+
+		assertTrue(scheduler.check());
+		assertEquals(1, scheduler.cycles());
+		assertEquals(3, scheduler.steps());
+		assertEquals(1, map.memStats().freeChunkCount());
+		for (int i = 1; i < 10; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], map.get(i)));
+		}
+
+		assertFalse(scheduler.check());
+		assertEquals(1, scheduler.cycles());
+	}
+
+	@Test
+	public void checkTest_thresholds() throws InterruptedException {
+		final byte[][] stuff = new byte[10][];
+		final OffheapByteMap<Integer> map = fragmentedMap(stuff);
+
+		// fragmentation is 0.8 with 5 free chunks
+		assertFalse(new CompactionScheduler(map).maxFragmentation(0.9)
+				.check());
+		assertTrue(new CompactionScheduler(map).maxFragmentation(0.9)
+				.maxFreeChunks(4).check());
+	}
+
+	@Test
+	public void startStopTest() throws InterruptedException {
+		final byte[][] stuff = new byte[10][];
+		final OffheapByteMap<Integer> map = fragmentedMap(stuff);
+		final CompactionScheduler scheduler = new CompactionScheduler(map)
+				.checkInterval(1, TimeUnit.MILLISECONDS);
+
+		scheduler.start();
+		assertTrue(scheduler.isRunning());
+		for (int i = 0; i < 1000 && scheduler.cycles() == 0; i++) {
+			Thread.sleep(10);
+		}
+		scheduler.stop();
+		assertFalse(scheduler.isRunning());
+		assertEquals(1, scheduler.cycles());
+
+		map.put(10, new byte[50]);
+		assertEquals(0, scheduler.foregroundCompactions());
+		assertEquals(1, scheduler.avoidedForegroundCompactions());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void configureAfterStartTest() throws InterruptedException {
+		final CompactionScheduler scheduler = new CompactionScheduler(
+				new OffheapByteMap<Integer>(100));
+		scheduler.start();
+		try {
+			scheduler.maxDutyCycle(0.5);
+		} finally {
+			scheduler.stop();
+		}
+	}
+
+}
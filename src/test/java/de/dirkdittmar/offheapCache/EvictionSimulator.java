@@ -0,0 +1,149 @@
+package de.dirkdittmar.offheapCache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Replays a stream of keys against a map per {@link Eviction} and prints the
+ * hit rates: a get for each key, and a put on a miss, as a cache would do.
+ * <p>
+ * A recorded trace can be given with <code>-Dtrace=file</code>, one key per
+ * line; <code>-DcacheSize=bytes</code> and <code>-DvalueSize=bytes</code>
+ * set the size of the cache and of the values. Without a trace it uses
+ * generated ones.
+ */
+public class EvictionSimulator {
+
+	private static final int CACHE_SIZE = Integer.getInteger("cacheSize",
+			128 * 1024);
+
+	private static final int VALUE_SIZE = Integer.getInteger("valueSize", 100);
+
+	private static final int KEYS = 10000;
+
+	private static final int REQUESTS = 500000;
+
+	@Test
+	public void recorded() throws IOException {
+		final String trace = System.getProperty("trace");
+		if (trace != null) {
+			simulate(trace, read(trace));
+		}
+	}
+
+	@Test
+	public void zipf() {
+		final Random random = new Random(42);
+		final ZipfGenerator zipf = new ZipfGenerator(KEYS, 0.9);
+		final String[] keys = new String[REQUESTS];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Integer.toString(zipf.next(random));
+		}
+		simulate("zipf", keys);
+	}
+
+	@Test
+	public void zipfWithScans() {
+		final Random random = new Random(42);
+		final ZipfGenerator zipf = new ZipfGenerator(KEYS, 0.9);
+		final String[] keys = new String[REQUESTS];
+		int scanned = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if ((i / 5000) % 4 == 3) {
+				// every fourth block is a scan of keys seen once
+				keys[i] = "scan" + scanned++;
+			} else {
+				keys[i] = Integer.toString(zipf.next(random));
+			}
+		}
+		simulate("zipf with scans", keys);
+	}
+
+	@Test
+	public void loop() {
+		// slightly bigger than the cache, the worst case for LRU
+		final int loop = CACHE_SIZE / (VALUE_SIZE + 4) * 5 / 4;
+		final String[] keys = new String[REQUESTS];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = Integer.toString(i % loop);
+		}
+		simulate("loop", keys);
+	}
+
+	private void simulate(final String name, final String[] keys) {
+		final StringBuilder result = new StringBuilder(name).append(':');
+		for (final Eviction eviction : Eviction.values()) {
+			if (eviction != Eviction.NONE) {
+				result.append(String.format(" %s %.2f%%", eviction,
+						100.0 * hitRate(eviction, keys)));
+			}
+		}
+		System.out.println(result);
+	}
+
+	private double hitRate(final Eviction eviction, final String[] keys) {
+		final OffheapByteMap<String> map = new OffheapByteMap<>(
+				new OffheapMapConfig(CACHE_SIZE).eviction(eviction));
+		final byte[] value = new byte[VALUE_SIZE];
+		int hits = 0;
+		for (final String key : keys) {
+			if (map.get(key) != null) {
+				hits++;
+			} else {
+				map.put(key, value);
+			}
+		}
+		return (double) hits / keys.length;
+	}
+
+	private static String[] read(final String trace) throws IOException {
+		final List<String> result = new ArrayList<>();
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(trace),
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (!line.isEmpty()) {
+					result.add(line);
+				}
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Numbers from 0 to n - 1, 0 the most frequent one.
+	 */
+	private static class ZipfGenerator {
+
+		private final double[] cdf;
+
+		ZipfGenerator(final int n, final double skew) {
+			cdf = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, skew);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cdf[i] /= sum;
+			}
+		}
+
+		int next(final Random random) {
+			final int idx = Arrays.binarySearch(cdf, random.nextDouble());
+			return Math.min(idx >= 0 ? idx : -idx - 1, cdf.length - 1);
+		}
+
+	}
+
+}
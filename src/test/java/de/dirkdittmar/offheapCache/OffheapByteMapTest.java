@@ -1,13 +1,23 @@
 package de.dirkdittmar.offheapCache;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -56,8 +66,176 @@ public class OffheapByteMapTest {
 	@Test
 	public void getTest() throws UnsupportedEncodingException {
 		byte[] bytes = "foobar".getBytes("UTF8");
-		when(ccm.get("foobar")).thenReturn(bytes);
+		// the optimistic get copies a view of the value
+		when(ccm.read("foobar", Function.<ByteBuffer> identity())).thenReturn(
+				ByteBuffer.wrap(bytes));
 		assertTrue(Arrays.equals(bytes, map.get("foobar")));
-		verify(ccm).get("foobar");
+		verify(ccm).read("foobar", Function.<ByteBuffer> identity());
+	}
+
+	@Test
+	public void compactStepTest() {
+		when(ccm.compactStep(1024)).thenReturn(true);
+		assertTrue(map.compactStep(1024));
+		verify(ccm).compactStep(1024);
+	}
+
+	@Test
+	public void memStatsTest() {
+		final MemStats stats = new MemStats(100, 50, 10, 5, 15, 0, 0, 0, 0, 64);
+		when(ccm.memStats()).thenReturn(stats);
+		assertSame(stats, map.memStats());
+		verify(ccm).memStats();
+	}
+
+	private static final ByteConverter<Integer> KEY_CONVERTER = new ByteConverter<Integer>() {
+
+		@Override
+		public byte[] toBytes(final Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+
+		@Override
+		public Integer toValue(final byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+
+	@Test
+	public void readTest() {
+		final Function<ByteBuffer, Integer> reader = buffer -> buffer
+				.remaining();
+		when(ccm.read("foobar", reader)).thenReturn(6);
+		assertEquals(Integer.valueOf(6), map.read("foobar", reader));
+		verify(ccm).read("foobar", reader);
+	}
+
+	@Test
+	public void optimisticReadTest() throws InterruptedException {
+		final OffheapByteMap<Integer> real = new OffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024), KEY_CONVERTER);
+		for (int i = 0; i < 100; i++) {
+			real.put(i, new byte[] { 0 });
+		}
+
+		// each value is a run of the same byte, a torn read would mix them
+		final Thread writer = new Thread(() -> {
+			final Random random = new Random(42);
+			for (int i = 0; i < 20000; i++) {
+				final byte b = (byte) random.nextInt();
+				final byte[] value = new byte[1 + random.nextInt(200)];
+				Arrays.fill(value, b);
+				real.put(random.nextInt(100), value);
+				if (i % 100 == 0) {
+					real.compact();
+				}
+			}
+		});
+		writer.start();
+		final Random random = new Random(7);
+		while (writer.isAlive()) {
+			final byte[] value = real.get(random.nextInt(100));
+			for (final byte b : value) {
+				assertEquals(value[0], b);
+			}
+		}
+		writer.join();
+	}
+
+	@Test
+	public void lruTest() throws InterruptedException {
+		// lookups reorder the entries, so they must not run concurrently
+		checkEviction(Eviction.LRU);
+	}
+
+	@Test
+	public void snapshotTest() throws IOException {
+		final ByteConverter<Integer> keyConverter = new ByteConverter<Integer>() {
+
+			@Override
+			public byte[] toBytes(final Integer value) {
+				return ByteBuffer.allocate(4).putInt(value).array();
+			}
+
+			@Override
+			public Integer toValue(final byte[] bytes) {
+				return ByteBuffer.wrap(bytes).getInt();
+			}
+		};
+		final OffheapByteMap<Integer> map = new OffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024), keyConverter);
+		for (int i = 0; i < 1000; i++) {
+			map.put(i, new byte[] { (byte) i });
+		}
+		final Path file = Files.createTempFile("offheapCache", ".snapshot");
+		try {
+			map.snapshot(file);
+			map.clear();
+			map.put(1000, new byte[] { 1 });
+
+			map.restore(file);
+			assertEquals(1000, map.size());
+			for (int i = 0; i < 1000; i++) {
+				assertTrue(Arrays.equals(new byte[] { (byte) i }, map.get(i)));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshotTest_keysOnHeap() {
+		new OffheapByteMap<Integer>(1024).snapshot(Paths
+				.get("offheapCache.snapshot"));
+	}
+
+	@Test
+	public void clockTest() throws InterruptedException {
+		// lookups set the reference bits concurrently
+		checkEviction(Eviction.CLOCK);
+	}
+
+	private void checkEviction(final Eviction eviction)
+			throws InterruptedException {
+		final OffheapByteMap<Integer> real = new OffheapByteMap<>(
+				new OffheapMapConfig(4 * 1024).eviction(eviction),
+				KEY_CONVERTER);
+		final Thread writer = new Thread(() -> {
+			final Random random = new Random(42);
+			for (int i = 0; i < 20000; i++) {
+				final byte b = (byte) random.nextInt();
+				final byte[] value = new byte[1 + random.nextInt(200)];
+				Arrays.fill(value, b);
+				real.put(random.nextInt(100), value);
+			}
+		});
+		writer.start();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Thread[] readers = new Thread[2];
+		for (int t = 0; t < readers.length; t++) {
+			final Random random = new Random(t);
+			readers[t] = new Thread(() -> {
+				try {
+					while (writer.isAlive()) {
+						final byte[] value = real.get(random.nextInt(100));
+						if (value != null) {
+							for (final byte b : value) {
+								assertEquals(value[0], b);
+							}
+						}
+					}
+				} catch (final Throwable e) {
+					failure.set(e);
+				}
+			});
+			readers[t].start();
+		}
+		writer.join();
+		for (final Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(failure.get());
+		assertTrue(real.memStats().evictions() > 0);
+		assertTrue(real.size() <= 100);
 	}
 }
@@ -2,13 +2,255 @@ package de.dirkdittmar.offheapCache;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import org.junit.Test;
 
 public class OffheapMapTest {
 
+	/**
+	 * Counts the calls of the byte[] methods.
+	 */
+	private static class StringConverter implements BufferConverter<String> {
+
+		int byteCalls;
+
+		@Override
+		public int size(final String value) {
+			return value.length() * 2;
+		}
+
+		@Override
+		public void write(final String value, final ByteBuffer target) {
+			for (int i = 0; i < value.length(); i++) {
+				target.putChar(value.charAt(i));
+			}
+		}
+
+		@Override
+		public String read(final ByteBuffer source) {
+			final StringBuilder result = new StringBuilder();
+			while (source.hasRemaining()) {
+				result.append(source.getChar());
+			}
+			return result.toString();
+		}
+
+		@Override
+		public byte[] toBytes(final String value) {
+			byteCalls++;
+			return BufferConverter.super.toBytes(value);
+		}
+
+		@Override
+		public String toValue(final byte[] bytes) {
+			byteCalls++;
+			return BufferConverter.super.toValue(bytes);
+		}
+
+	}
+
 	@Test
 	public void test1() {
 		// fail("test me!");
 	}
-	
+
+	@Test
+	public void bufferConverterTest() {
+		final StringConverter converter = new StringConverter();
+		final OffheapMap<Integer, String> map = new OffheapMap<>(converter,
+				1024);
+
+		assertNull(map.put(1, "foo"));
+		assertEquals("foo", map.get(1));
+		assertEquals("foo", map.put(1, "foobar"));
+		assertEquals("foobar", map.get(1));
+		assertNull(map.get(2));
+		assertEquals(0, converter.byteCalls);
+
+		// the other operations go through byte[]
+		assertTrue(map.containsValue("foobar"));
+		assertTrue(converter.byteCalls > 0);
+	}
+
+	@Test
+	public void bufferConverterTest_failingOverwrite() {
+		final StringConverter converter = new StringConverter() {
+
+			@Override
+			public void write(final String value, final ByteBuffer target) {
+				if (value.equals("bad")) {
+					throw new IllegalArgumentException("can't serialize");
+				}
+				super.write(value, target);
+			}
+		};
+		final OffheapMap<Integer, String> map = new OffheapMap<>(converter,
+				1024);
+		map.put(1, "foo");
+		try {
+			map.put(1, "bad");
+			fail("wtf?");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("foo", map.get(1));
+	}
+
+	@Test
+	public void bufferConverterTest_defaults() {
+		final StringConverter converter = new StringConverter();
+		final byte[] bytes = converter.toBytes("foo");
+		assertArrayEquals("foo".getBytes(StandardCharsets.UTF_16BE), bytes);
+		assertEquals("foo", converter.toValue(bytes));
+		assertNull(converter.toBytes(null));
+		assertNull(converter.toValue(null));
+	}
+
+
+	@Test
+	public void ttlTest() throws InterruptedException {
+		final OffheapMap<String, String> map = new OffheapMap<>(
+				new StringConverter(), new OffheapMapConfig(1024).expiry(true));
+		map.put("a", "foo", 1, TimeUnit.MILLISECONDS);
+		map.put("b", "bar", 1, TimeUnit.HOURS);
+		Thread.sleep(10);
+		assertNull(map.get("a"));
+		assertEquals("bar", map.get("b"));
+	}
+
+	@Test
+	public void computeTest() {
+		final OffheapMap<String, String> map = new OffheapMap<>(
+				new StringConverter(), new OffheapMapConfig(1024));
+		assertEquals("foo", map.merge("a", "foo", String::concat));
+		assertEquals("foobar", map.merge("a", "bar", String::concat));
+		assertEquals("FOOBAR", map.computeIfPresent("a",
+				(key, value) -> value.toUpperCase()));
+		assertEquals("b", map.computeIfAbsent("b", key -> key));
+		assertNull(map.compute("b", (key, value) -> null));
+		assertEquals(1, map.size());
+	}
+
+	@Test
+	public void entrySetTest() {
+		final StringConverter converter = new StringConverter();
+		final OffheapMap<String, String> map = new OffheapMap<>(converter,
+				new OffheapMapConfig(1024));
+		map.put("a", "foo");
+		map.put("b", "bar");
+		final Map<String, String> copy = new HashMap<>();
+		for (final Map.Entry<String, String> entry : map.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue());
+		}
+		assertEquals(2, copy.size());
+		assertEquals("foo", copy.get("a"));
+		assertEquals("bar", copy.get("b"));
+		assertTrue(map.values().contains("bar"));
+		// read from the views, no byte[] copies
+		assertEquals(0, converter.byteCalls);
+	}
+
+	@Test
+	public void loaderTest() throws Exception {
+		final OffheapMap<String, String> map = new OffheapMap<>(
+				new StringConverter(), new OffheapMapConfig(1024));
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final Future<?>[] results = new Future<?>[8];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = executor.submit(() -> map.get("a", key -> {
+					loads.incrementAndGet();
+					try {
+						// let the others miss too
+						waiting.await(100, TimeUnit.MILLISECONDS);
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return "foo";
+				}));
+			}
+			for (final Future<?> result : results) {
+				assertEquals("foo", result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, loads.get());
+		assertEquals("foo", map.get("a"));
+		assertEquals("foo", map.get("a", key -> {
+			fail();
+			return null;
+		}));
+
+		assertNull(map.get("b", key -> null));
+		assertFalse(map.containsKey("b"));
+		try {
+			map.get("b", key -> {
+				throw new IllegalStateException("backend down");
+			});
+			fail();
+		} catch (final IllegalStateException e) {
+			assertEquals("backend down", e.getMessage());
+		}
+		// a failed load is not remembered
+		assertEquals("bar", map.get("b", key -> "bar"));
+	}
+
+	@Test
+	public void loaderTest_recursive() {
+		final OffheapMap<String, String> map = new OffheapMap<>(
+				new StringConverter(), new OffheapMapConfig(1024));
+		final Function<String, String> loader = new Function<String, String>() {
+
+			@Override
+			public String apply(final String key) {
+				return map.get(key, this);
+			}
+		};
+		try {
+			map.get("a", loader);
+			fail();
+		} catch (final IllegalStateException e) {
+			assertEquals("Recursive load", e.getMessage());
+		}
+		assertFalse(map.containsKey("a"));
+
+		// other keys may be loaded from a loader
+		assertEquals("bar", map.get("a", key -> map.get("b", k -> "bar")));
+		assertEquals("bar", map.get("b"));
+	}
+
+	@Test
+	public void getAllTest() {
+		final OffheapMap<String, String> map = new OffheapMap<>(
+				new StringConverter(), new OffheapMapConfig(1024));
+		map.put("a", "foo");
+		final Map<String, String> loaded = map.getAll(
+				Arrays.asList("a", "b", "c", "b"), keys -> {
+					assertEquals(2, keys.size());
+					assertFalse(keys.contains("a"));
+					final Map<String, String> result = new HashMap<>();
+					result.put("b", "bar");
+					return result;
+				});
+		assertEquals(2, loaded.size());
+		assertEquals("foo", loaded.get("a"));
+		assertEquals("bar", loaded.get("b"));
+		assertEquals("bar", map.get("b"));
+		assertFalse(map.containsKey("c"));
+	}
 }
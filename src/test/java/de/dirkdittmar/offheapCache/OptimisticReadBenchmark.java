@@ -0,0 +1,103 @@
+package de.dirkdittmar.offheapCache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import de.dirkdittmar.offheapCache.internal.InternalOffheapMap;
+
+/**
+ * 95% gets, 5% puts from several threads: the optimistic reads of
+ * {@link OffheapByteMap} against a fair read/write lock around the same map.
+ */
+public class OptimisticReadBenchmark {
+
+	private static final int SIZE = 16 * 1024 * 1024;
+
+	private static final int KEYS = 10000;
+
+	private static final int OPERATIONS = 200000;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	@Test
+	public void fairLock() throws InterruptedException {
+		for (final int threads : THREADS) {
+			final InternalOffheapMap<Integer> map = new InternalOffheapMap<>(
+					new OffheapMapConfig(SIZE)
+							.allocationStrategy(AllocationStrategy.SIZE_CLASS));
+			final ReadWriteLock rwLock = new ReentrantReadWriteLock(true);
+			run("fair lock", threads, key -> {
+				rwLock.readLock().lock();
+				try {
+					return map.get(key);
+				} finally {
+					rwLock.readLock().unlock();
+				}
+			}, (key, value) -> {
+				rwLock.writeLock().lock();
+				try {
+					map.put(key, value);
+				} finally {
+					rwLock.writeLock().unlock();
+				}
+			});
+		}
+	}
+
+	@Test
+	public void optimistic() throws InterruptedException {
+		for (final int threads : THREADS) {
+			final OffheapByteMap<Integer> map = new OffheapByteMap<>(
+					new OffheapMapConfig(SIZE)
+							.allocationStrategy(AllocationStrategy.SIZE_CLASS));
+			run("optimistic", threads, map::get, map::put);
+		}
+	}
+
+	private void run(final String name, final int threads,
+			final Function<Integer, byte[]> get,
+			final BiConsumer<Integer, byte[]> put)
+			throws InterruptedException {
+		for (int i = 0; i < KEYS; i++) {
+			put.accept(i, new byte[100]);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < OPERATIONS; i++) {
+						final int key = random.nextInt(KEYS);
+						if (random.nextInt(20) == 0) {
+							put.accept(key, new byte[50 + random.nextInt(100)]);
+						} else {
+							get.apply(key);
+						}
+					}
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long nanos = System.nanoTime() - begin;
+
+		System.out.println(String.format("[%s] %d threads: %,d ops/s", name,
+				threads, (long) threads * OPERATIONS * 1000000000L / nanos));
+	}
+
+}
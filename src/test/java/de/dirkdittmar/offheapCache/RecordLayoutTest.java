@@ -0,0 +1,79 @@
+package de.dirkdittmar.offheapCache;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import de.dirkdittmar.offheapCache.RecordLayout.ByteField;
+import de.dirkdittmar.offheapCache.RecordLayout.BytesField;
+import de.dirkdittmar.offheapCache.RecordLayout.DoubleField;
+import de.dirkdittmar.offheapCache.RecordLayout.IntField;
+import de.dirkdittmar.offheapCache.RecordLayout.LongField;
+import de.dirkdittmar.offheapCache.RecordLayout.ShortField;
+
+public class RecordLayoutTest {
+
+	@Test
+	public void layoutTest() {
+		final RecordLayout layout = new RecordLayout();
+		final LongField l = layout.addLong();
+		final ByteField b = layout.addByte();
+		final IntField i = layout.addInt();
+		final BytesField bytes = layout.addBytes(3);
+		final ShortField s = layout.addShort();
+		final DoubleField d = layout.addDouble();
+
+		assertEquals(0, l.offset());
+		assertEquals(8, b.offset());
+		assertEquals(9, i.offset());
+		assertEquals(13, bytes.offset());
+		assertEquals(16, s.offset());
+		assertEquals(18, d.offset());
+		assertEquals(26, layout.size());
+
+		final ByteBuffer record = ByteBuffer.allocate(layout.size());
+		l.set(record, Long.MAX_VALUE);
+		b.set(record, (byte) -1);
+		i.set(record, 42);
+		bytes.set(record, new byte[] { 1, 2, 3 });
+		s.set(record, (short) 7);
+		d.set(record, 0.5);
+
+		assertEquals(0, record.position());
+		assertEquals(Long.MAX_VALUE, l.get(record));
+		assertEquals((byte) -1, b.get(record));
+		assertEquals(42, i.get(record));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, bytes.get(record));
+		assertEquals((short) 7, s.get(record));
+		assertEquals(0.5, d.get(record), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bytesFieldTest_wrongLength() {
+		final RecordLayout layout = new RecordLayout();
+		final BytesField bytes = layout.addBytes(3);
+		bytes.set(ByteBuffer.allocate(layout.size()), new byte[2]);
+	}
+
+	@Test
+	public void mapTest() {
+		final RecordLayout layout = new RecordLayout();
+		final LongField timestamp = layout.addLong();
+		final ByteField status = layout.addByte();
+
+		final OffheapByteMap<String> map = new OffheapByteMap<>(1024);
+		map.write("a", layout.size(), layout.writer(record -> {
+			timestamp.set(record, 1000L);
+			status.set(record, (byte) 1);
+		}), null);
+
+		assertEquals(Long.valueOf(1000L), map.read("a", timestamp::get));
+		assertTrue(map.update("a", record -> status.set(record, (byte) 2)));
+		assertEquals(Byte.valueOf((byte) 2), map.read("a", status::get));
+		assertEquals(Long.valueOf(1000L), map.read("a", timestamp::get));
+		assertFalse(map.update("b", record -> status.set(record, (byte) 2)));
+	}
+
+}
@@ -0,0 +1,97 @@
+package de.dirkdittmar.offheapCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+/**
+ * Scans all entries with a parallel stream over
+ * {@link CompactableConcurrentMap#spliterator} and prints the throughput by
+ * thread count, in total and per thread; and, for comparison, the scan by
+ * keySet and get.
+ */
+public class ScanBenchmark {
+
+	private static final int SIZE = 64 * 1024 * 1024;
+
+	private static final int KEYS = 500000;
+
+	private static final int ROUNDS = 5;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	private static final ByteConverter<Integer> KEY_CONVERTER = new ByteConverter<Integer>() {
+
+		@Override
+		public byte[] toBytes(final Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+
+		@Override
+		public Integer toValue(final byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+
+	@Test
+	public void heapIndex() throws Exception {
+		run(new OffheapByteMap<Integer>(new OffheapMapConfig(SIZE)));
+	}
+
+	@Test
+	public void offheapIndex() throws Exception {
+		run(new OffheapByteMap<Integer>(new OffheapMapConfig(SIZE),
+				KEY_CONVERTER));
+	}
+
+	@Test
+	public void striped() throws Exception {
+		run(new StripedOffheapByteMap<Integer>(new OffheapMapConfig(SIZE), 16));
+	}
+
+	private void run(final CompactableConcurrentMap<Integer, byte[]> map)
+			throws InterruptedException, ExecutionException {
+		for (int i = 0; i < KEYS; i++) {
+			map.put(i, new byte[50 + i % 100]);
+		}
+		final String name = map.getClass().getSimpleName();
+
+		long begin = System.nanoTime();
+		long sum = 0;
+		for (final Integer key : map.keySet()) {
+			sum += map.get(key).length;
+		}
+		print(name, "keySet and get", 1, System.nanoTime() - begin, sum);
+
+		for (final int threads : THREADS) {
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				begin = System.nanoTime();
+				for (int i = 0; i < ROUNDS; i++) {
+					sum = pool.submit(
+							() -> StreamSupport
+									.stream(map.spliterator((key, value) -> value
+											.remaining()), true)
+									.mapToLong(Integer::longValue).sum())
+							.get();
+				}
+				print(name, "spliterator", threads, (System.nanoTime() - begin)
+						/ ROUNDS, sum);
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	private static void print(final String name, final String scan,
+			final int threads, final long nanos, final long bytes) {
+		final long perSecond = (long) KEYS * 1000000000L / nanos;
+		System.out.println(String.format(
+				"[%s] %s, %d threads: %,d entries/s, %,d per thread (%,d bytes)",
+				name, scan, threads, perSecond, perSecond / threads, bytes));
+	}
+
+}
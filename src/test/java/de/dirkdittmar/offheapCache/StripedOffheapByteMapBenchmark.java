@@ -0,0 +1,79 @@
+package de.dirkdittmar.offheapCache;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Puts and gets random keys from several threads and prints the throughput
+ * of a single locked map and of a striped one by thread count.
+ */
+public class StripedOffheapByteMapBenchmark {
+
+	private static final int SIZE = 16 * 1024 * 1024;
+
+	private static final int KEYS = 10000;
+
+	private static final int OPERATIONS = 50000;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	@Test
+	public void singleLock() throws InterruptedException {
+		for (final int threads : THREADS) {
+			run(new OffheapByteMap<Integer>(SIZE), threads);
+		}
+	}
+
+	@Test
+	public void striped() throws InterruptedException {
+		for (final int threads : THREADS) {
+			run(new StripedOffheapByteMap<Integer>(SIZE, 16), threads);
+		}
+	}
+
+	private void run(final CompactableConcurrentMap<Integer, byte[]> map,
+			final int threads) throws InterruptedException {
+		for (int i = 0; i < KEYS; i++) {
+			map.put(i, new byte[100]);
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < OPERATIONS; i++) {
+							final int key = random.nextInt(KEYS);
+							if (random.nextInt(4) == 0) {
+								map.put(key, new byte[50 + random.nextInt(100)]);
+							} else {
+								map.get(key);
+							}
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		final long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long nanos = System.nanoTime() - begin;
+
+		System.out.println(String.format("[%s] %d threads: %,d ops/s", map
+				.getClass().getSimpleName(), threads, (long) threads
+				* OPERATIONS * 1000000000L / nanos));
+	}
+
+}
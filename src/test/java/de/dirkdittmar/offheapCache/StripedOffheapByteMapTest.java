@@ -0,0 +1,197 @@
+package de.dirkdittmar.offheapCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.StreamSupport;
+
+import org.junit.Test;
+
+public class StripedOffheapByteMapTest {
+
+	private final Random random = new Random();
+
+	@Test
+	public void putGetTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				64 * 1024, 4);
+		final byte[][] stuff = new byte[100][];
+		for (int i = 0; i < 100; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			assertNull(map.put(i, stuff[i]));
+		}
+		assertEquals(100, map.size());
+		assertEquals(100, map.keySet().size());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(Arrays.equals(stuff[i], map.get(i)));
+		}
+		assertTrue(Arrays.equals(stuff[42], map.remove(42)));
+		assertFalse(map.containsKey(42));
+		assertTrue(map.containsValue(stuff[43]));
+
+		map.clear();
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void spreadTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				64 * 1024, 4);
+		for (int i = 0; i < 100; i++) {
+			map.put(i * 1024, new byte[10]);
+		}
+		final MemStats stats = map.memStats();
+		assertEquals(64 * 1024, stats.capacity());
+		assertEquals(64 * 1024 - 1000, stats.freeBytes());
+		assertEquals(4, stats.freeChunkCount());
+		assertTrue(stats.largestFreeChunk() < 16 * 1024 - 100);
+	}
+
+	@Test
+	public void heapFootprintTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024)
+						.allocationStrategy(AllocationStrategy.BOUNDARY_TAG), 4);
+		final OffheapByteMap<Integer> stripe = new OffheapByteMap<>(
+				new OffheapMapConfig(16 * 1024)
+						.allocationStrategy(AllocationStrategy.BOUNDARY_TAG));
+		final long heapFootprint = map.memStats().heapFootprint();
+		assertTrue(heapFootprint > 0);
+		assertEquals(4 * stripe.memStats().heapFootprint(), heapFootprint);
+
+		// the bookkeeping doesn't grow with the entries
+		for (int i = 0; i < 1000; i++) {
+			map.put(i, new byte[1 + i % 30]);
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			map.remove(i);
+		}
+		assertEquals(heapFootprint, map.memStats().heapFootprint());
+	}
+
+	@Test
+	public void putAllTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024), 4);
+		final Map<Integer, byte[]> m = new HashMap<>();
+		for (int i = 0; i < 100; i++) {
+			m.put(i, new byte[] { (byte) i });
+		}
+		map.putAll(m);
+		assertEquals(100, map.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(i, map.get(i)[0]);
+		}
+	}
+
+	@Test
+	public void cursorTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024), 4);
+		for (int i = 0; i < 100; i++) {
+			map.put(i, new byte[] { (byte) i });
+		}
+		final Cursor<Integer> cursor = map.cursor(16);
+		final List<Integer> seen = new ArrayList<>();
+		while (cursor.next((key, value) -> {
+			assertEquals(key.intValue(), value.get(0));
+			seen.add(key);
+		})) {
+			// next batch
+		}
+		assertEquals(100, seen.size());
+		assertEquals(100, new HashSet<>(seen).size());
+		assertEquals(100, map.entrySet().size());
+		int count = 0;
+		for (final byte[] value : map.values()) {
+			count += value.length;
+		}
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void spliteratorTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				new OffheapMapConfig(256 * 1024), 4);
+		for (int i = 0; i < 1000; i++) {
+			map.put(i, new byte[] { (byte) i });
+		}
+		final Cursor<Integer> cursor = map.cursor(16);
+		assertEquals(1000, cursor.estimateSize());
+		final Cursor<Integer> split = cursor.trySplit();
+		assertEquals(1000, cursor.estimateSize() + split.estimateSize());
+
+		assertEquals(1000, StreamSupport.stream(
+				map.spliterator((key, value) -> key), true).distinct().count());
+		assertEquals(500, map.removeIf((key, value) -> key % 2 == 0));
+		assertEquals(500, map.size());
+	}
+
+	@Test
+	public void getAllRemoveAllTest() {
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				new OffheapMapConfig(64 * 1024), 4);
+		final List<Integer> keys = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			map.put(i, new byte[] { (byte) i });
+			keys.add(i * 2);
+		}
+		final Map<Integer, byte[]> values = map.getAll(keys);
+		assertEquals(50, values.size());
+		for (final Map.Entry<Integer, byte[]> entry : values.entrySet()) {
+			assertEquals(entry.getKey().intValue(), entry.getValue()[0]);
+		}
+		assertEquals(50, map.removeAll(keys));
+		assertEquals(50, map.size());
+		assertFalse(map.containsKey(2));
+		assertTrue(map.containsKey(3));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void compactStepTest() {
+		final CompactableConcurrentMap<Integer, byte[]> stripe1 = mock(CompactableConcurrentMap.class);
+		final CompactableConcurrentMap<Integer, byte[]> stripe2 = mock(CompactableConcurrentMap.class);
+		when(stripe1.compactStep(1024)).thenReturn(false);
+		when(stripe2.compactStep(1024)).thenReturn(true);
+		final List<CompactableConcurrentMap<Integer, byte[]>> stripes = Arrays
+				.asList(stripe1, stripe2);
+		final StripedOffheapByteMap<Integer> map = new StripedOffheapByteMap<>(
+				stripes);
+
+		assertTrue(map.compactStep(1024));
+		verify(stripe1).compactStep(1024);
+		verify(stripe2).compactStep(1024);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void closeTest() {
+		final CompactableConcurrentMap<Integer, byte[]> stripe1 = mock(CompactableConcurrentMap.class);
+		final CompactableConcurrentMap<Integer, byte[]> stripe2 = mock(CompactableConcurrentMap.class);
+		final List<CompactableConcurrentMap<Integer, byte[]>> stripes = Arrays
+				.asList(stripe1, stripe2);
+		new StripedOffheapByteMap<>(stripes).close();
+		verify(stripe1).close();
+		verify(stripe2).close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullKeyTest() {
+		new StripedOffheapByteMap<Integer>(1024, 4).get(null);
+	}
+
+}
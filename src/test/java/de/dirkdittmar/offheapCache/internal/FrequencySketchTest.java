@@ -0,0 +1,54 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test
+	public void testIncrement() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(100);
+		assertEquals(0, sketch.frequency(42));
+		for (int i = 1; i <= 5; i++) {
+			sketch.increment(42);
+			assertEquals(i, sketch.frequency(42));
+		}
+		assertEquals(0, sketch.frequency(43));
+	}
+
+	@Test
+	public void testMaximum() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(100);
+		for (int i = 0; i < 20; i++) {
+			sketch.increment(42);
+		}
+		assertEquals(15, sketch.frequency(42));
+	}
+
+	@Test
+	public void testAging() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.ensureCapacity(16);
+		for (int i = 0; i < 8; i++) {
+			sketch.increment(42);
+		}
+		// enough other hashes to reach the sample size
+		for (int i = 0; i < 1000; i++) {
+			sketch.increment(1000 + i);
+		}
+		assertTrue(sketch.frequency(42) < 8);
+	}
+
+	@Test
+	public void testClear() {
+		final FrequencySketch sketch = new FrequencySketch();
+		sketch.increment(42);
+		sketch.clear();
+		assertEquals(0, sketch.frequency(42));
+	}
+
+}
@@ -2,19 +2,44 @@ package de.dirkdittmar.offheapCache.internal;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import org.junit.Test;
 
+import de.dirkdittmar.offheapCache.AllocationStrategy;
+import de.dirkdittmar.offheapCache.ByteConverter;
+import de.dirkdittmar.offheapCache.Cursor;
+import de.dirkdittmar.offheapCache.Eviction;
+import de.dirkdittmar.offheapCache.MemStats;
 import de.dirkdittmar.offheapCache.NotEnoughMemException;
+import de.dirkdittmar.offheapCache.OffheapMapConfig;
 import de.dirkdittmar.offheapCache.internal.InternalOffheapMap;
 
 public class InternalOffheapMapTest {
@@ -89,14 +114,286 @@ public class InternalOffheapMapTest {
 		}
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
+	@Test
 	public void testEntrySet() {
-		new InternalOffheapMap<>(20).entrySet();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				1000);
+		for (int i = 0; i < 300; i++) {
+			basicCache.put(i, new byte[] { (byte) i });
+		}
+		final Set<Map.Entry<Integer, byte[]>> entries = basicCache.entrySet();
+		assertEquals(300, entries.size());
+		final Set<Integer> seen = new HashSet<>();
+		final Iterator<Map.Entry<Integer, byte[]>> it = entries.iterator();
+		while (it.hasNext()) {
+			final Map.Entry<Integer, byte[]> entry = it.next();
+			assertTrue(seen.add(entry.getKey()));
+			assertEquals((byte) entry.getKey().intValue(), entry.getValue()[0]);
+			if (entry.getKey() % 2 == 0) {
+				it.remove();
+			}
+		}
+		assertEquals(300, seen.size());
+		assertEquals(150, basicCache.size());
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
+	@Test
 	public void testValues() {
-		new InternalOffheapMap<>(20).values();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				100);
+		assertFalse(basicCache.values().iterator().hasNext());
+		basicCache.put(1, new byte[] { 1 });
+		basicCache.put(2, new byte[] { 2 });
+		int sum = 0;
+		for (final byte[] value : basicCache.values()) {
+			sum += value[0];
+		}
+		assertEquals(3, sum);
+		assertEquals(2, basicCache.values().size());
+	}
+
+	@Test
+	public void testCursor() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(64 * 1024), KEY_CONVERTER);
+		for (int i = 0; i < 1000; i++) {
+			basicCache.put(i, new byte[] { (byte) i });
+		}
+		final Cursor<Integer> cursor = basicCache.cursor(100);
+		final Map<Integer, Integer> seen = new HashMap<>();
+		int batches = 0;
+		while (cursor.next((key, value) -> {
+			assertEquals(1, value.remaining());
+			assertEquals((byte) key.intValue(), value.get(0));
+			assertNull(seen.put(key, 1));
+		})) {
+			batches++;
+			if (batches == 2) {
+				// the index grows and shifts its entries in between
+				for (int i = 1000; i < 3000; i++) {
+					basicCache.put(i, new byte[] { (byte) i });
+				}
+				for (int i = 0; i < 1000; i += 10) {
+					basicCache.remove(i);
+				}
+			}
+		}
+		assertTrue(batches >= 10);
+		// each entry that was there all the time exactly once
+		for (int i = 0; i < 1000; i++) {
+			if (i % 10 != 0) {
+				assertTrue(seen.containsKey(i));
+			}
+		}
+		assertFalse(cursor.next((key, value) -> fail()));
+	}
+
+	@Test
+	public void testScanRemoveIf() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(64 * 1024), KEY_CONVERTER);
+		for (int i = 0; i < 1000; i++) {
+			basicCache.put(i, new byte[] { (byte) (i % 3) });
+		}
+		final AtomicLong sum = new AtomicLong();
+		basicCache.scan((key, value) -> sum.addAndGet(value.get(0)));
+		assertEquals(999, sum.get());
+
+		assertEquals(334, basicCache.removeIf((key, value) -> value.get(0) == 0));
+		assertEquals(666, basicCache.size());
+		assertFalse(basicCache.containsKey(3));
+		assertTrue(basicCache.containsKey(4));
+	}
+
+	@Test
+	public void testRemoveIf_changedMeanwhile() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(64 * 1024), KEY_CONVERTER);
+		for (int i = 0; i < 10; i++) {
+			basicCache.put(i, new byte[] { 0 });
+		}
+		final AtomicLong first = new AtomicLong(-1);
+		// changes the first accepted entry in place after the filter saw it
+		assertEquals(9, basicCache.removeIf((key, value) -> {
+			if (first.get() < 0) {
+				first.set(key);
+			} else if (first.get() != key) {
+				basicCache.replace((int) first.get(), new byte[] { 1 });
+			}
+			return true;
+		}));
+		assertEquals(1, basicCache.size());
+		assertTrue(Arrays.equals(new byte[] { 1 },
+				basicCache.get((int) first.get())));
+	}
+
+	@Test
+	public void testSpliterator() {
+		for (final ByteConverter<Integer> keyConverter : Arrays.asList(null,
+				KEY_CONVERTER)) {
+			final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+					new OffheapMapConfig(256 * 1024), keyConverter);
+			for (int i = 0; i < 10000; i++) {
+				basicCache.put(i, new byte[] { (byte) i });
+			}
+			final Spliterator<Integer> spliterator = basicCache
+					.spliterator((key, value) -> key);
+			assertNotNull(spliterator.trySplit());
+			final Set<Integer> keys = StreamSupport.stream(
+					basicCache.spliterator((key, value) -> key), true)
+					.collect(Collectors.toSet());
+			assertEquals(10000, keys.size());
+			assertEquals(
+					10000,
+					StreamSupport.stream(
+							basicCache.spliterator((key, value) -> value
+									.remaining()), true)
+							.mapToInt(Integer::intValue).sum());
+		}
+	}
+
+	@Test
+	public void testFile_reopen() throws IOException {
+		final Path dir = Files.createTempDirectory("offheapCache");
+		try {
+			final OffheapMapConfig config = new OffheapMapConfig(64 * 1024)
+					.allocationStrategy(AllocationStrategy.BOUNDARY_TAG)
+					.eviction(Eviction.LRU).expiry(true)
+					.file(dir.resolve("cache"));
+			final AtomicLong nanos = new AtomicLong();
+			final InternalOffheapMap<Integer> first = new InternalOffheapMap<>(
+					config, KEY_CONVERTER);
+			first.ticker(nanos::get);
+			for (int i = 0; i < 1000; i++) {
+				first.put(i, new byte[] { (byte) i, (byte) (i >> 8) });
+			}
+			// free chunks in between, the entries move on reopen
+			for (int i = 0; i < 1000; i += 3) {
+				first.remove(i);
+			}
+			first.put(1, new byte[] { 1 }, 1, TimeUnit.SECONDS);
+			first.put(2, new byte[] { 2 }, 1, TimeUnit.HOURS);
+			nanos.set(TimeUnit.SECONDS.toNanos(2));
+			first.close();
+			assertTrue(Files.exists(dir.resolve("cache.index")));
+
+			final InternalOffheapMap<Integer> second = new InternalOffheapMap<>(
+					config, KEY_CONVERTER);
+			assertFalse(Files.exists(dir.resolve("cache.index")));
+			assertEquals(665, second.size());
+			assertNull(second.get(1));
+			assertTrue(Arrays.equals(new byte[] { 2 }, second.get(2)));
+			for (int i = 4; i < 1000; i++) {
+				if (i % 3 != 0) {
+					assertTrue(Arrays.equals(new byte[] { (byte) i,
+							(byte) (i >> 8) }, second.get(i)));
+				}
+			}
+			assertEquals(1, second.memStats().freeChunkCount());
+
+			// not closed: the next map starts empty
+			second.put(1000, new byte[] { 1 });
+			final InternalOffheapMap<Integer> third = new InternalOffheapMap<>(
+					config, KEY_CONVERTER);
+			assertEquals(0, third.size());
+			third.put(1, new byte[] { 1 });
+			assertTrue(Arrays.equals(new byte[] { 1 }, third.get(1)));
+			third.close();
+		} finally {
+			for (final String name : dir.toFile().list()) {
+				Files.delete(dir.resolve(name));
+			}
+			Files.delete(dir);
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		final AtomicLong nanos = new AtomicLong();
+		final OffheapMapConfig config = new OffheapMapConfig(64 * 1024)
+				.eviction(Eviction.LRU).expiry(true);
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				config, KEY_CONVERTER);
+		basicCache.ticker(nanos::get);
+		for (int i = 0; i < 1000; i++) {
+			basicCache.put(i, new byte[] { (byte) i, (byte) (i >> 8) });
+		}
+		for (int i = 0; i < 1000; i += 3) {
+			basicCache.remove(i);
+		}
+		basicCache.put(1, new byte[] { 1 }, 1, TimeUnit.HOURS);
+		final Snapshot snapshot = basicCache.beginSnapshot();
+		assertEquals(666, snapshot.size());
+
+		// none of this may reach the chunks of the snapshot
+		final long freeBytes = basicCache.memStats().freeBytes();
+		basicCache.update(2, value -> value.put(0, (byte) -1));
+		basicCache.replace(4, new byte[] { -1, -1 });
+		basicCache.remove(5);
+		basicCache.put(5000, new byte[] { -1, -1 });
+		assertFalse(basicCache.compactStep(1024));
+		basicCache.clear();
+		for (int i = 0; i < 100; i++) {
+			basicCache.put(i, new byte[] { -1, -1 });
+		}
+		assertTrue(basicCache.memStats().freeBytes() < freeBytes);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		snapshot.write(Channels.newChannel(out));
+		basicCache.endSnapshot();
+		assertEquals(100, basicCache.size());
+
+		final InternalOffheapMap<Integer> restored = new InternalOffheapMap<>(
+				config, KEY_CONVERTER);
+		restored.put(5000, new byte[] { 1 });
+		restored.restore(Channels.newChannel(new ByteArrayInputStream(out
+				.toByteArray())));
+		assertEquals(666, restored.size());
+		assertNull(restored.get(5000));
+		assertTrue(Arrays.equals(new byte[] { 1 }, restored.get(1)));
+		for (int i = 2; i < 1000; i++) {
+			if (i % 3 != 0) {
+				assertTrue(Arrays.equals(new byte[] { (byte) i,
+						(byte) (i >> 8) }, restored.get(i)));
+			}
+		}
+		assertEquals(1, restored.memStats().freeChunkCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSnapshot_otherLayout() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1024), KEY_CONVERTER);
+		basicCache.beginSnapshot().write(Channels.newChannel(out));
+		basicCache.endSnapshot();
+		new InternalOffheapMap<>(new OffheapMapConfig(1024).expiry(true),
+				KEY_CONVERTER).restore(Channels.newChannel(new ByteArrayInputStream(
+				out.toByteArray())));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testFile_keysOnHeap() {
+		new InternalOffheapMap<Integer>(new OffheapMapConfig(1024).file(Paths
+				.get("cache")));
+	}
+
+	@Test
+	public void testCursor_expired() {
+		final AtomicLong nanos = new AtomicLong();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1000).expiry(true));
+		basicCache.ticker(nanos::get);
+		basicCache.put(1, new byte[] { 1 }, 1, TimeUnit.SECONDS);
+		basicCache.put(2, new byte[] { 2 });
+		nanos.set(TimeUnit.SECONDS.toNanos(2));
+
+		final Map<Integer, byte[]> seen = new HashMap<>();
+		for (final Map.Entry<Integer, byte[]> entry : basicCache.entrySet()) {
+			seen.put(entry.getKey(), entry.getValue());
+		}
+		assertEquals(1, seen.size());
+		assertTrue(Arrays.equals(new byte[] { 2 }, seen.get(2)));
 	}
 
 	@Test
@@ -191,6 +488,164 @@ public class InternalOffheapMapTest {
 		basicCache.put("test5", stuff5);
 	}
 
+	@Test
+	public void testAutoCompact_sizeClass() {
+		final InternalOffheapMap<String> basicCache = new InternalOffheapMap<>(
+				20, AllocationStrategy.SIZE_CLASS);
+
+		final byte[][] stuff = new byte[5][];
+		for (int i = 0; i < 4; i++) {
+			stuff[i] = new byte[5];
+			random.nextBytes(stuff[i]);
+			basicCache.put("test" + i, stuff[i]);
+		}
+
+		// delete 1 and 3 to get a fragmented ByteBuffer
+		assertTrue(Arrays.equals(stuff[1], basicCache.remove("test1")));
+		assertTrue(Arrays.equals(stuff[3], basicCache.remove("test3")));
+
+		stuff[4] = new byte[10];
+		random.nextBytes(stuff[4]);
+		basicCache.put("test4", stuff[4]);
+
+		assertTrue(Arrays.equals(stuff[0], basicCache.get("test0")));
+		assertTrue(Arrays.equals(stuff[2], basicCache.get("test2")));
+		assertTrue(Arrays.equals(stuff[4], basicCache.get("test4")));
+	}
+
+	@Test
+	public void testBoundaryTag() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				64 * 1024, AllocationStrategy.BOUNDARY_TAG);
+		final long heapFootprint = basicCache.arena().heapFootprint();
+		final Map<Integer, byte[]> expected = new HashMap<>();
+
+		for (int i = 0; i < 20000; i++) {
+			final Integer key = random.nextInt(1000);
+			if (random.nextInt(4) == 0) {
+				assertTrue(Arrays.equals(expected.remove(key),
+						basicCache.remove(key)));
+			} else {
+				final byte[] stuff = new byte[1 + random.nextInt(100)];
+				random.nextBytes(stuff);
+				assertTrue(Arrays.equals(expected.put(key, stuff),
+						basicCache.put(key, stuff)));
+			}
+		}
+
+		assertEquals(expected.size(), basicCache.size());
+		for (final Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+			assertTrue(Arrays.equals(entry.getValue(),
+					basicCache.get(entry.getKey())));
+		}
+		assertEquals(heapFootprint, basicCache.arena().heapFootprint());
+	}
+
+	@Test
+	public void testBoundaryTag_compact() {
+		final InternalOffheapMap<String> basicCache = new InternalOffheapMap<>(
+				64, AllocationStrategy.BOUNDARY_TAG);
+
+		// four blocks of 16 bytes fill the buffer completely
+		final byte[][] stuff = new byte[5][];
+		for (int i = 0; i < 4; i++) {
+			stuff[i] = new byte[8];
+			random.nextBytes(stuff[i]);
+			basicCache.put("test" + i, stuff[i]);
+		}
+
+		// delete 0 and 2 to get a fragmented ByteBuffer
+		basicCache.remove("test0");
+		basicCache.remove("test2");
+
+		stuff[4] = new byte[24];
+		random.nextBytes(stuff[4]);
+		basicCache.put("test4", stuff[4]);
+
+		assertTrue(Arrays.equals(stuff[1], basicCache.get("test1")));
+		assertTrue(Arrays.equals(stuff[3], basicCache.get("test3")));
+		assertTrue(Arrays.equals(stuff[4], basicCache.get("test4")));
+	}
+
+	@Test
+	public void testSlab() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				256 * 1024, AllocationStrategy.SLAB);
+		final Map<Integer, byte[]> expected = new HashMap<>();
+
+		// session records of 200 - 600 bytes, about 60% full
+		for (int i = 0; i < 20000; i++) {
+			final Integer key = random.nextInt(400);
+			final byte[] stuff = new byte[200 + random.nextInt(400)];
+			random.nextBytes(stuff);
+			assertTrue(Arrays.equals(expected.put(key, stuff),
+					basicCache.put(key, stuff)));
+		}
+
+		for (final Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+			assertTrue(Arrays.equals(entry.getValue(),
+					basicCache.get(entry.getKey())));
+		}
+	}
+
+	@Test
+	public void testSlab_compact() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				2 * 1024 * 1024, AllocationStrategy.SLAB);
+
+		// fill all pages with small values
+		final byte[] small = new byte[64];
+		int key = 0;
+		try {
+			while (true) {
+				basicCache.put(key++, small);
+			}
+		} catch (final NotEnoughMemException e) {
+			// full
+		}
+
+		// every other small value goes away, no page is empty
+		for (int i = 0; i < key; i += 2) {
+			basicCache.remove(i);
+		}
+
+		// compaction frees a page for the big value
+		final byte[] big = new byte[20000];
+		random.nextBytes(big);
+		basicCache.put(-1, big);
+		assertTrue(Arrays.equals(big, basicCache.get(-1)));
+		for (int i = 1; i < key - 1; i += 2) {
+			assertTrue(Arrays.equals(small, basicCache.get(i)));
+		}
+	}
+
+	@Test
+	public void testBuddy() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				64 * 1024, AllocationStrategy.BUDDY);
+		final Map<Integer, byte[]> expected = new HashMap<>();
+
+		for (int i = 0; i < 20000; i++) {
+			final Integer key = random.nextInt(200);
+			if (random.nextInt(4) == 0) {
+				assertTrue(Arrays.equals(expected.remove(key),
+						basicCache.remove(key)));
+			} else {
+				final byte[] stuff = new byte[1 + random.nextInt(150)];
+				random.nextBytes(stuff);
+				assertTrue(Arrays.equals(expected.put(key, stuff),
+						basicCache.put(key, stuff)));
+			}
+		}
+
+		for (final Map.Entry<Integer, byte[]> entry : expected.entrySet()) {
+			assertTrue(Arrays.equals(entry.getValue(),
+					basicCache.get(entry.getKey())));
+		}
+		basicCache.clear();
+		assertEquals(65536, basicCache.arena().largestFreeChunk());
+	}
+
 	@Test
 	public void testManuelCompact() {
 		final InternalOffheapMap<String> basicCache = new InternalOffheapMap<>(20);
@@ -223,6 +678,917 @@ public class InternalOffheapMapTest {
 		basicCache.put("test5", stuff5);
 	}
 
+	/**
+	 * <pre>
+	 * [free][1][free][3][free][5][free][7][free][9]
+	 * </pre>
+	 */
+	private InternalOffheapMap<Integer> fragmentedCache(
+			final OffheapMapConfig config, final byte[][] stuff) {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				config);
+		for (int i = 0; i < 10; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			basicCache.put(i, stuff[i]);
+		}
+		for (int i = 0; i < 10; i += 2) {
+			basicCache.remove(i);
+		}
+		return basicCache;
+	}
+
+	@Test
+	public void testCompactStep() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100), stuff);
+		assertEquals(5, basicCache.arena().freeChunkCount());
+
+		// 9, 7 and 5 move to the front, one per step
+		assertTrue(basicCache.compactStep(10));
+		assertTrue(basicCache.compactStep(10));
+		assertFalse(basicCache.compactStep(10));
+		assertEquals(1, basicCache.arena().freeChunkCount());
+		assertEquals(50, basicCache.arena().largestFreeChunk());
+
+		for (int i = 1; i < 10; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+		}
+		assertFalse(basicCache.compactStep(10));
+	}
+
+	@Test
+	public void testCompactStep_changedEntries() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100), stuff);
+
+		assertTrue(basicCache.compactStep(10)); // moves 9
+		basicCache.remove(7);
+		basicCache.put(5, stuff[5]); // moves to the front
+		assertFalse(basicCache.compactStep(10));
+
+		for (int i = 1; i < 10; i += 2) {
+			if (i != 7) {
+				assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+			}
+		}
+		assertEquals(1, basicCache.arena().freeChunkCount());
+	}
+
+	@Test
+	public void testCompactStep_buddy() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				64, AllocationStrategy.BUDDY);
+		final byte[][] stuff = new byte[4][];
+		for (int i = 0; i < 4; i++) {
+			stuff[i] = new byte[16];
+			random.nextBytes(stuff[i]);
+			basicCache.put(i, stuff[i]);
+		}
+		basicCache.remove(3);
+		basicCache.remove(0);
+
+		// 2 moves to the front, the upper half is free again
+		assertFalse(basicCache.compactStep(100));
+		assertEquals(32, basicCache.arena().largestFreeChunk());
+		assertTrue(Arrays.equals(stuff[1], basicCache.get(1)));
+		assertTrue(Arrays.equals(stuff[2], basicCache.get(2)));
+	}
+
+	@Test
+	public void testCompactionPauseBytes() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100).compactionPauseBytes(30), stuff);
+
+		final byte[] big = new byte[50];
+		random.nextBytes(big);
+		basicCache.put(10, big);
+		assertTrue(Arrays.equals(big, basicCache.get(10)));
+	}
+
+	@Test
+	public void testCompactionPauseBytes_exceeded() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100).compactionPauseBytes(10), stuff);
+
+		// one step of 10 bytes per put, not enough for the value
+		final byte[] big = new byte[50];
+		random.nextBytes(big);
+		try {
+			basicCache.put(10, big);
+			fail();
+		} catch (final NotEnoughMemException e) {
+			// expected
+		}
+		assertEquals(1, basicCache.memStats().foregroundCompactions());
+		for (int i = 1; i < 10; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+		}
+
+		// the background steps finish the cycle
+		while (basicCache.compactStep(10)) {
+			// next step
+		}
+		basicCache.put(10, big);
+		assertTrue(Arrays.equals(big, basicCache.get(10)));
+	}
+
+	@Test
+	public void testCompactionPauseBytes_evicts() {
+		// 10 entries of 14 bytes with the LRU header
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(140).compactionPauseBytes(10).eviction(
+						Eviction.LRU), stuff);
+		assertEquals(0, basicCache.memStats().evictions());
+
+		// evicts instead of compacting further
+		final byte[] big = new byte[40];
+		basicCache.put(10, big);
+		assertTrue(Arrays.equals(big, basicCache.get(10)));
+		assertEquals(1, basicCache.memStats().foregroundCompactions());
+		assertTrue(basicCache.memStats().evictions() > 0);
+	}
+
+	@Test
+	public void testMemStats() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100), stuff);
+
+		MemStats stats = basicCache.memStats();
+		assertEquals(100, stats.capacity());
+		assertEquals(50, stats.freeBytes());
+		assertEquals(10, stats.largestFreeChunk());
+		assertEquals(5, stats.freeChunkCount());
+		assertEquals(0.8, stats.fragmentation(), 0.001);
+		assertEquals(15, stats.modifications());
+		assertEquals(0, stats.foregroundCompactions());
+
+		basicCache.put(10, new byte[50]);
+		stats = basicCache.memStats();
+		assertEquals(0, stats.freeBytes());
+		assertEquals(0.0, stats.fragmentation(), 0.001);
+		assertEquals(1, stats.foregroundCompactions());
+		assertEquals(0, stats.avoidedForegroundCompactions());
+	}
+
+	@Test
+	public void testMemStats_avoidedForegroundCompactions() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100), stuff);
+
+		while (basicCache.compactStep(10)) {
+			// compact in the background
+		}
+		basicCache.put(10, new byte[30]);
+		basicCache.put(11, new byte[20]);
+		final MemStats stats = basicCache.memStats();
+		assertEquals(0, stats.foregroundCompactions());
+		assertEquals(1, stats.avoidedForegroundCompactions());
+	}
+
+	private static final ByteConverter<Integer> KEY_CONVERTER = new ByteConverter<Integer>() {
+
+		@Override
+		public byte[] toBytes(final Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+
+		@Override
+		public Integer toValue(final byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+
+	@Test
+	public void testOffheapIndex() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1000), KEY_CONVERTER);
+		final byte[][] stuff = new byte[10][];
+		for (int i = 0; i < 10; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			assertNull(basicCache.put(i, stuff[i]));
+		}
+		assertEquals(10, basicCache.size());
+		// 8 bytes key header per entry
+		assertEquals(1000 - 180, basicCache.arena().freeBytes());
+
+		final byte[] other = new byte[20];
+		random.nextBytes(other);
+		assertTrue(Arrays.equals(stuff[3], basicCache.put(3, other)));
+		assertTrue(Arrays.equals(other, basicCache.get(3)));
+		assertTrue(basicCache.containsValue(other));
+		assertTrue(Arrays.equals(stuff[4], basicCache.remove(4)));
+		assertFalse(basicCache.containsKey(4));
+		assertNull(basicCache.get(4));
+		assertEquals(9, basicCache.keySet().size());
+		assertFalse(basicCache.keySet().contains(4));
+
+		basicCache.clear();
+		assertTrue(basicCache.isEmpty());
+		assertEquals(1000, basicCache.arena().freeBytes());
+	}
+
+	@Test
+	public void testOffheapIndex_compact() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(180), KEY_CONVERTER);
+		final byte[][] stuff = new byte[10][];
+		for (int i = 0; i < 10; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			basicCache.put(i, stuff[i]);
+		}
+		for (int i = 0; i < 10; i += 2) {
+			basicCache.remove(i);
+		}
+
+		final byte[] big = new byte[82];
+		random.nextBytes(big);
+		basicCache.put(10, big); // compacts
+		assertTrue(Arrays.equals(big, basicCache.get(10)));
+		for (int i = 1; i < 10; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+		}
+	}
+
+	@Test
+	public void testOffheapIndex_compactStep() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(180), KEY_CONVERTER);
+		final byte[][] stuff = new byte[10][];
+		for (int i = 0; i < 10; i++) {
+			stuff[i] = new byte[10];
+			random.nextBytes(stuff[i]);
+			basicCache.put(i, stuff[i]);
+		}
+		for (int i = 0; i < 10; i += 2) {
+			basicCache.remove(i);
+		}
+
+		while (basicCache.compactStep(18)) {
+			basicCache.remove(5); // changed during the cycle
+		}
+		assertEquals(1, basicCache.arena().freeChunkCount());
+		for (int i = 1; i < 10; i += 2) {
+			if (i != 5) {
+				assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+			}
+		}
+	}
+
+	@Test
+	public void testSegments() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(300).segmentSize(100));
+		assertEquals(3, basicCache.arena().segmentCount());
+
+		final byte[][] stuff = new byte[6][];
+		for (int i = 0; i < 6; i++) {
+			stuff[i] = new byte[40];
+			random.nextBytes(stuff[i]);
+			basicCache.put(i, stuff[i]);
+		}
+		for (int i = 0; i < 6; i += 2) {
+			basicCache.remove(i);
+		}
+
+		// 60 bytes free in each segment, but not in one piece
+		final byte[] big = new byte[80];
+		random.nextBytes(big);
+		basicCache.put(6, big);
+		assertTrue(Arrays.equals(big, basicCache.get(6)));
+		for (int i = 1; i < 6; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+		}
+	}
+
+	@Test(expected = NotEnoughMemException.class)
+	public void testSegments_valueTooBig() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(300).segmentSize(100));
+		basicCache.put(1, new byte[101]);
+	}
+
+	@Test
+	public void testRead() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				100);
+		basicCache.put(1, new byte[] { 1, 2, 3 });
+		basicCache.put(2, new byte[] { 4, 5, 6, 7 });
+
+		assertEquals(Integer.valueOf(4 + 5 + 6 + 7), basicCache.read(2,
+				buffer -> {
+					assertTrue(buffer.isReadOnly());
+					assertEquals(0, buffer.position());
+					int sum = 0;
+					while (buffer.hasRemaining()) {
+						sum += buffer.get();
+					}
+					return sum;
+				}));
+		assertNull(basicCache.read(3, buffer -> 42));
+	}
+
+	@Test
+	public void testUpdate() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[] { 1, 2, 3 });
+		basicCache.put(2, new byte[] { 4, 5, 6, 7 });
+
+		assertTrue(basicCache.update(2, buffer -> {
+			assertEquals(4, buffer.remaining());
+			buffer.put(1, (byte) 42);
+		}));
+		assertTrue(Arrays.equals(new byte[] { 4, 42, 6, 7 }, basicCache.get(2)));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, basicCache.get(1)));
+		assertFalse(basicCache.update(3, buffer -> fail()));
+	}
+
+	@Test
+	public void testCompute() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[] { 1, 2, 3 });
+		basicCache.put(2, new byte[] { 4 });
+		final int freeChunks = basicCache.memStats().freeChunkCount();
+
+		// same size, in place
+		assertTrue(Arrays.equals(new byte[] { 2, 3, 4 }, basicCache.compute(1,
+				(key, value) -> new byte[] { 2, 3, 4 })));
+		assertTrue(Arrays.equals(new byte[] { 2, 3, 4 }, basicCache.get(1)));
+		assertEquals(freeChunks, basicCache.memStats().freeChunkCount());
+
+		// other size
+		basicCache.compute(1, (key, value) -> {
+			assertTrue(Arrays.equals(new byte[] { 2, 3, 4 }, value));
+			return new byte[] { 5 };
+		});
+		assertTrue(Arrays.equals(new byte[] { 5 }, basicCache.get(1)));
+
+		// absent
+		basicCache.compute(3, (key, value) -> {
+			assertNull(value);
+			return new byte[] { 6 };
+		});
+		assertTrue(Arrays.equals(new byte[] { 6 }, basicCache.get(3)));
+
+		// null removes
+		assertNull(basicCache.compute(2, (key, value) -> null));
+		assertFalse(basicCache.containsKey(2));
+		assertNull(basicCache.compute(2, (key, value) -> null));
+		assertEquals(2, basicCache.size());
+	}
+
+	@Test
+	public void testComputeIfPresentAbsent() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[] { 1 });
+
+		assertNull(basicCache.computeIfPresent(2, (key, value) -> {
+			fail();
+			return null;
+		}));
+		assertTrue(Arrays.equals(new byte[] { 2 }, basicCache.computeIfPresent(
+				1, (key, value) -> new byte[] { (byte) (value[0] + 1) })));
+		assertTrue(Arrays.equals(new byte[] { 2 }, basicCache.get(1)));
+
+		assertTrue(Arrays.equals(new byte[] { 2 }, basicCache.computeIfAbsent(
+				1, key -> {
+					fail();
+					return null;
+				})));
+		assertTrue(Arrays.equals(new byte[] { 3 },
+				basicCache.computeIfAbsent(2, key -> new byte[] { 3 })));
+		assertNull(basicCache.computeIfAbsent(3, key -> null));
+		assertFalse(basicCache.containsKey(3));
+
+		assertNull(basicCache.computeIfPresent(1, (key, value) -> null));
+		assertFalse(basicCache.containsKey(1));
+		assertEquals(1, basicCache.size());
+	}
+
+	@Test
+	public void testMerge() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		final BiFunction<byte[], byte[], byte[]> add = (oldValue, value) -> new byte[] { (byte) (oldValue[0] + value[0]) };
+
+		assertTrue(Arrays.equals(new byte[] { 1 },
+				basicCache.merge(1, new byte[] { 1 }, add)));
+		assertTrue(Arrays.equals(new byte[] { 3 },
+				basicCache.merge(1, new byte[] { 2 }, add)));
+		assertTrue(Arrays.equals(new byte[] { 3 }, basicCache.get(1)));
+		assertNull(basicCache.merge(1, new byte[] { 2 },
+				(oldValue, value) -> null));
+		assertTrue(basicCache.isEmpty());
+	}
+
+	@Test
+	public void testReplace_sizes() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[] { 1, 2 });
+
+		assertNull(basicCache.replace(2, new byte[] { 1 }));
+		assertFalse(basicCache.containsKey(2));
+		assertTrue(Arrays.equals(new byte[] { 1, 2 },
+				basicCache.replace(1, new byte[] { 3, 4 })));
+		assertFalse(basicCache.replace(1, new byte[] { 1, 2 },
+				new byte[] { 5 }));
+		assertTrue(basicCache.replace(1, new byte[] { 3, 4 },
+				new byte[] { 5 }));
+		assertTrue(Arrays.equals(new byte[] { 5 }, basicCache.get(1)));
+		assertFalse(basicCache.remove(1, new byte[] { 6 }));
+		assertTrue(basicCache.remove(1, new byte[] { 5 }));
+		assertTrue(basicCache.isEmpty());
+	}
+
+	@Test
+	public void testReplace_shrinksInPlace() {
+		for (final AllocationStrategy strategy : AllocationStrategy.values()) {
+			final AtomicLong nanos = new AtomicLong();
+			final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+					new OffheapMapConfig(64 * 1024).allocationStrategy(strategy)
+							.eviction(Eviction.LRU).expiry(true), KEY_CONVERTER);
+			basicCache.ticker(nanos::get);
+			basicCache.put(1, new byte[100], 1, TimeUnit.SECONDS);
+			basicCache.put(2, new byte[] { 2 });
+			final long freeBytes = basicCache.memStats().freeBytes();
+
+			assertNotNull(basicCache.replace(1, new byte[] { 1, 2, 3 }));
+			assertTrue(strategy.name(), Arrays.equals(new byte[] { 1, 2, 3 },
+					basicCache.get(1)));
+			if (strategy == AllocationStrategy.FIRST_FIT
+					|| strategy == AllocationStrategy.SIZE_CLASS) {
+				assertEquals(freeBytes + 97, basicCache.memStats().freeBytes());
+			}
+			// the trailer moved along
+			basicCache.get(2);
+			nanos.set(TimeUnit.SECONDS.toNanos(2));
+			assertNull(strategy.name(), basicCache.get(1));
+			// the wheel reclaims the moved chunk
+			basicCache.put(3, new byte[] { 3 });
+			assertEquals(2, basicCache.size());
+		}
+	}
+
+	/**
+	 * The policies and the allocators have to agree on the size of a shrunk
+	 * chunk: evicting and removing frees all of it.
+	 */
+	@Test
+	public void testReplace_shrinksInPlace_allPolicies() {
+		for (final Eviction eviction : Eviction.values()) {
+			for (final AllocationStrategy strategy : AllocationStrategy
+					.values()) {
+				final String name = eviction + " " + strategy;
+				final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+						new OffheapMapConfig(8 * 1024).allocationStrategy(
+								strategy).eviction(eviction), KEY_CONVERTER);
+				final long capacity = basicCache.memStats().capacity();
+				for (int i = 0; i < 10; i++) {
+					basicCache.put(i, new byte[200]);
+				}
+				for (int i = 0; i < 10; i++) {
+					final byte[] value = new byte[10];
+					Arrays.fill(value, (byte) i);
+					assertNotNull(name, basicCache.replace(i, value));
+				}
+
+				try {
+					for (int i = 10; i < 200; i++) {
+						basicCache.put(i, new byte[100]);
+					}
+					assertTrue(name, eviction != Eviction.NONE);
+					assertTrue(name, basicCache.memStats().evictions() > 0);
+				} catch (final NotEnoughMemException e) {
+					assertEquals(name, Eviction.NONE, eviction);
+				}
+				for (int i = 0; i < 10; i++) {
+					final byte[] value = basicCache.get(i);
+					if (value != null) {
+						assertEquals(name, 10, value.length);
+						assertEquals(name, i, value[0]);
+					}
+				}
+
+				for (final Integer key : new HashSet<>(basicCache.keySet())) {
+					basicCache.remove(key);
+				}
+				assertEquals(name, capacity, basicCache.memStats().freeBytes());
+				if (eviction == Eviction.TINY_LFU) {
+					final TinyLfuPolicy policy = (TinyLfuPolicy) basicCache
+							.policy();
+					assertEquals(name, 0, policy.windowBytes());
+					assertEquals(name, 0, policy.protectedBytes());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testEviction_lru() {
+		// 4 + 20 bytes per entry, 4 of them fit
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.LRU));
+		for (int i = 1; i <= 4; i++) {
+			basicCache.put(i, new byte[20]);
+		}
+		assertNotNull(basicCache.get(1));
+		basicCache.put(5, new byte[20]);
+
+		assertEquals(4, basicCache.size());
+		assertFalse(basicCache.containsKey(2));
+		assertTrue(basicCache.containsKey(1));
+		assertEquals(1, basicCache.memStats().evictions());
+
+		// needs two entries
+		basicCache.put(6, new byte[44]);
+		assertEquals(3, basicCache.size());
+		assertFalse(basicCache.containsKey(3));
+		assertFalse(basicCache.containsKey(4));
+		assertEquals(3, basicCache.memStats().evictions());
+	}
+
+	@Test(expected = NotEnoughMemException.class)
+	public void testEviction_lruValueTooBig() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.LRU));
+		basicCache.put(1, new byte[20]);
+		basicCache.put(2, new byte[97]);
+	}
+
+	@Test
+	public void testEviction_lruRandom() {
+		final InternalOffheapMap<Integer> heapIndexed = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.LRU));
+		// 8 + 4 + 12 bytes per entry
+		final InternalOffheapMap<Integer> offheapIndexed = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.LRU), KEY_CONVERTER);
+		checkLru(heapIndexed, 20);
+		checkLru(offheapIndexed, 12);
+	}
+
+	@Test
+	public void testEviction_tinyLfu() {
+		// 4 + 96 bytes per entry, 20 of them fit
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(2000).eviction(Eviction.TINY_LFU));
+		for (int i = 0; i < 10; i++) {
+			basicCache.put(i, new byte[96]);
+		}
+		for (int n = 0; n < 5; n++) {
+			for (int i = 0; i < 10; i++) {
+				assertNotNull(basicCache.get(i));
+			}
+		}
+		// a scan of keys seen once
+		for (int i = 100; i < 1000; i++) {
+			basicCache.put(i, new byte[96]);
+		}
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(basicCache.containsKey(i));
+		}
+		assertTrue(basicCache.memStats().evictions() >= 890);
+	}
+
+	@Test
+	public void testEviction_tinyLfuShrink() {
+		// 4 + 96 bytes per entry, the window takes 6 of them
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(64 * 1024).eviction(Eviction.TINY_LFU));
+		final TinyLfuPolicy policy = (TinyLfuPolicy) basicCache.policy();
+		for (int i = 0; i < 20; i++) {
+			basicCache.put(i, new byte[96]);
+		}
+		for (int i = 0; i < 20; i++) {
+			assertNotNull(basicCache.get(i));
+		}
+		assertEquals(600, policy.windowBytes());
+		assertEquals(1400, policy.protectedBytes());
+
+		// the chunks shrink in place
+		for (int i = 0; i < 20; i++) {
+			basicCache.replace(i, new byte[1]);
+		}
+		assertEquals(30, policy.windowBytes());
+		assertEquals(70, policy.protectedBytes());
+
+		for (int i = 0; i < 20; i++) {
+			basicCache.remove(i);
+		}
+		assertEquals(0, policy.windowBytes());
+		assertEquals(0, policy.protectedBytes());
+	}
+
+	@Test
+	public void testEviction_tinyLfuRandom() {
+		checkEviction(new InternalOffheapMap<Integer>(new OffheapMapConfig(
+				500).eviction(Eviction.TINY_LFU)), 20);
+		checkEviction(new InternalOffheapMap<Integer>(new OffheapMapConfig(
+				500).eviction(Eviction.TINY_LFU), KEY_CONVERTER), 12);
+	}
+
+	@Test
+	public void testEviction_clock() {
+		// 5 + 20 bytes per entry, 4 of them fit
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.CLOCK));
+		for (int i = 1; i <= 4; i++) {
+			basicCache.put(i, new byte[20]);
+		}
+		assertNotNull(basicCache.get(1));
+		assertNotNull(basicCache.get(3));
+		basicCache.put(5, new byte[20]);
+
+		// 1 got a second chance
+		assertEquals(4, basicCache.size());
+		assertFalse(basicCache.containsKey(2));
+		basicCache.put(6, new byte[20]);
+		assertFalse(basicCache.containsKey(4));
+		// the hand cleared the bit of 1 on its first way round
+		basicCache.put(7, new byte[20]);
+		assertFalse(basicCache.containsKey(1));
+		assertTrue(basicCache.containsKey(3));
+		assertEquals(3, basicCache.memStats().evictions());
+	}
+
+	@Test
+	public void testEviction_clockRandom() {
+		checkEviction(new InternalOffheapMap<Integer>(new OffheapMapConfig(
+				500).eviction(Eviction.CLOCK)), 20);
+		checkEviction(new InternalOffheapMap<Integer>(new OffheapMapConfig(
+				500).eviction(Eviction.CLOCK), KEY_CONVERTER), 12);
+	}
+
+	@Test
+	public void testExpiry() {
+		final AtomicLong nanos = new AtomicLong();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1000).expiry(true));
+		basicCache.ticker(nanos::get);
+		basicCache.put(1, new byte[] { 1 }, 10, TimeUnit.SECONDS);
+		basicCache.put(2, new byte[] { 2 });
+		basicCache.put(3, new byte[] { 3 }, 2, TimeUnit.MINUTES);
+
+		nanos.set(TimeUnit.SECONDS.toNanos(5));
+		assertTrue(Arrays.equals(new byte[] { 1 }, basicCache.get(1)));
+
+		nanos.set(TimeUnit.SECONDS.toNanos(11));
+		assertNull(basicCache.get(1));
+		assertFalse(basicCache.containsKey(1));
+		assertNull(basicCache.read(1, buffer -> 42));
+		assertFalse(basicCache.update(1, buffer -> fail()));
+		assertEquals(3, basicCache.size());
+		// the next write reclaims it
+		basicCache.put(4, new byte[] { 4 });
+		assertEquals(3, basicCache.size());
+		assertEquals(1, basicCache.memStats().expirations());
+
+		nanos.set(TimeUnit.MINUTES.toNanos(3));
+		assertNull(basicCache.remove(3));
+		assertEquals(2, basicCache.size());
+		assertEquals(2, basicCache.memStats().expirations());
+		assertTrue(Arrays.equals(new byte[] { 2 }, basicCache.get(2)));
+	}
+
+	@Test
+	public void testExpiry_compute() {
+		final AtomicLong nanos = new AtomicLong();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1000).expiry(true), KEY_CONVERTER);
+		basicCache.ticker(nanos::get);
+		basicCache.put(1, new byte[] { 1 }, 1, TimeUnit.SECONDS);
+		basicCache.put(2, new byte[] { 2 }, 1, TimeUnit.SECONDS);
+		// in place and in a new chunk, both keep the expiry
+		basicCache.compute(1, (key, value) -> new byte[] { 3 });
+		basicCache.merge(2, new byte[] { 4 }, (oldValue, value) -> new byte[] {
+				oldValue[0], value[0] });
+		assertTrue(Arrays.equals(new byte[] { 2, 4 }, basicCache.get(2)));
+
+		nanos.set(TimeUnit.SECONDS.toNanos(2));
+		assertNull(basicCache.get(1));
+		assertNull(basicCache.get(2));
+		// an expired entry is absent
+		assertNull(basicCache.computeIfPresent(1, (key, value) -> {
+			fail();
+			return null;
+		}));
+		assertTrue(Arrays.equals(new byte[] { 5 },
+				basicCache.computeIfAbsent(1, key -> new byte[] { 5 })));
+		assertEquals(1, basicCache.size());
+	}
+
+	@Test
+	public void testExpiry_replace() {
+		final AtomicLong nanos = new AtomicLong();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(1000).expiry(true), KEY_CONVERTER);
+		basicCache.ticker(nanos::get);
+		basicCache.put(1, new byte[] { 1 }, 1, TimeUnit.SECONDS);
+		basicCache.put(2, new byte[] { 2 }, 1, TimeUnit.SECONDS);
+		// a new value doesn't expire any more
+		basicCache.put(1, new byte[] { 3 });
+
+		nanos.set(TimeUnit.SECONDS.toNanos(5));
+		// the expired value is not returned
+		assertNull(basicCache.put(2, new byte[] { 4 }));
+		assertTrue(Arrays.equals(new byte[] { 3 }, basicCache.get(1)));
+		assertTrue(Arrays.equals(new byte[] { 4 }, basicCache.get(2)));
+		assertEquals(2, basicCache.size());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testExpiry_notConfigured() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				1000);
+		basicCache.put(1, new byte[] { 1 }, 1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testExpiryRandom() {
+		final AtomicLong nanos = new AtomicLong();
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100 * 1024).expiry(true)
+						.eviction(Eviction.LRU), KEY_CONVERTER);
+		basicCache.ticker(nanos::get);
+		final Map<Integer, Long> expiresAt = new HashMap<>();
+		for (int i = 0; i < 20000; i++) {
+			final int key = random.nextInt(1000);
+			final long ttl = 1 + random.nextInt(100000);
+			basicCache.put(key, new byte[1 + random.nextInt(20)], ttl,
+					TimeUnit.MILLISECONDS);
+			expiresAt.put(key, nanos.get() + TimeUnit.MILLISECONDS.toNanos(ttl));
+			if (i % 100 == 0) {
+				basicCache.remove(random.nextInt(1000));
+				basicCache.compact();
+			}
+			nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(random.nextInt(50)));
+
+			final int probe = random.nextInt(1000);
+			final Long expected = expiresAt.get(probe);
+			if (basicCache.containsKey(probe)) {
+				assertTrue(expected - nanos.get() > 0);
+			}
+		}
+		// all expired
+		nanos.addAndGet(TimeUnit.DAYS.toNanos(1));
+		basicCache.put(-1, new byte[1]);
+		assertEquals(1, basicCache.size());
+		// key, value, expiry and LRU header of the last one
+		assertEquals(4 + 4 + 1 + 12 + 4, 100 * 1024 - basicCache.arena()
+				.freeBytes());
+	}
+
+	/**
+	 * The map must have a subset of the entries of a HashMap.
+	 */
+	private void checkEviction(final InternalOffheapMap<Integer> basicCache,
+			final int maxValueSize) {
+		final Map<Integer, Byte> all = new HashMap<>();
+		for (int i = 0; i < 10000; i++) {
+			final int key = random.nextInt(50);
+			switch (random.nextInt(3)) {
+			case 0:
+				final byte value = (byte) random.nextInt();
+				final byte[] bytes = new byte[1 + random.nextInt(maxValueSize)];
+				bytes[0] = value;
+				basicCache.put(key, bytes);
+				all.put(key, value);
+				break;
+			case 1:
+				final byte[] actual = basicCache.get(key);
+				if (actual != null) {
+					assertEquals(all.get(key).byteValue(), actual[0]);
+				}
+				break;
+			default:
+				basicCache.remove(key);
+				all.remove(key);
+			}
+			assertTrue(all.keySet().containsAll(basicCache.keySet()));
+		}
+		assertTrue(basicCache.memStats().evictions() > 0);
+	}
+
+	/**
+	 * Compares the map with an access ordered {@link LinkedHashMap} of 4
+	 * entries.
+	 */
+	private void checkLru(final InternalOffheapMap<Integer> basicCache,
+			final int valueSize) {
+		final Map<Integer, Byte> expected = new LinkedHashMap<Integer, Byte>(
+				16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<Integer, Byte> eldest) {
+				return size() > 4;
+			}
+		};
+		for (int i = 0; i < 10000; i++) {
+			final int key = random.nextInt(10);
+			switch (random.nextInt(3)) {
+			case 0:
+				final byte value = (byte) random.nextInt();
+				final byte[] bytes = new byte[valueSize];
+				bytes[0] = value;
+				basicCache.put(key, bytes);
+				expected.put(key, value);
+				break;
+			case 1:
+				final byte[] actual = basicCache.get(key);
+				final Byte expectedValue = expected.get(key);
+				if (expectedValue == null) {
+					assertNull(actual);
+				} else {
+					assertEquals(expectedValue.byteValue(), actual[0]);
+				}
+				break;
+			default:
+				assertEquals(expected.remove(key) != null,
+						basicCache.remove(key) != null);
+			}
+			assertEquals(expected.keySet(), basicCache.keySet());
+		}
+	}
+
+	@Test
+	public void testRead_offheapIndex() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[] { 1, 2, 3 });
+
+		assertEquals(Integer.valueOf(3), basicCache.read(1,
+				buffer -> buffer.remaining()));
+		assertEquals(Byte.valueOf((byte) 1),
+				basicCache.read(1, buffer -> buffer.get(0)));
+	}
+
+	@Test
+	public void testWrite() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		assertNull(basicCache.write(1, 8, target -> target.putLong(42L),
+				source -> source.getLong()));
+		assertEquals(Long.valueOf(42L), basicCache.write(1, 4,
+				target -> target.putInt(7), source -> source.getLong()));
+		assertEquals(Integer.valueOf(7), basicCache.read(1,
+				source -> source.getInt()));
+		assertEquals(100 - 8 - 4, basicCache.arena().freeBytes());
+	}
+
+	@Test
+	public void testWrite_notFilled() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				100);
+		try {
+			basicCache.write(1, 8, target -> target.putInt(42), null);
+			fail("wtf?");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		assertFalse(basicCache.containsKey(1));
+		assertEquals(100, basicCache.arena().freeBytes());
+	}
+
+	@Test
+	public void testWrite_failingOverwrite() {
+		for (final int capacity : new int[] { 100, 20 }) {
+			// with 20 bytes the new value only fits in place of the old one
+			final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+					new OffheapMapConfig(capacity), KEY_CONVERTER);
+			basicCache.write(1, 8, target -> target.putLong(42L), null);
+			try {
+				basicCache.write(1, 8, target -> {
+					throw new IllegalArgumentException("can't serialize");
+				}, null);
+				fail("wtf?");
+			} catch (final IllegalArgumentException e) {
+				// expected
+			}
+			assertEquals(Long.valueOf(42L),
+					basicCache.read(1, source -> source.getLong()));
+			assertEquals(Long.valueOf(42L), basicCache.write(1, 8,
+					target -> target.putLong(7L), source -> source.getLong()));
+			assertEquals(Long.valueOf(7L),
+					basicCache.read(1, source -> source.getLong()));
+		}
+	}
+
 	@Test
 	public void testClear() {
 		final InternalOffheapMap<String> basicCache = new InternalOffheapMap<>(20);
@@ -273,6 +1639,169 @@ public class InternalOffheapMapTest {
 		assertTrue(Arrays.equals(basicCache.get("bar"), "bar".getBytes("UTF8")));
 	}
 
+	@Test
+	public void testPutAll_compactsOnce() {
+		final byte[][] stuff = new byte[10][];
+		final InternalOffheapMap<Integer> basicCache = fragmentedCache(
+				new OffheapMapConfig(100), stuff);
+
+		final Map<Integer, byte[]> batch = new HashMap<>();
+		batch.put(10, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+		batch.put(11, new byte[20]);
+		batch.put(12, new byte[20]);
+		basicCache.putAll(batch);
+
+		final MemStats stats = basicCache.memStats();
+		assertEquals(0, stats.freeBytes());
+		assertEquals(1, stats.foregroundCompactions());
+		assertEquals(8, basicCache.size());
+		assertTrue(Arrays.equals(batch.get(10), basicCache.get(10)));
+		for (int i = 1; i < stuff.length; i += 2) {
+			assertTrue(Arrays.equals(stuff[i], basicCache.get(i)));
+		}
+	}
+
+	@Test
+	public void testPutAll_replaces() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(40), KEY_CONVERTER);
+		basicCache.put(1, new byte[10]);
+		basicCache.put(2, new byte[10]);
+
+		final Map<Integer, byte[]> batch = new HashMap<>();
+		batch.put(1, new byte[] { 1, 1, 1, 1, 1, 1 });
+		batch.put(2, new byte[] { 2, 2, 2, 2, 2, 2 });
+		basicCache.putAll(batch);
+		assertEquals(2, basicCache.size());
+		assertTrue(Arrays.equals(batch.get(1), basicCache.get(1)));
+		assertTrue(Arrays.equals(batch.get(2), basicCache.get(2)));
+	}
+
+	@Test
+	public void testPutAll_tooBig() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100));
+		basicCache.put(1, new byte[] { 1 });
+
+		final Map<Integer, byte[]> batch = new LinkedHashMap<>();
+		batch.put(1, new byte[] { 2 });
+		batch.put(2, new byte[101]);
+		try {
+			basicCache.putAll(batch);
+			fail();
+		} catch (final NotEnoughMemException e) {
+			// expected
+		}
+		assertEquals(1, basicCache.size());
+		assertTrue(Arrays.equals(new byte[] { 1 }, basicCache.get(1)));
+	}
+
+	@Test
+	public void testPutAll_notEnoughMem() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		basicCache.put(1, new byte[30]);
+		basicCache.put(2, new byte[30]);
+
+		// each value fits, but not all of them
+		final Map<Integer, byte[]> batch = new LinkedHashMap<>();
+		batch.put(1, new byte[] { 1 });
+		batch.put(3, new byte[50]);
+		batch.put(4, new byte[50]);
+		try {
+			basicCache.putAll(batch);
+			fail();
+		} catch (final NotEnoughMemException e) {
+			// expected
+		}
+		assertEquals(2, basicCache.size());
+		assertTrue(Arrays.equals(new byte[30], basicCache.get(1)));
+		assertFalse(basicCache.containsKey(3));
+	}
+
+	@Test
+	public void testPutAll_undone() {
+		for (final AllocationStrategy strategy : Arrays.asList(
+				AllocationStrategy.BOUNDARY_TAG, AllocationStrategy.SLAB)) {
+			for (final ByteConverter<Integer> keyConverter : Arrays.asList(
+					null, KEY_CONVERTER)) {
+				checkPutAllUndone(new InternalOffheapMap<>(new OffheapMapConfig(
+						16 * 1024).allocationStrategy(strategy).expiry(true),
+						keyConverter), strategy.name());
+			}
+		}
+	}
+
+	private void checkPutAllUndone(
+			final InternalOffheapMap<Integer> basicCache, final String name) {
+		final AtomicLong nanos = new AtomicLong();
+		basicCache.ticker(nanos::get);
+		final byte[] old = new byte[1000];
+		random.nextBytes(old);
+		basicCache.put(0, old, 1, TimeUnit.SECONDS);
+		final long freeBytes = basicCache.memStats().freeBytes();
+
+		// 1100 bytes of values, but at least 16 bytes per chunk
+		final Map<Integer, byte[]> batch = new LinkedHashMap<>();
+		for (int i = 0; i < 1100; i++) {
+			batch.put(i, new byte[] { 1 });
+		}
+		try {
+			basicCache.putAll(batch);
+			fail(name);
+		} catch (final NotEnoughMemException e) {
+			// expected
+		}
+		assertEquals(name, 1, basicCache.size());
+		assertTrue(name, Arrays.equals(old, basicCache.get(0)));
+		assertEquals(name, freeBytes, basicCache.memStats().freeBytes());
+
+		// with its ttl
+		nanos.set(TimeUnit.SECONDS.toNanos(2));
+		assertNull(name, basicCache.get(0));
+	}
+
+	@Test
+	public void testPutAll_evictsUpFront() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100).eviction(Eviction.LRU), KEY_CONVERTER);
+		for (int i = 0; i < 4; i++) {
+			basicCache.put(i, new byte[10]);
+		}
+
+		final Map<Integer, byte[]> batch = new LinkedHashMap<>();
+		batch.put(3, new byte[] { 3 });
+		batch.put(4, new byte[20]);
+		batch.put(5, new byte[20]);
+		basicCache.putAll(batch);
+		assertTrue(Arrays.equals(new byte[] { 3 }, basicCache.get(3)));
+		assertTrue(basicCache.containsKey(4));
+		assertTrue(basicCache.containsKey(5));
+		assertFalse(basicCache.containsKey(0));
+		assertTrue(basicCache.memStats().evictions() > 0);
+	}
+
+	@Test
+	public void testGetAllRemoveAll() {
+		final InternalOffheapMap<Integer> basicCache = new InternalOffheapMap<>(
+				new OffheapMapConfig(100), KEY_CONVERTER);
+		for (int i = 0; i < 5; i++) {
+			basicCache.put(i, new byte[] { (byte) i });
+		}
+
+		final Map<Integer, byte[]> values = basicCache.getAll(Arrays.asList(4,
+				1, 7, 1));
+		assertEquals(2, values.size());
+		assertTrue(Arrays.equals(new byte[] { 4 }, values.get(4)));
+		assertTrue(Arrays.equals(new byte[] { 1 }, values.get(1)));
+
+		assertEquals(2, basicCache.removeAll(Arrays.asList(4, 1, 7, 1)));
+		assertEquals(3, basicCache.size());
+		assertFalse(basicCache.containsKey(1));
+		assertFalse(basicCache.containsKey(4));
+		assertTrue(basicCache.getAll(Arrays.asList(1, 4)).isEmpty());
+	}
+
 	@Test
 	public void testKeySet() throws UnsupportedEncodingException {
 		final InternalOffheapMap<String> basicCache = new InternalOffheapMap<>(20);
@@ -0,0 +1,224 @@
+package de.dirkdittmar.offheapCache.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.dirkdittmar.offheapCache.AllocationStrategy;
+import de.dirkdittmar.offheapCache.ByteConverter;
+import de.dirkdittmar.offheapCache.internal.mem.Arena;
+import de.dirkdittmar.offheapCache.internal.mem.ArenaChunk;
+
+public class OffheapIndexTest {
+
+	private static final ByteConverter<Integer> CONVERTER = new ByteConverter<Integer>() {
+
+		@Override
+		public byte[] toBytes(final Integer value) {
+			return ByteBuffer.allocate(4).putInt(value).array();
+		}
+
+		@Override
+		public Integer toValue(final byte[] bytes) {
+			return ByteBuffer.wrap(bytes).getInt();
+		}
+	};
+
+	private Arena data;
+
+	private long top;
+
+	private OffheapIndex<Integer> index;
+
+	@Before
+	public void before() {
+		data = new Arena(1024 * 1024, 1024 * 1024,
+				AllocationStrategy.FIRST_FIT);
+		top = 0;
+		index = new OffheapIndex<>(data, CONVERTER);
+	}
+
+	/**
+	 * Appends the header and a value of valueSize bytes to the data.
+	 */
+	private ArenaChunk write(final Integer key, final int valueSize) {
+		final byte[] header = index.header(key);
+		final long address = top;
+		data.put(address, header);
+		top += header.length + valueSize;
+		return new ArenaChunk(address, header.length + valueSize);
+	}
+
+	@Test
+	public void putGetTest() {
+		final ArenaChunk chunk = write(42, 10);
+		index.put(42, chunk);
+		assertEquals(1, index.size());
+		assertEquals(chunk, index.get(42));
+		assertEquals(8, index.headerSize(chunk));
+		assertNull(index.get(43));
+	}
+
+	@Test
+	public void putTest_replace() {
+		index.put(42, write(42, 10));
+		final ArenaChunk chunk = write(42, 20);
+		index.put(42, chunk);
+		assertEquals(1, index.size());
+		assertEquals(chunk, index.get(42));
+	}
+
+	@Test
+	public void removeTest() {
+		final ArenaChunk chunk = write(42, 10);
+		index.put(42, chunk);
+		assertEquals(chunk, index.remove(42));
+		assertNull(index.remove(42));
+		assertEquals(0, index.size());
+		assertNull(index.get(42));
+	}
+
+	@Test
+	public void growTest() {
+		for (int i = 0; i < 1000; i++) {
+			index.put(i, write(i, 1));
+		}
+		assertEquals(1000, index.size());
+		assertEquals(2048, index.slots());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i * 9, index.get(i).address);
+		}
+		assertEquals(1000, index.keySet().size());
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertEquals(OffheapIndex.MIN_SLOTS, index.slots());
+		assertNull(index.get(0));
+	}
+
+	@Test
+	public void relocateTest() {
+		for (int i = 0; i < 10; i++) {
+			index.put(i, write(i, 10));
+		}
+		final List<Index.Entry<Integer>> entries = index.sortedEntries();
+		assertEquals(10, entries.size());
+		assertEquals(0, entries.get(0).chunk.address);
+
+		// copy the last entry to the end of the data
+		final Index.Entry<Integer> last = entries.get(9);
+		final ArenaChunk copy = write(9, 10);
+		assertTrue(index.isCurrent(last));
+		index.relocate(last, copy);
+		assertFalse(index.isCurrent(last));
+		assertEquals(copy, index.get(9));
+	}
+
+	@Test
+	public void walkTest() {
+		final Random random = new Random(42);
+		final Set<Integer> stable = new HashSet<>();
+		for (int i = 0; i < 100; i++) {
+			index.put(i, write(i, 1));
+			stable.add(i);
+		}
+		final Index.Walk<Integer> walk = index.walk();
+		final Set<Integer> seen = new HashSet<>();
+		final List<Index.Entry<Integer>> batch = new ArrayList<>();
+		while (walk.next(batch, 10)) {
+			for (final Index.Entry<Integer> entry : batch) {
+				assertTrue(seen.add(entry.key));
+				assertEquals(entry.chunk, index.get(entry.key));
+			}
+			batch.clear();
+			// grow the table and shift the entries in between
+			for (int i = 0; i < 50; i++) {
+				final Integer key = 100 + random.nextInt(1000);
+				if (random.nextBoolean()) {
+					index.put(key, write(key, 1));
+				} else {
+					index.remove(key);
+				}
+			}
+		}
+		assertTrue(index.slots() > 128);
+		assertTrue(seen.containsAll(stable));
+		assertFalse(walk.next(batch, 10));
+		assertTrue(batch.isEmpty());
+	}
+
+	@Test
+	public void walkTest_split() {
+		for (int i = 0; i < 1000; i++) {
+			index.put(i, write(i, 1));
+		}
+		final List<Index.Walk<Integer>> walks = new ArrayList<>();
+		walks.add(index.walk());
+		for (int i = 0; i < 3; i++) {
+			for (final Index.Walk<Integer> walk : new ArrayList<>(walks)) {
+				walks.add(walk.trySplit());
+			}
+		}
+		assertEquals(8, walks.size());
+		long estimated = 0;
+		for (final Index.Walk<Integer> walk : walks) {
+			estimated += walk.estimateSize();
+		}
+		assertTrue(Math.abs(estimated - 1000) < 10);
+
+		// the table grows after the first batch of each walk
+		final Set<Integer> seen = new HashSet<>();
+		final List<Index.Entry<Integer>> batch = new ArrayList<>();
+		for (final Index.Walk<Integer> walk : walks) {
+			while (walk.next(batch, 50)) {
+				for (final Index.Entry<Integer> entry : batch) {
+					assertTrue(seen.add(entry.key));
+				}
+				batch.clear();
+				if (index.size() < 5000) {
+					for (int i = 0; i < 4000; i++) {
+						index.put(10000 + i, write(10000 + i, 1));
+					}
+				}
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(seen.contains(i));
+		}
+	}
+
+	@Test
+	public void randomTest() {
+		final Random random = new Random(42);
+		final Map<Integer, ArenaChunk> expected = new HashMap<>();
+		for (int i = 0; i < 20000; i++) {
+			final Integer key = random.nextInt(2000);
+			if (random.nextBoolean()) {
+				final ArenaChunk chunk = write(key, random.nextInt(10));
+				index.put(key, chunk);
+				expected.put(key, chunk);
+			} else {
+				assertEquals(expected.remove(key), index.remove(key));
+			}
+			assertEquals(expected.size(), index.size());
+		}
+		for (int key = 0; key < 2000; key++) {
+			assertEquals(expected.get(key), index.get(key));
+		}
+		assertEquals(expected.keySet(), index.keySet());
+	}
+
+}
@@ -0,0 +1,62 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import de.dirkdittmar.offheapCache.AllocationStrategy;
+
+public class ArenaTest {
+
+	@Test
+	public void segmentsTest() {
+		final Arena arena = new Arena(250, 100, AllocationStrategy.FIRST_FIT);
+		assertEquals(3, arena.segmentCount());
+		assertEquals(250, arena.capacity());
+		assertEquals(250, arena.freeBytes());
+		assertEquals(100, arena.maxChunkSize());
+		assertEquals(100, arena.largestFreeChunk());
+		assertEquals(3, arena.freeChunkCount());
+	}
+
+	@Test
+	public void allocateTest_noStraddling() {
+		final Arena arena = new Arena(250, 100, AllocationStrategy.FIRST_FIT);
+		assertEquals(0, arena.allocate(60));
+		assertEquals(100, arena.allocate(60)); // not at 60
+		assertEquals(160, arena.allocate(40));
+		assertEquals(200, arena.allocate(50));
+		assertEquals(60, arena.allocate(40));
+		assertEquals(Arena.NO_SPACE, arena.allocate(1));
+
+		arena.free(100, 60);
+		assertEquals(60, arena.largestFreeChunk());
+		assertEquals(100, arena.allocate(60));
+	}
+
+	@Test
+	public void clearTest() {
+		final Arena arena = new Arena(250, 100, AllocationStrategy.SIZE_CLASS);
+		arena.allocate(100);
+		arena.allocate(100);
+		arena.clear();
+		assertEquals(250, arena.freeBytes());
+		assertEquals(0, arena.allocate(10));
+		assertEquals(10, arena.allocate(10));
+	}
+
+	@Test
+	public void readWriteTest() {
+		final Arena arena = new Arena(3L * 64, 64, AllocationStrategy.FIRST_FIT);
+		final byte[] bytes = { 0, 0, 0, 42, 1, 2, 3 };
+		arena.put(130, bytes);
+		assertEquals(42, arena.getInt(130));
+		assertEquals(3, arena.get(136));
+
+		final byte[] result = new byte[bytes.length];
+		arena.get(130, result);
+		assertArrayEquals(bytes, result);
+	}
+
+}
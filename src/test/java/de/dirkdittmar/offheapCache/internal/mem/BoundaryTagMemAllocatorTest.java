@@ -0,0 +1,203 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BoundaryTagMemAllocatorTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void createTest_tooSmall() {
+		new BoundaryTagMemAllocator(ByteBuffer.allocate(8));
+	}
+
+	@Test
+	public void allocateTest_ascending() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		assertEquals(4, allocator.allocate(8)); // block [0..15]
+		assertEquals(20, allocator.allocate(1)); // min. block [16..31]
+		assertEquals(36, allocator.allocate(20)); // rest [32..63]
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(1));
+		assertEquals(0, allocator.freeBytes());
+		assertEquals(0, allocator.freeChunkCount());
+	}
+
+	@Test
+	public void allocateTest_tooBig() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(57));
+		assertEquals(56, allocator.largestFreeChunk());
+		assertEquals(4, allocator.allocate(56));
+	}
+
+	@Test
+	public void freeTest_join() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(8);
+		final int b = allocator.allocate(8);
+		final int c = allocator.allocate(8);
+		final int d = allocator.allocate(8);
+
+		allocator.free(a, 8);
+		allocator.free(c, 8);
+		assertEquals(2, allocator.freeChunkCount());
+		assertEquals(32, allocator.freeBytes());
+
+		// join with both neighbors
+		allocator.free(b, 8);
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(40, allocator.largestFreeChunk());
+		allocator.free(d, 8);
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(64, allocator.freeBytes());
+		assertEquals(4, allocator.allocate(56));
+	}
+
+	@Test
+	public void shrinkTest() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(40); // block [0..47]
+		allocator.allocate(8); // block [48..63]
+		assertEquals(0, allocator.freeBytes());
+
+		// the rest of the block is too small to split off
+		assertTrue(allocator.shrink(a, 40, 30));
+		assertEquals(0, allocator.freeBytes());
+
+		// block [0..15], rest [16..47]
+		assertTrue(allocator.shrink(a, 40, 1));
+		assertEquals(32, allocator.freeBytes());
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(20, allocator.allocate(24));
+
+		allocator.free(a, 1);
+		allocator.free(20, 24);
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(48, allocator.freeBytes());
+	}
+
+	@Test
+	public void freeTest_reuse() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(8);
+		allocator.allocate(8);
+		allocator.free(a, 8);
+		assertEquals(a, allocator.allocate(8));
+		// split the rest [32..63]
+		assertEquals(36, allocator.allocate(8));
+		assertEquals(52, allocator.allocate(8));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_twice() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(8);
+		allocator.allocate(8);
+		allocator.free(a, 8);
+		allocator.free(a, 8);
+	}
+
+	@Test
+	public void clearTest() {
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(64));
+		allocator.allocate(8);
+		allocator.free(allocator.allocate(8), 8);
+		allocator.clear();
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(64, allocator.freeBytes());
+		assertEquals(4, allocator.allocate(8));
+		assertEquals(20, allocator.allocate(8));
+	}
+
+	/**
+	 * Compaction relies on it: after a clear nothing is written into or
+	 * behind an allocated chunk until the next free.
+	 */
+	@Test
+	public void clearTest_untouchedPayload() {
+		final ByteBuffer buffer = ByteBuffer.allocate(64);
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				buffer);
+		allocator.allocate(40);
+		allocator.clear();
+		for (int i = 0; i < 64; i++) {
+			buffer.put(i, (byte) 7);
+		}
+
+		final int a = allocator.allocate(8);
+		for (int i = a; i < 64; i++) {
+			assertEquals(7, buffer.get(i));
+		}
+		final int b = allocator.allocate(20);
+		for (int i = b; i < 64; i++) {
+			assertEquals(7, buffer.get(i));
+		}
+
+		// the footers follow with the first free, the blocks join as before
+		allocator.free(a, 8);
+		allocator.free(b, 20);
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(64, allocator.freeBytes());
+		assertEquals(4, allocator.allocate(56));
+	}
+
+	/**
+	 * Random allocations must never overlap, the heap footprint must not grow.
+	 */
+	@Test
+	public void randomTest() {
+		final int capacity = 64 * 1024;
+		final BoundaryTagMemAllocator allocator = new BoundaryTagMemAllocator(
+				ByteBuffer.allocate(capacity));
+		final long heapFootprint = allocator.heapFootprint();
+		final Random random = new Random(4711);
+		final int[] owner = new int[capacity];
+		final int[] addresses = new int[500];
+		final int[] sizes = new int[500];
+
+		for (int i = 0; i < 20000; i++) {
+			final int slot = random.nextInt(addresses.length);
+			if (sizes[slot] > 0) {
+				for (int idx = addresses[slot]; idx < addresses[slot]
+						+ sizes[slot]; idx++) {
+					owner[idx] = 0;
+				}
+				allocator.free(addresses[slot], sizes[slot]);
+				sizes[slot] = 0;
+			}
+			final int size = 1 + random.nextInt(200);
+			final int address = allocator.allocate(size);
+			if (address != MemAllocator.NO_SPACE) {
+				for (int idx = address; idx < address + size; idx++) {
+					assertEquals(0, owner[idx]);
+					owner[idx] = slot + 1;
+				}
+				addresses[slot] = address;
+				sizes[slot] = size;
+			}
+		}
+		assertEquals(heapFootprint, allocator.heapFootprint());
+
+		// free everything: one free block again
+		for (int slot = 0; slot < addresses.length; slot++) {
+			if (sizes[slot] > 0) {
+				allocator.free(addresses[slot], sizes[slot]);
+			}
+		}
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(capacity, allocator.freeBytes());
+		assertTrue(allocator.allocate(capacity - 8) != MemAllocator.NO_SPACE);
+	}
+
+}
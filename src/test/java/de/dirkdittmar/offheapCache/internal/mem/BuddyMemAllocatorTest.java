@@ -0,0 +1,153 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class BuddyMemAllocatorTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void createTest_tooSmall() {
+		new BuddyMemAllocator(ByteBuffer.allocate(4));
+	}
+
+	@Test
+	public void orderTest() {
+		assertEquals(BuddyMemAllocator.MIN_ORDER, BuddyMemAllocator.order(1));
+		assertEquals(3, BuddyMemAllocator.order(8));
+		assertEquals(4, BuddyMemAllocator.order(9));
+		assertEquals(10, BuddyMemAllocator.order(1024));
+		assertEquals(11, BuddyMemAllocator.order(1025));
+	}
+
+	@Test
+	public void createTest_notPowerOfTwo() {
+		// 64 + 32 + 8, the 4 bytes left are unused
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(108));
+		assertEquals(3, allocator.freeChunkCount());
+		assertEquals(104, allocator.freeBytes());
+		assertEquals(64, allocator.largestFreeChunk());
+	}
+
+	@Test
+	public void allocateTest_split() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(64));
+		assertEquals(0, allocator.allocate(5)); // 8 bytes
+		// [8..15], [16..31] and [32..63] are left
+		assertEquals(3, allocator.freeChunkCount());
+		assertEquals(8, allocator.allocate(8));
+		assertEquals(32, allocator.allocate(17));
+		assertEquals(16, allocator.allocate(16));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(1));
+		assertEquals(0, allocator.freeBytes());
+	}
+
+	@Test
+	public void allocateTest_tooBig() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(100));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(65));
+		assertEquals(0, allocator.allocate(64));
+	}
+
+	@Test
+	public void freeTest_join() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(8);
+		final int b = allocator.allocate(8);
+		final int c = allocator.allocate(16);
+		final int d = allocator.allocate(32);
+
+		allocator.free(b, 8);
+		allocator.free(c, 16);
+		assertEquals(2, allocator.freeChunkCount());
+		allocator.free(a, 8);
+		// a and b make 16 bytes, joined with c to 32 bytes
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(32, allocator.largestFreeChunk());
+		allocator.free(d, 32);
+		assertEquals(64, allocator.largestFreeChunk());
+		assertEquals(0, allocator.allocate(64));
+	}
+
+	@Test
+	public void freeTest_noBuddyBehindTheEnd() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(48));
+		final int a = allocator.allocate(32);
+		final int b = allocator.allocate(16);
+		assertEquals(32, b);
+		allocator.free(b, 16);
+		allocator.free(a, 32);
+		assertEquals(2, allocator.freeChunkCount());
+		assertEquals(48, allocator.freeBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_twice() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(64));
+		final int a = allocator.allocate(8);
+		allocator.allocate(8);
+		allocator.free(a, 8);
+		allocator.free(a, 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_misaligned() {
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(64));
+		allocator.allocate(32);
+		allocator.free(8, 16);
+	}
+
+	@Test
+	public void randomTest() {
+		final int capacity = 64 * 1024 + 200;
+		final BuddyMemAllocator allocator = new BuddyMemAllocator(
+				ByteBuffer.allocate(capacity));
+		final int initialChunks = allocator.freeChunkCount();
+		final int initialFree = allocator.freeBytes();
+		final Random random = new Random(4711);
+		final int[] owner = new int[capacity];
+		final int[] addresses = new int[300];
+		final int[] sizes = new int[300];
+
+		for (int i = 0; i < 20000; i++) {
+			final int slot = random.nextInt(addresses.length);
+			if (sizes[slot] > 0) {
+				for (int idx = addresses[slot]; idx < addresses[slot]
+						+ sizes[slot]; idx++) {
+					owner[idx] = 0;
+				}
+				allocator.free(addresses[slot], sizes[slot]);
+				sizes[slot] = 0;
+			}
+			final int size = 1 + random.nextInt(300);
+			final int address = allocator.allocate(size);
+			if (address != MemAllocator.NO_SPACE) {
+				for (int idx = address; idx < address + size; idx++) {
+					assertEquals(0, owner[idx]);
+					owner[idx] = slot + 1;
+				}
+				addresses[slot] = address;
+				sizes[slot] = size;
+			}
+		}
+
+		for (int slot = 0; slot < addresses.length; slot++) {
+			if (sizes[slot] > 0) {
+				allocator.free(addresses[slot], sizes[slot]);
+			}
+		}
+		assertEquals(initialChunks, allocator.freeChunkCount());
+		assertEquals(initialFree, allocator.freeBytes());
+	}
+
+}
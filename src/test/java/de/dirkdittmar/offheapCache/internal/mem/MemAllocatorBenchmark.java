@@ -0,0 +1,84 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Churns an almost full arena with random sized chunks and prints latency and
+ * fragmentation of the allocators.
+ */
+public class MemAllocatorBenchmark {
+
+	private static final int CAPACITY = 4 * 1024 * 1024;
+
+	private static final int MIN_SIZE = 16;
+
+	private static final int MAX_SIZE = 2048;
+
+	private static final int OPERATIONS = 5000;
+
+	@Test
+	public void firstFit() {
+		churn(new FirstFitMemAllocator(CAPACITY));
+	}
+
+	@Test
+	public void sizeClass() {
+		churn(new SizeClassMemAllocator(CAPACITY));
+	}
+
+	@Test
+	public void boundaryTag() {
+		churn(new BoundaryTagMemAllocator(ByteBuffer.allocateDirect(CAPACITY)));
+	}
+
+	@Test
+	public void buddy() {
+		churn(new BuddyMemAllocator(ByteBuffer.allocateDirect(CAPACITY)));
+	}
+
+	@Test
+	public void slab() {
+		churn(new SlabMemAllocator(CAPACITY));
+	}
+
+	private void churn(final MemAllocator allocator) {
+		final Random random = new Random(42);
+		final int slots = CAPACITY / ((MIN_SIZE + MAX_SIZE) / 2) * 9 / 10;
+		final int[] addresses = new int[slots];
+		final int[] sizes = new int[slots];
+
+		// fill
+		for (int i = 0; i < slots; i++) {
+			sizes[i] = MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE);
+			addresses[i] = allocator.allocate(sizes[i]);
+		}
+
+		// churn
+		int failed = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < OPERATIONS; i++) {
+			final int slot = random.nextInt(slots);
+			if (addresses[slot] != MemAllocator.NO_SPACE) {
+				allocator.free(addresses[slot], sizes[slot]);
+			}
+			sizes[slot] = MIN_SIZE + random.nextInt(MAX_SIZE - MIN_SIZE);
+			addresses[slot] = allocator.allocate(sizes[slot]);
+			if (addresses[slot] == MemAllocator.NO_SPACE) {
+				failed++;
+			}
+		}
+		final long nanos = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"[%s] %,d ns/op, %d failed, %d free chunks, "
+						+ "largest free chunk %,d of %,d free bytes, "
+						+ "%,d heap bytes", allocator.getClass()
+						.getSimpleName(), nanos / OPERATIONS, failed,
+				allocator.freeChunkCount(), allocator.largestFreeChunk(),
+				allocator.freeBytes(), allocator.heapFootprint()));
+	}
+
+}
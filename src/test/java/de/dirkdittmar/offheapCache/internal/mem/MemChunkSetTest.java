@@ -3,7 +3,10 @@ package de.dirkdittmar.offheapCache.internal.mem;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -266,4 +269,70 @@ public class MemChunkSetTest {
 		set.add(new MemChunk(1, 11));
 	}
 
+	@Test
+	public void addTest_intersecting() {
+		final MemChunkSet set = new MemChunkSet(20);
+		set.remove(new MemChunk(0, 19));
+		set.add(new MemChunk(2, 3));
+		set.add(new MemChunk(6, 7));
+		set.add(new MemChunk(10, 11));
+
+		// spans several free chunks
+		set.add(new MemChunk(3, 10));
+		final List<MemChunk> chunks = set.chunks();
+		assertEquals(1, chunks.size());
+		assertEquals(new MemChunk(2, 11), chunks.get(0));
+	}
+
+	@Test
+	public void removeTest_spanning() {
+		final MemChunkSet set = new MemChunkSet(20);
+		set.remove(new MemChunk(4, 5));
+		set.remove(new MemChunk(10, 11));
+		assertEquals(3, set.size());
+
+		// cuts through several free chunks
+		set.remove(new MemChunk(2, 14));
+		final List<MemChunk> chunks = set.chunks();
+		assertEquals(2, chunks.size());
+		assertEquals(new MemChunk(0, 1), chunks.get(0));
+		assertEquals(new MemChunk(15, 19), chunks.get(1));
+	}
+
+	/**
+	 * Compares random adds and removes with a simple bitmap.
+	 */
+	@Test
+	public void randomTest() {
+		final int size = 100;
+		final Random random = new Random(4711);
+		final MemChunkSet set = new MemChunkSet(size);
+		final boolean[] free = new boolean[size];
+		Arrays.fill(free, true);
+
+		for (int i = 0; i < 10000; i++) {
+			final int lo = random.nextInt(size);
+			final int hi = lo + random.nextInt(Math.min(10, size - lo));
+			final boolean add = random.nextBoolean();
+			if (add) {
+				set.add(new MemChunk(lo, hi));
+			} else {
+				set.remove(new MemChunk(lo, hi));
+			}
+			Arrays.fill(free, lo, hi + 1, add);
+
+			final List<MemChunk> expected = new LinkedList<>();
+			int start = -1;
+			for (int idx = 0; idx <= size; idx++) {
+				if (idx < size && free[idx]) {
+					start = start < 0 ? idx : start;
+				} else if (start >= 0) {
+					expected.add(new MemChunk(start, idx - 1));
+					start = -1;
+				}
+			}
+			assertEquals(expected, set.chunks());
+		}
+	}
+
 }
@@ -0,0 +1,93 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SizeClassMemAllocatorTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void createTest_tooSmall() {
+		new SizeClassMemAllocator(0);
+	}
+
+	@Test
+	public void allocateTest_ascending() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(10);
+		assertEquals(0, allocator.allocate(4));
+		assertEquals(4, allocator.allocate(4));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(4));
+		assertEquals(8, allocator.allocate(2));
+		assertEquals(0, allocator.freeBytes());
+		assertEquals(0, allocator.freeChunkCount());
+		assertEquals(0, allocator.largestFreeChunk());
+	}
+
+	@Test
+	public void allocateTest_fittingClass() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(40);
+		allocator.allocate(40);
+		allocator.free(0, 3);
+		allocator.free(10, 8);
+		allocator.free(20, 17);
+
+		// the smallest class big enough
+		assertEquals(0, allocator.allocate(3));
+		assertEquals(10, allocator.allocate(2));
+		assertEquals(12, allocator.allocate(6));
+		// [20..36] is the only chunk of class 16 (16 or 17 bytes), so it is
+		// not found in O(1) for 17 bytes; the class itself is scanned
+		assertEquals(20, allocator.allocate(17));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(1));
+	}
+
+	@Test
+	public void freeTest_join() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(10);
+		allocator.allocate(10);
+
+		allocator.free(2, 2);
+		allocator.free(6, 2);
+		assertEquals(2, allocator.freeChunkCount());
+		assertEquals("[[2..3], [6..7]]", allocator.toString());
+
+		// join with both neighbors
+		allocator.free(4, 2);
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals("[[2..7]]", allocator.toString());
+
+		allocator.free(0, 2);
+		allocator.free(8, 2);
+		assertEquals("[[0..9]]", allocator.toString());
+		assertEquals(10, allocator.freeBytes());
+		assertEquals(10, allocator.largestFreeChunk());
+		assertEquals(0, allocator.allocate(10));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_notAllocated() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(10);
+		allocator.allocate(5);
+		allocator.free(3, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_outOfRange() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(10);
+		allocator.free(8, 4);
+	}
+
+	@Test
+	public void clearTest() {
+		final SizeClassMemAllocator allocator = new SizeClassMemAllocator(10);
+		allocator.allocate(3);
+		allocator.allocate(3);
+		allocator.free(0, 3);
+		allocator.clear();
+		assertEquals(1, allocator.freeChunkCount());
+		assertEquals(10, allocator.freeBytes());
+		assertEquals(0, allocator.allocate(3));
+		assertEquals(3, allocator.allocate(3));
+	}
+
+}
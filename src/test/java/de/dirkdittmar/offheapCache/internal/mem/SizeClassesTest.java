@@ -0,0 +1,69 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SizeClassesTest {
+
+	@Test
+	public void sizeClassTest() {
+		assertEquals(1, SizeClasses.sizeClass(1));
+		assertEquals(7, SizeClasses.sizeClass(7));
+		assertEquals(8, SizeClasses.sizeClass(8));
+		assertEquals(15, SizeClasses.sizeClass(15));
+		assertEquals(16, SizeClasses.sizeClass(16));
+		assertEquals(16, SizeClasses.sizeClass(17));
+		assertEquals(17, SizeClasses.sizeClass(18));
+		assertEquals(64, SizeClasses.sizeClass(1024));
+		assertEquals(64, SizeClasses.sizeClass(1151));
+		assertEquals(65, SizeClasses.sizeClass(1152));
+		assertEquals(231, SizeClasses.sizeClass(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void minSizeTest() {
+		assertEquals(7, SizeClasses.minSize(7));
+		assertEquals(16, SizeClasses.minSize(16));
+		assertEquals(18, SizeClasses.minSize(17));
+		assertEquals(1024, SizeClasses.minSize(64));
+		assertEquals(1152, SizeClasses.minSize(65));
+		for (int size = 1; size < 100000; size++) {
+			final int sizeClass = SizeClasses.sizeClass(size);
+			assertTrue(SizeClasses.minSize(sizeClass) <= size);
+			assertTrue(SizeClasses.minSize(sizeClass + 1) > size);
+		}
+	}
+
+	@Test
+	public void fittingClassTest() {
+		assertEquals(16, SizeClasses.fittingClass(16));
+		assertEquals(17, SizeClasses.fittingClass(17));
+		assertEquals(17, SizeClasses.fittingClass(18));
+		assertEquals(18, SizeClasses.fittingClass(19));
+	}
+
+	@Test
+	public void bitmapTest() {
+		final long[] bitmap = SizeClasses.newBitmap();
+		assertEquals(-1, SizeClasses.next(bitmap, 0));
+		assertEquals(-1, SizeClasses.last(bitmap));
+
+		SizeClasses.set(bitmap, 3);
+		SizeClasses.set(bitmap, 70);
+		SizeClasses.set(bitmap, 200);
+		assertTrue(SizeClasses.isSet(bitmap, 70));
+		assertEquals(3, SizeClasses.next(bitmap, 0));
+		assertEquals(3, SizeClasses.next(bitmap, 3));
+		assertEquals(70, SizeClasses.next(bitmap, 4));
+		assertEquals(200, SizeClasses.next(bitmap, 71));
+		assertEquals(-1, SizeClasses.next(bitmap, 201));
+		assertEquals(-1, SizeClasses.next(bitmap, SizeClasses.CLASSES));
+		assertEquals(200, SizeClasses.last(bitmap));
+
+		SizeClasses.unset(bitmap, 200);
+		assertEquals(70, SizeClasses.last(bitmap));
+	}
+
+}
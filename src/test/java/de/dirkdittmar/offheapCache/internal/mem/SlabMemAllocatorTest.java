@@ -0,0 +1,120 @@
+package de.dirkdittmar.offheapCache.internal.mem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SlabMemAllocatorTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void createTest_pageTooBig() {
+		new SlabMemAllocator(100, 200, 10, 2.0);
+	}
+
+	@Test
+	public void createTest_smallCapacity() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(20);
+		assertEquals(20, allocator.pageSize());
+		assertArrayEquals(new int[] { 20 }, allocator.chunkSizes());
+	}
+
+	@Test
+	public void defaultPageSizeTest() {
+		assertEquals(20, SlabMemAllocator.defaultPageSize(20));
+		assertEquals(4096, SlabMemAllocator.defaultPageSize(100000));
+		assertEquals(32768, SlabMemAllocator.defaultPageSize(2 * 1024 * 1024));
+		assertEquals(1024 * 1024,
+				SlabMemAllocator.defaultPageSize(Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void chunkSizesTest() {
+		assertArrayEquals(new int[] { 64, 80, 104, 128, 160, 200, 248, 312,
+				384, 480, 1024 }, SlabMemAllocator.chunkSizes(1024, 64, 1.25));
+		assertArrayEquals(new int[] { 16, 32, 64, 128 },
+				SlabMemAllocator.chunkSizes(128, 16, 2.0));
+	}
+
+	@Test
+	public void allocateTest() {
+		// 4 pages of 128 bytes, classes 16, 32, 64, 128
+		final SlabMemAllocator allocator = new SlabMemAllocator(512, 128, 16,
+				2.0);
+		assertEquals(0, allocator.allocate(10));
+		assertEquals(16, allocator.allocate(16));
+		// next class, next page
+		assertEquals(128, allocator.allocate(17));
+		assertEquals(160, allocator.allocate(32));
+		// a whole page
+		assertEquals(256, allocator.allocate(100));
+		// too big for a page
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(129));
+
+		assertEquals(512 - 16 - 16 - 32 - 32 - 128, allocator.freeBytes());
+		assertEquals(6 + 2 + 1, allocator.freeChunkCount());
+		assertEquals(128, allocator.largestFreeChunk());
+	}
+
+	@Test
+	public void freeTest_reuseChunk() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(512, 128, 16,
+				2.0);
+		allocator.allocate(16);
+		final int address = allocator.allocate(16);
+		allocator.allocate(16);
+		allocator.free(address, 16);
+		assertEquals(address, allocator.allocate(12));
+	}
+
+	@Test
+	public void freeTest_rebalancePages() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(256, 128, 16,
+				2.0);
+		// both pages go to the 16 byte class
+		for (int i = 0; i < 16; i++) {
+			assertEquals(i * 16, allocator.allocate(16));
+		}
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(64));
+
+		// emptying the second page hands it to the 64 byte class
+		for (int i = 8; i < 16; i++) {
+			allocator.free(i * 16, 16);
+		}
+		assertEquals(128, allocator.largestFreeChunk());
+		assertEquals(128, allocator.allocate(64));
+		assertEquals(192, allocator.allocate(64));
+		assertEquals(MemAllocator.NO_SPACE, allocator.allocate(16));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_twice() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(512, 128, 16,
+				2.0);
+		final int address = allocator.allocate(16);
+		allocator.allocate(16);
+		allocator.free(address, 16);
+		allocator.free(address, 16);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeTest_misaligned() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(512, 128, 16,
+				2.0);
+		allocator.allocate(16);
+		allocator.free(8, 8);
+	}
+
+	@Test
+	public void clearTest() {
+		final SlabMemAllocator allocator = new SlabMemAllocator(512, 128, 16,
+				2.0);
+		allocator.allocate(16);
+		allocator.allocate(64);
+		allocator.clear();
+		assertEquals(512, allocator.freeBytes());
+		assertEquals(4, allocator.freeChunkCount());
+		assertEquals(0, allocator.allocate(64));
+	}
+
+}